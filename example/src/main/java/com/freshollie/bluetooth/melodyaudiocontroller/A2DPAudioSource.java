@@ -25,6 +25,8 @@ public class A2DPAudioSource implements AudioManager.OnAudioFocusChangeListener
 
     private PlaybackStateCompat.Builder playbackStateBuilder;
     private MediaSessionCompat mediaSession;
+    private TrackMetadataAccumulator metadataAccumulator;
+    private VolumeController volumeController;
 
     private boolean hasFocus;
 
@@ -37,6 +39,12 @@ public class A2DPAudioSource implements AudioManager.OnAudioFocusChangeListener
         mediaSession.setActive(true);
 
         mediaSession.setMetadata(new MediaMetadataCompat.Builder().build());
+        metadataAccumulator = new TrackMetadataAccumulator(new TrackMetadataAccumulator.MetadataListener() {
+            @Override
+            public void onMetadata(MediaMetadataCompat metadata) {
+                setMetadata(metadata);
+            }
+        });
 
         playbackStateBuilder = new PlaybackStateCompat.Builder()
                 .setActions(
@@ -51,15 +59,17 @@ public class A2DPAudioSource implements AudioManager.OnAudioFocusChangeListener
 
         this.linkId = linkId;
         this.deviceName = deviceName;
+        // Volume is set on the device's A2DP link, not this AVRCP link
+        volumeController = new VolumeController(
+                context,
+                manager,
+                linkId - MelodyAudioUartInterface.BluetoothProfiles.AVRCP + MelodyAudioUartInterface.BluetoothProfiles.A2DP
+        );
         hasFocus = false;
     }
 
     public void setDeviceName(String name) {
-        mediaSession.setMetadata(
-                new MediaMetadataCompat.Builder(mediaSession.getController().getMetadata())
-                        .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, name)
-                        .build()
-        );
+        metadataAccumulator.setMediaId(name);
         deviceName = name;
     }
 
@@ -82,7 +92,7 @@ public class A2DPAudioSource implements AudioManager.OnAudioFocusChangeListener
     }
 
     private void setMetadata(MediaMetadataCompat metadata) {
-
+        mediaSession.setMetadata(metadata);
     }
 
     public int getPlaybackState() {
@@ -94,15 +104,15 @@ public class A2DPAudioSource implements AudioManager.OnAudioFocusChangeListener
 
     public void handlePauseRequest() {
         setPlaybackState(PlaybackStateCompat.STATE_PAUSED);
-        melodyAudioManager.sendCommand("MUSIC", getLinkId() + " " + "PAUSE");
+        melodyAudioManager.sendCommand(MelodyAudioUartInterface.Commands.MUSIC, getLinkId() + " " + "PAUSE");
     }
 
     public void handlePlayRequest() {
         if (getPlaybackState() != PlaybackStateCompat.STATE_PLAYING &&
                 (hasFocus || requestAudioFocus())) {
             setPlaybackState(PlaybackStateCompat.STATE_PLAYING);
-            melodyAudioManager.sendCommand("VOLUME", "10 F");
-            melodyAudioManager.sendCommand("MUSIC", getLinkId() + " " + "PLAY");
+            volumeController.sync();
+            melodyAudioManager.sendCommand(MelodyAudioUartInterface.Commands.MUSIC, getLinkId() + " " + "PLAY");
         }
     }
 
@@ -127,43 +137,18 @@ public class A2DPAudioSource implements AudioManager.OnAudioFocusChangeListener
             handlePauseRequest();
         }
 
+        metadataAccumulator.cancel();
+        volumeController.release();
         setPlaybackState(PlaybackStateCompat.STATE_STOPPED);
         mediaSession.setActive(false);
         mediaSession.release();
     }
 
-    private void onReceivedMetadata(String data) {
-        if (!data.contains(":")) {
-            return;
-        }
-
-        String key = data.substring(0, data.indexOf(":"));
-        String value = data.substring(data.indexOf(":") + 1, data.length());
-
-        MediaMetadataCompat.Builder metadataBuilder =
-                new MediaMetadataCompat.Builder(mediaSession.getController().getMetadata());
-
-        switch(key) {
-            case "ALBUM":
-                metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_ALBUM, value);
-                setMetadata(metadataBuilder.build());
-                break;
-            case "ARTIST":
-                metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_ARTIST, value);
-                setMetadata(metadataBuilder.build());
-                break;
-            case "TITLE":
-                metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_TITLE, value);
-                setMetadata(metadataBuilder.build());
-                break;
-        }
-
-    }
-
     void onAVRCPReceived(String avrcpType, String[] extras) {
         switch (avrcpType) {
             case MelodyAudioUartInterface.ResponseKeys.AVRCP_MEDIA:
-                onReceivedMetadata(TextUtils.join(" ", extras));
+                // Published once the track's burst of fields has arrived
+                metadataAccumulator.onField(TextUtils.join(" ", extras));
                 break;
             case MelodyAudioUartInterface.ResponseKeys.AVRCP_PAUSE:
                 setPlaybackState(PlaybackStateCompat.STATE_PAUSED);
@@ -171,25 +156,32 @@ public class A2DPAudioSource implements AudioManager.OnAudioFocusChangeListener
             case MelodyAudioUartInterface.ResponseKeys.AVRCP_PLAY:
                 if (!hasFocus && requestAudioFocus()) {
                     onAudioFocusGained();
-                    melodyAudioManager.sendCommand("VOLUME", "10 F");
+                    volumeController.sync();
                 }
                 setPlaybackState(PlaybackStateCompat.STATE_PLAYING);
 
         }
     }
 
+    void onABSVolReceived(int volume) {
+        volumeController.onABSVolReceived(volume);
+    }
+
     private void onAudioFocusGained() {
         if (getPlaybackState() == PlaybackStateCompat.STATE_PLAYING) {
-            melodyAudioManager.sendCommand("VOLUME", "10 F");
+            volumeController.sync();
+        } else {
+            // Playback may have paused while ducked
+            volumeController.restore();
         }
     }
 
     private void onLossTransient() {
-        melodyAudioManager.sendCommand("MUSIC", getLinkId() + " " + "PAUSE");
+        melodyAudioManager.sendCommand(MelodyAudioUartInterface.Commands.MUSIC, getLinkId() + " " + "PAUSE");
     }
 
     private void onDuck() {
-        melodyAudioManager.sendCommand("VOLUME", "10 5");
+        volumeController.duck();
     }
 
     private boolean requestAudioFocus() {
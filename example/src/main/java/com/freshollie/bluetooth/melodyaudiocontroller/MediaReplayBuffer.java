@@ -0,0 +1,114 @@
+package com.freshollie.bluetooth.melodyaudiocontroller;
+
+/**
+ * Holds the AVRCP_MEDIA lines which arrived before it was known which link they belong
+ * to, so they can be replayed to its audio source once it is.
+ *
+ * At most {@code capacity} lines are held, in a ring which overwrites the oldest, and
+ * lines older than {@code maxAgeMs} are discarded as stale. Both count as dropped.
+ */
+class MediaReplayBuffer {
+    static final int DEFAULT_CAPACITY = 16;
+    static final long DEFAULT_MAX_AGE_MS = 10000;
+
+    private final long maxAgeMs;
+
+    private final String[] avrcpTypes;
+    private final String[][] extras;
+    private final long[] receivedMillis;
+    private int head;
+    private int size;
+
+    private long droppedCount;
+    private long misroutedCount;
+
+    MediaReplayBuffer() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_AGE_MS);
+    }
+
+    MediaReplayBuffer(int capacity, long maxAgeMs) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Bad capacity");
+        }
+
+        this.maxAgeMs = maxAgeMs;
+        avrcpTypes = new String[capacity];
+        extras = new String[capacity][];
+        receivedMillis = new long[capacity];
+    }
+
+    long getMaxAgeMs() {
+        return maxAgeMs;
+    }
+
+    boolean isEmpty(long nowMillis) {
+        evictStale(nowMillis);
+        return size == 0;
+    }
+
+    void add(String avrcpType, String[] lineExtras, long nowMillis) {
+        evictStale(nowMillis);
+
+        if (size == avrcpTypes.length) {
+            removeOldest();
+            droppedCount++;
+        }
+
+        int tail = (head + size) % avrcpTypes.length;
+        avrcpTypes[tail] = avrcpType;
+        extras[tail] = lineExtras;
+        receivedMillis[tail] = nowMillis;
+        size++;
+    }
+
+    /**
+     * Feeds the lines which aren't stale to the source, oldest first, and empties the buffer
+     *
+     * @return the number of lines replayed
+     */
+    int replay(A2DPAudioSource source, long nowMillis) {
+        evictStale(nowMillis);
+
+        int replayed = 0;
+        while (size > 0) {
+            String avrcpType = avrcpTypes[head];
+            String[] lineExtras = extras[head];
+            removeOldest();
+            source.onAVRCPReceived(avrcpType, lineExtras);
+            replayed++;
+        }
+        return replayed;
+    }
+
+    /**
+     * Counts lines which were delivered to the wrong audio source
+     */
+    void onMisrouted(int count) {
+        misroutedCount += count;
+    }
+
+    /**
+     * @return the number of lines discarded because the buffer was full, or they went stale
+     */
+    long getDroppedCount() {
+        return droppedCount;
+    }
+
+    long getMisroutedCount() {
+        return misroutedCount;
+    }
+
+    private void evictStale(long nowMillis) {
+        while (size > 0 && nowMillis - receivedMillis[head] > maxAgeMs) {
+            removeOldest();
+            droppedCount++;
+        }
+    }
+
+    private void removeOldest() {
+        avrcpTypes[head] = null;
+        extras[head] = null;
+        head = (head + 1) % avrcpTypes.length;
+        size--;
+    }
+}
@@ -1,24 +1,41 @@
 package com.freshollie.bluetooth.melodyaudiocontroller;
 
 import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.Settings;
 import android.support.v4.media.session.PlaybackStateCompat;
-import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.freshollie.uart.melodyaudio.CommandResult;
+import com.freshollie.uart.melodyaudio.DeviceRegistry;
+import com.freshollie.uart.melodyaudio.MelodyAudioEvent;
 import com.freshollie.uart.melodyaudio.MelodyAudioUartConnection;
 import com.freshollie.uart.melodyaudio.MelodyAudioUartInterface;
+import com.freshollie.uart.melodyaudio.PendingCommand;
+import com.freshollie.uart.melodyaudio.PhonebookContact;
+import com.freshollie.uart.melodyaudio.PhonebookStore;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.PriorityQueue;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by freshollie on 09.12.17.
  */
 
-public class MelodyAudioManager extends MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback implements
-        MelodyAudioUartConnection.ConnectionStateChangeListener {
+public class MelodyAudioManager implements MelodyAudioUartConnection.ConnectionStateChangeListener {
     private static final String TAG = MelodyAudioManager.class.getSimpleName();
 
     private boolean running;
@@ -30,42 +47,251 @@ public class MelodyAudioManager extends MelodyAudioUartInterface.MelodyAudioUart
     private final MelodyAudioUartConnection melodyAudioUartConnection;
     private final MelodyAudioUartInterface melodyAudioUartInterface;
 
-    private final PriorityQueue<String> pendingCommands;
     private final SparseArray<A2DPAudioSource> audioSources;
-
-    private final ArrayList<String> bufferedMediaData;
+    // The link which stream volume changes are sent to, the one which last started playing
+    private VolumeController activeVolumeController;
+    private final ContentObserver volumeObserver;
+
+    // AVRCP_MEDIA lines which arrived before the link they belong to was known
+    private final MediaReplayBuffer mediaReplayBuffer;
+    // The link which link-less AVRCP_MEDIA was last guessed to belong to, and how many
+    // lines were delivered to it, until the owner is confirmed
+    private int guessedMediaLinkId = -1;
+    private long guessedMediaMillis;
+    private int guessedMediaCount;
+
+    private final DeviceRegistry deviceRegistry;
+    private final PhonebookStore phonebookStore;
+    // Loads and saves the device and phonebook caches off the main thread
+    private final ExecutorService storageExecutor;
+    // Addresses whose phonebook has been pulled since the module connected
+    private final HashSet<String> syncedPhonebooks;
+    // The PBAP links, by address, waiting for the phonebook being pulled to finish
+    private final LinkedHashMap<String, Integer> queuedPhonebookLinks;
+    private final SparseArray<String> linkAddresses;
 
     MelodyAudioManager(Context context) {
         this.context = context;
 
-        pendingCommands = new PriorityQueue<>();
         audioSources = new SparseArray<>();
-        bufferedMediaData = new ArrayList<>();
+        volumeObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (activeVolumeController != null) {
+                    activeVolumeController.onStreamVolumeChanged();
+                }
+            }
+        };
+        mediaReplayBuffer = new MediaReplayBuffer();
         devices = new ArrayList<>();
 
+        phonebookStore = new PhonebookStore(new File(context.getFilesDir(), "phonebooks"));
+        storageExecutor = Executors.newSingleThreadExecutor();
+        syncedPhonebooks = new HashSet<>();
+        queuedPhonebookLinks = new LinkedHashMap<>();
+        linkAddresses = new SparseArray<>();
+
         melodyAudioUartConnection = new MelodyAudioUartConnection(context, 115200);
         melodyAudioUartConnection.setShowNotifications(true);
-        melodyAudioUartConnection.registerConnectionChangeListener(this);
+        // Audio sources own media sessions, so keep callbacks on the main thread
+        melodyAudioUartConnection.registerConnectionChangeListener(
+                this,
+                melodyAudioUartConnection.getMainThreadExecutor()
+        );
 
         melodyAudioUartInterface = melodyAudioUartConnection.getInterface();
-        melodyAudioUartInterface.registerMelodyAudioCallback(this);
+        subscribeEvents(melodyAudioUartConnection.getMainThreadExecutor());
+
+        deviceRegistry = new DeviceRegistry(new File(context.getFilesDir(), "devices"), storageExecutor);
+        deviceRegistry.attach(melodyAudioUartInterface);
+        deviceRegistry.registerDeviceListener(new DeviceRegistry.DeviceListener() {
+            @Override
+            public void onDeviceUpdated(final DeviceRegistry.Device device) {
+                melodyAudioUartConnection.getMainThreadExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        putDevice(device);
+                    }
+                });
+            }
+
+            @Override
+            public void onDeviceRemoved(final DeviceRegistry.Device device) {
+                melodyAudioUartConnection.getMainThreadExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        removeDevice(device.getAddress());
+                    }
+                });
+            }
+        });
+        loadDevices();
 
         running = false;
     }
 
+    /**
+     * Subscribes to only the events the manager handles, so the rest are never decoded
+     * or posted to the main thread
+     */
+    private void subscribeEvents(Executor mainThreadExecutor) {
+        melodyAudioUartInterface.subscribe(
+                MelodyAudioEvent.LinkStatusEvent.class,
+                new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.LinkStatusEvent>() {
+                    @Override
+                    public void onEvent(MelodyAudioEvent.LinkStatusEvent event) {
+                        onLinkStatusReceived(
+                                event.getLinkId(),
+                                event.getLinkType(),
+                                event.getAddress(),
+                                event.getExtras()
+                        );
+                    }
+                },
+                mainThreadExecutor
+        );
+
+        melodyAudioUartInterface.subscribe(
+                MelodyAudioEvent.CallerNumberEvent.class,
+                new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.CallerNumberEvent>() {
+                    @Override
+                    public void onEvent(MelodyAudioEvent.CallerNumberEvent event) {
+                        onCallerNumberReceived(event.getLinkId(), event.getNumber());
+                    }
+                },
+                mainThreadExecutor
+        );
+
+        melodyAudioUartInterface.subscribe(
+                MelodyAudioEvent.ListEvent.class,
+                new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.ListEvent>() {
+                    @Override
+                    public void onEvent(MelodyAudioEvent.ListEvent event) {
+                        onListReceived(event.getAddress());
+                    }
+                },
+                mainThreadExecutor
+        );
+
+        melodyAudioUartInterface.subscribe(
+                MelodyAudioEvent.AvrcpEvent.class,
+                new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.AvrcpEvent>() {
+                    @Override
+                    public void onEvent(MelodyAudioEvent.AvrcpEvent event) {
+                        onAVRCPReceived(event.getLinkId(), event.getAvrcpType(), event.getExtras());
+                    }
+                },
+                mainThreadExecutor
+        );
+
+        melodyAudioUartInterface.subscribe(
+                MelodyAudioEvent.AbsVolEvent.class,
+                new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.AbsVolEvent>() {
+                    @Override
+                    public void onEvent(MelodyAudioEvent.AbsVolEvent event) {
+                        onABSVolReceived(event.getLinkId(), event.getVolume());
+                    }
+                },
+                mainThreadExecutor
+        );
+
+        melodyAudioUartInterface.subscribe(
+                MelodyAudioEvent.A2dpStreamEvent.class,
+                new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.A2dpStreamEvent>() {
+                    @Override
+                    public void onEvent(MelodyAudioEvent.A2dpStreamEvent event) {
+                        onA2DPStreamStatusReceived(event.getLinkId(), event.getStreamStatus());
+                    }
+                },
+                mainThreadExecutor
+        );
+
+        melodyAudioUartInterface.subscribe(
+                MelodyAudioEvent.LinkLossEvent.class,
+                new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.LinkLossEvent>() {
+                    @Override
+                    public void onEvent(MelodyAudioEvent.LinkLossEvent event) {
+                        onLinkLossReceived(event.getLinkId(), event.isLost());
+                    }
+                },
+                mainThreadExecutor
+        );
+
+        melodyAudioUartInterface.subscribe(
+                MelodyAudioEvent.ErrorEvent.class,
+                new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.ErrorEvent>() {
+                    @Override
+                    public void onEvent(MelodyAudioEvent.ErrorEvent event) {
+                        onErrorReceived(event.getCode());
+                    }
+                },
+                mainThreadExecutor
+        );
+    }
+
     public void start() {
         if (!running) {
             running = true;
+            // Stream volume changes are stored as system settings
+            context.getContentResolver().registerContentObserver(
+                    Settings.System.CONTENT_URI,
+                    true,
+                    volumeObserver
+            );
             melodyAudioUartConnection.open();
         }
     }
 
     public void stop() {
         if (running) {
+            running = false;
+            context.getContentResolver().unregisterContentObserver(volumeObserver);
+
+            // Before closing, so playing sources can still be paused
+            for (int audioSourceIndex = 0; audioSourceIndex < audioSources.size(); audioSourceIndex++) {
+                audioSources.valueAt(audioSourceIndex).destroy();
+            }
+            audioSources.clear();
+
             melodyAudioUartConnection.close();
         }
     }
 
+    void setActiveVolumeController(VolumeController volumeController) {
+        activeVolumeController = volumeController;
+    }
+
+    /**
+     * @return true if stream volume changes go to the controller, or no link has played yet
+     */
+    boolean isActiveVolumeController(VolumeController volumeController) {
+        return activeVolumeController == null || activeVolumeController == volumeController;
+    }
+
+    void onVolumeControllerReleased(VolumeController volumeController) {
+        if (activeVolumeController == volumeController) {
+            activeVolumeController = null;
+        }
+    }
+
+    /**
+     * @return the number of AVRCP_MEDIA lines without a link which were discarded before
+     * their link was known, because too many arrived or they went stale. Must be called
+     * on the main thread.
+     */
+    public long getDroppedMediaCount() {
+        return mediaReplayBuffer.getDroppedCount();
+    }
+
+    /**
+     * @return the number of AVRCP_MEDIA lines without a link which were guessed to belong
+     * to the playing link, but turned out to belong to another. Must be called on the
+     * main thread.
+     */
+    public long getMisroutedMediaCount() {
+        return mediaReplayBuffer.getMisroutedCount();
+    }
+
     public void sendCommand(String command) {
         melodyAudioUartInterface.sendCommand(command);
     }
@@ -75,61 +301,81 @@ public class MelodyAudioManager extends MelodyAudioUartInterface.MelodyAudioUart
         melodyAudioUartInterface.sendCommand(command, args);
     }
 
-    @Override
-    public void onLinkStatusReceived(int linkId, String status, String linkType, String address, String[] extras) {
+    public void sendCommand(String command, String args, PendingCommand.CommandCallback callback) {
+        melodyAudioUartInterface.sendCommand(command, args, callback);
+    }
+
+    private void onLinkStatusReceived(int linkId, String linkType, String address, String[] extras) {
         Log.d(TAG, "Link status " + linkId + " " + address);
-        if (linkType.equals("AVRCP")) {
-            if ()
+        linkAddresses.put(linkId, address);
+
+        if (linkType.equals("PBAP") && !syncedPhonebooks.contains(address)) {
+            syncPhonebook(linkId, address);
         }
-    }
 
-    @Override
-    public void onCallStatusReceived(int linkId, int linkType, String callStatus) {
-        Log.d(TAG, "Call status " + callStatus);
-    }
+        if (linkType.equals("AVRCP") && audioSources.get(linkId) == null) {
+            DeviceRegistry.Device device = deviceRegistry.getDevice(address);
+            String deviceName = device != null && device.getName() != null ? device.getName() : address;
+            audioSources.put(linkId, new A2DPAudioSource(context, this, linkId, deviceName));
+        }
 
-    @Override
-    public void onCallerNumberReceived(int linkId, String number) {
-        Log.d(TAG, "Someone is calling! " + number);
+        if (Arrays.asList(extras).contains("PLAYING")) {
+            onMediaOwnerFound(findAudioSourceLink(address));
+        }
     }
 
-    @Override
-    public void onListReceived(String address, String[] supportedProfiles) {
-        Log.d(TAG, "Saved device: " + address);
-        Log.d(TAG, "Getting name");
-        sendCommand(MelodyAudioUartInterface.Commands.NAME, address);
-    }
+    private void onCallerNumberReceived(int linkId, String number) {
+        String address = linkAddresses.get(linkId);
+        PhonebookContact contact = address != null ? phonebookStore.lookup(address, number) : null;
 
-    @Override
-    public void onNameReceived(String address, String name) {
-        Log.d(TAG, "Device name " + name);
+        if (contact != null) {
+            Log.d(TAG, contact.getName() + " is calling! " + number);
+        } else {
+            Log.d(TAG, "Someone is calling! " + number);
+        }
     }
 
-    @Override
-    public void onPreferenceReceived(String key, String value) {
-        Log.d(TAG, "Preference received " + key + ": " + value);
+    private void onListReceived(String address) {
+        Log.d(TAG, "Saved device: " + address);
+        loadPhonebook(address);
     }
 
-    @Override
-    public void onAVRCPReceived(int linkId, String avrcpType, String[] extras) {
+    private void onAVRCPReceived(int linkId, String avrcpType, String[] extras) {
         Log.d(TAG, "AVRCP received: " + linkId + " " + avrcpType + " " + Arrays.toString(extras));
 
         if (linkId == -1) {
-            // We don't have a link Id, so see who this data belongs to
+            // We don't have a link Id, so only guess who this data belongs to if a
+            // single source is playing
+            A2DPAudioSource playingSource = null;
             for (int audioSourceIndex = 0; audioSourceIndex < audioSources.size(); audioSourceIndex++) {
                 A2DPAudioSource audioSource = audioSources.valueAt(audioSourceIndex);
                 if (audioSource.getPlaybackState() == PlaybackStateCompat.STATE_PLAYING) {
-                    audioSource.onAVRCPReceived(avrcpType, extras);
-                    return;
+                    if (playingSource != null) {
+                        playingSource = null;
+                        break;
+                    }
+                    playingSource = audioSource;
                 }
             }
 
-            // We couldn't find a valid playing source so buffer this data
-            bufferedMediaData.add(avrcpType + " " + TextUtils.join(" ", extras));
-            // And send a command asking for up to date info
-            if (bufferedMediaData.size() < 2) {
+            long now = SystemClock.elapsedRealtime();
+            if (playingSource != null && mediaReplayBuffer.isEmpty(now)) {
+                if (guessedMediaLinkId != playingSource.getLinkId()) {
+                    guessedMediaLinkId = playingSource.getLinkId();
+                    guessedMediaCount = 0;
+                }
+                guessedMediaMillis = now;
+                guessedMediaCount++;
+
+                playingSource.onAVRCPReceived(avrcpType, extras);
+                return;
+            }
+
+            // Hold this data until we know who it belongs to, and ask for up to date info
+            if (mediaReplayBuffer.isEmpty(now)) {
                 sendCommand(MelodyAudioUartInterface.Commands.STATUS);
             }
+            mediaReplayBuffer.add(avrcpType, extras, now);
         } else {
             A2DPAudioSource audioSource = audioSources.get(linkId);
             if (audioSource == null) {
@@ -137,12 +383,52 @@ public class MelodyAudioManager extends MelodyAudioUartInterface.MelodyAudioUart
                 audioSources.put(linkId, audioSource);
             }
 
+            if (avrcpType.equals(MelodyAudioUartInterface.ResponseKeys.AVRCP_PLAY)) {
+                onMediaOwnerFound(linkId);
+            }
+
             audioSource.onAVRCPReceived(avrcpType, extras);
         }
     }
 
-    @Override
-    public void onErrorReceived(int code) {
+    private void onABSVolReceived(int linkId, int volume) {
+        A2DPAudioSource audioSource = audioSources.get(linkId);
+        if (audioSource != null) {
+            audioSource.onABSVolReceived(volume);
+        }
+    }
+
+    private void onA2DPStreamStatusReceived(int linkId, String a2dpStreamStatus) {
+        if (a2dpStreamStatus.equals(MelodyAudioUartInterface.ResponseKeys.A2DP_STREAM_START)) {
+            String address = linkAddresses.get(linkId);
+            if (address != null) {
+                onMediaOwnerFound(findAudioSourceLink(address));
+            }
+        }
+    }
+
+    /**
+     * Destroys the audio sources of a device whose link was lost, and asks for the links
+     * again if it recovers, so the sources are recreated
+     */
+    private void onLinkLossReceived(int linkId, boolean lost) {
+        if (!lost) {
+            sendCommand(MelodyAudioUartInterface.Commands.STATUS);
+            return;
+        }
+
+        // Link ids are the device's index on the module, then the profile
+        int device = linkId / 10;
+        for (int audioSourceIndex = audioSources.size() - 1; audioSourceIndex >= 0; audioSourceIndex--) {
+            if (audioSources.keyAt(audioSourceIndex) / 10 == device) {
+                Log.d(TAG, "Lost link " + audioSources.keyAt(audioSourceIndex));
+                audioSources.valueAt(audioSourceIndex).destroy();
+                audioSources.removeAt(audioSourceIndex);
+            }
+        }
+    }
+
+    private void onErrorReceived(int code) {
         if (code == MelodyAudioUartInterface.Errors.NAME_NOT_FOUND) {
             Log.d(TAG, "Could not find device name");
         }
@@ -152,9 +438,187 @@ public class MelodyAudioManager extends MelodyAudioUartInterface.MelodyAudioUart
     public void onConnectionStateChange(int newState) {
         if (newState == MelodyAudioUartConnection.STATE_CONNECTED) {
             Log.d(TAG, "Connected");
-            sendCommand(MelodyAudioUartInterface.Commands.LIST);
+            syncedPhonebooks.clear();
+            queuedPhonebookLinks.clear();
+            // Only queries the names which aren't cached
+            deviceRegistry.refresh();
             sendCommand(MelodyAudioUartInterface.Commands.STATUS);
-            sendCommand(MelodyAudioUartInterface.Commands.GET, MelodyAudioUartInterface.ConfigKeys.NAME);
+            sendCommand(
+                    MelodyAudioUartInterface.Commands.GET,
+                    MelodyAudioUartInterface.ConfigKeys.NAME,
+                    new PendingCommand.CommandCallback() {
+                        @Override
+                        public void onCommandResult(CommandResult result) {
+                            if (result.isOk() && !result.getResponses().isEmpty()) {
+                                Log.d(TAG, "Module " + result.getResponses().get(0));
+                            }
+                        }
+                    }
+            );
+        }
+    }
+
+    /**
+     * Replays the AVRCP_MEDIA held for the link which is now known to be playing, and
+     * counts what was guessed to belong to another link as misrouted
+     */
+    private void onMediaOwnerFound(int linkId) {
+        A2DPAudioSource audioSource = audioSources.get(linkId);
+        if (audioSource == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (guessedMediaLinkId != -1 && guessedMediaLinkId != linkId &&
+                now - guessedMediaMillis <= mediaReplayBuffer.getMaxAgeMs()) {
+            mediaReplayBuffer.onMisrouted(guessedMediaCount);
+            Log.d(TAG, guessedMediaCount + " media lines misrouted to " + guessedMediaLinkId);
+        }
+        guessedMediaLinkId = -1;
+        guessedMediaCount = 0;
+
+        int replayed = mediaReplayBuffer.replay(audioSource, now);
+        if (replayed > 0) {
+            Log.d(TAG, "Replayed " + replayed + " media lines to " + linkId +
+                    ", " + mediaReplayBuffer.getDroppedCount() + " dropped and " +
+                    mediaReplayBuffer.getMisroutedCount() + " misrouted so far");
+        }
+    }
+
+    /**
+     * @return the AVRCP link with an audio source for the device, or -1
+     */
+    private int findAudioSourceLink(String address) {
+        for (int audioSourceIndex = 0; audioSourceIndex < audioSources.size(); audioSourceIndex++) {
+            int linkId = audioSources.keyAt(audioSourceIndex);
+            if (address.equals(linkAddresses.get(linkId))) {
+                return linkId;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the cached devices, so they are shown before the module has listed them
+     */
+    private void loadDevices() {
+        storageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deviceRegistry.load();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not load devices", e);
+                    return;
+                }
+
+                for (final DeviceRegistry.Device device: deviceRegistry.getDevices()) {
+                    melodyAudioUartConnection.getMainThreadExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            putDevice(device);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void putDevice(DeviceRegistry.Device device) {
+        int index = indexOfDevice(device.getAddress());
+        BluetoothSourceDevice.Link[] links = index != -1 ?
+                devices.get(index).getLinks() :
+                new BluetoothSourceDevice.Link[0];
+
+        BluetoothSourceDevice sourceDevice = new BluetoothSourceDevice(device.getName(), device.getAddress(), links);
+        if (index != -1) {
+            devices.set(index, sourceDevice);
+        } else {
+            devices.add(sourceDevice);
+        }
+    }
+
+    private void removeDevice(String address) {
+        int index = indexOfDevice(address);
+        if (index != -1) {
+            devices.remove(index);
+        }
+    }
+
+    private int indexOfDevice(String address) {
+        for (int i = 0; i < devices.size(); i++) {
+            if (devices.get(i).getAddress().equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the stored phonebook, so callers can be named before it has been pulled again
+     */
+    private void loadPhonebook(final String address) {
+        storageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    phonebookStore.load(address);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not load phonebook for " + address, e);
+                }
+            }
+        });
+    }
+
+    private void syncPhonebook(int linkId, final String address) {
+        if (melodyAudioUartInterface.isPullingPhonebook()) {
+            // Another phonebook is being pulled, this one is pulled once it finishes
+            Log.d(TAG, "Queued phonebook pull for " + address);
+            queuedPhonebookLinks.put(address, linkId);
+            return;
+        }
+        queuedPhonebookLinks.remove(address);
+
+        melodyAudioUartInterface.pullPhonebook(
+                linkId,
+                phonebookStore.newSync(address, new PhonebookStore.SyncCallback() {
+                    @Override
+                    public void onSyncFinished(final PhonebookStore.Sync sync) {
+                        Log.d(TAG, "Phonebook sync for " + sync.getAddress() +
+                                (sync.isComplete() ? " complete" : " failed") + ": " +
+                                sync.getAdded() + " added, " +
+                                sync.getRemoved() + " removed, " +
+                                sync.getUnchanged() + " unchanged", sync.getError());
+
+                        melodyAudioUartConnection.getMainThreadExecutor().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Otherwise pulled again the next time its link is reported
+                                if (sync.isComplete()) {
+                                    syncedPhonebooks.add(address);
+                                }
+                                syncNextPhonebook();
+                            }
+                        });
+                    }
+                }),
+                storageExecutor
+        );
+    }
+
+    /**
+     * Starts pulling the phonebook which has been queued longest, and not pulled since
+     */
+    private void syncNextPhonebook() {
+        Iterator<Map.Entry<String, Integer>> iterator = queuedPhonebookLinks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Integer> next = iterator.next();
+            iterator.remove();
+
+            if (!syncedPhonebooks.contains(next.getKey())) {
+                syncPhonebook(next.getValue(), next.getKey());
+                return;
+            }
         }
     }
 }
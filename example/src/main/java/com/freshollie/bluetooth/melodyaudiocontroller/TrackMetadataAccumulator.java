@@ -0,0 +1,184 @@
+package com.freshollie.bluetooth.melodyaudiocontroller;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.util.Arrays;
+
+/**
+ * Collects the AVRCP_MEDIA fields a link sends for a track, and publishes them as one
+ * metadata update.
+ *
+ * The module sends a burst of fields on every track change. They are published once every
+ * field has been received, a field repeats, or no field has arrived for
+ * {@code windowMs}. A burst with a title is a new track, anything else updates the
+ * published track. Updates which change nothing are not published.
+ *
+ * Must be used on the main thread.
+ */
+class TrackMetadataAccumulator {
+    static final long DEFAULT_WINDOW_MS = 250;
+
+    interface MetadataListener {
+        void onMetadata(MediaMetadataCompat metadata);
+    }
+
+    private static final int FIELD_TITLE = 0;
+    private static final int FIELD_ARTIST = 1;
+    private static final int FIELD_ALBUM = 2;
+    private static final int FIELD_GENRE = 3;
+    private static final int FIELD_TRACK_NUMBER = 4;
+    private static final int FIELD_TOTAL_NUMBER = 5;
+    private static final int FIELD_PLAYING_TIME = 6;
+    private static final int FIELD_COUNT = 7;
+
+    private final MetadataListener listener;
+    private final long windowMs;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final String[] pending = new String[FIELD_COUNT];
+    private int pendingCount;
+
+    private final String[] published = new String[FIELD_COUNT];
+    private String mediaId;
+
+    private final Runnable publishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+
+    TrackMetadataAccumulator(MetadataListener listener) {
+        this(listener, DEFAULT_WINDOW_MS);
+    }
+
+    TrackMetadataAccumulator(MetadataListener listener, long windowMs) {
+        this.listener = listener;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * @param data an AVRCP_MEDIA field, such as "TITLE: Song"
+     */
+    void onField(String data) {
+        int separator = data.indexOf(':');
+        if (separator == -1) {
+            return;
+        }
+
+        int field = fieldOf(data.substring(0, separator).trim());
+        if (field == -1) {
+            return;
+        }
+
+        if (pending[field] != null) {
+            // The next track's burst has started
+            publish();
+        }
+
+        pending[field] = data.substring(separator + 1).trim();
+        pendingCount++;
+
+        handler.removeCallbacks(publishRunnable);
+        if (pendingCount == FIELD_COUNT) {
+            publish();
+        } else {
+            handler.postDelayed(publishRunnable, windowMs);
+        }
+    }
+
+    /**
+     * Sets the media id published with every track, and republishes the current track
+     */
+    void setMediaId(String mediaId) {
+        this.mediaId = mediaId;
+        listener.onMetadata(build());
+    }
+
+    /**
+     * Discards the fields waiting to be published
+     */
+    void cancel() {
+        handler.removeCallbacks(publishRunnable);
+        Arrays.fill(pending, null);
+        pendingCount = 0;
+    }
+
+    private void publish() {
+        handler.removeCallbacks(publishRunnable);
+        if (pendingCount == 0) {
+            return;
+        }
+
+        boolean newTrack = pending[FIELD_TITLE] != null;
+        boolean changed = false;
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            String value = pending[i] != null || newTrack ? pending[i] : published[i];
+            if (value == null ? published[i] != null : !value.equals(published[i])) {
+                published[i] = value;
+                changed = true;
+            }
+        }
+
+        Arrays.fill(pending, null);
+        pendingCount = 0;
+
+        if (changed) {
+            listener.onMetadata(build());
+        }
+    }
+
+    private MediaMetadataCompat build() {
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder();
+        putString(builder, MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaId);
+        putString(builder, MediaMetadataCompat.METADATA_KEY_TITLE, published[FIELD_TITLE]);
+        putString(builder, MediaMetadataCompat.METADATA_KEY_ARTIST, published[FIELD_ARTIST]);
+        putString(builder, MediaMetadataCompat.METADATA_KEY_ALBUM, published[FIELD_ALBUM]);
+        putString(builder, MediaMetadataCompat.METADATA_KEY_GENRE, published[FIELD_GENRE]);
+        putLong(builder, MediaMetadataCompat.METADATA_KEY_TRACK_NUMBER, published[FIELD_TRACK_NUMBER]);
+        putLong(builder, MediaMetadataCompat.METADATA_KEY_NUM_TRACKS, published[FIELD_TOTAL_NUMBER]);
+        putLong(builder, MediaMetadataCompat.METADATA_KEY_DURATION, published[FIELD_PLAYING_TIME]);
+        return builder.build();
+    }
+
+    private static void putString(MediaMetadataCompat.Builder builder, String key, String value) {
+        if (value != null) {
+            builder.putString(key, value);
+        }
+    }
+
+    private static void putLong(MediaMetadataCompat.Builder builder, String key, String value) {
+        if (value == null) {
+            return;
+        }
+
+        try {
+            builder.putLong(key, Long.parseLong(value));
+        } catch (NumberFormatException ignored) {
+            // Some phones send an empty or non numeric value when they don't know it
+        }
+    }
+
+    private static int fieldOf(String key) {
+        switch (key) {
+            case "TITLE":
+                return FIELD_TITLE;
+            case "ARTIST":
+                return FIELD_ARTIST;
+            case "ALBUM":
+                return FIELD_ALBUM;
+            case "GENRE":
+                return FIELD_GENRE;
+            case "TRACK_NUMBER":
+                return FIELD_TRACK_NUMBER;
+            case "TOTAL_NUMBER":
+                return FIELD_TOTAL_NUMBER;
+            case "PLAYING_TIME(MS)":
+                return FIELD_PLAYING_TIME;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.freshollie.bluetooth.melodyaudiocontroller;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.freshollie.uart.melodyaudio.MelodyAudioUartInterface;
+
+/**
+ * Keeps a link's volume on the module in step with the Android music stream volume.
+ *
+ * ABS_VOL from the phone, 0 to {@link #MAX_ABS_VOLUME}, sets the stream volume, and stream
+ * volume changes, such as from a rotary knob, set the module's volume, 0 to
+ * {@link #MAX_MODULE_LEVEL}. Changes to the module are coalesced so at most one VOLUME
+ * command is sent every {@code intervalMs}, with the latest level.
+ *
+ * There is one stream but a controller per link, so only the controller which last
+ * started playing is active. The manager observes the stream volume once and passes
+ * changes to the active controller, and ABS_VOL from any other link is ignored, so it
+ * isn't echoed to the active one.
+ *
+ * Must be used on the main thread.
+ */
+class VolumeController {
+    static final int MAX_ABS_VOLUME = 127;
+    static final int MAX_MODULE_LEVEL = 0xF;
+    static final int DUCK_LEVEL = 5;
+    static final long DEFAULT_INTERVAL_MS = 100;
+
+    private final AudioManager audioManager;
+    private final MelodyAudioManager melodyAudioManager;
+    private final int linkId;
+    private final long intervalMs;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // The stream volume last set from ABS_VOL, so it isn't echoed back to the module
+    private int appliedStreamVolume = -1;
+
+    private boolean ducked;
+    private int pendingLevel = -1;
+    private int sentLevel = -1;
+    private long sentMillis;
+
+    private final Runnable sendRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendPendingLevel();
+        }
+    };
+
+    VolumeController(Context context, MelodyAudioManager manager, int linkId) {
+        this(context, manager, linkId, DEFAULT_INTERVAL_MS);
+    }
+
+    /**
+     * @param linkId the A2DP link whose volume is set
+     */
+    VolumeController(Context context, MelodyAudioManager manager, int linkId, long intervalMs) {
+        this.linkId = linkId;
+        this.intervalMs = intervalMs;
+        audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        melodyAudioManager = manager;
+    }
+
+    /**
+     * Makes this the active controller and sets the module to the stream volume, such as
+     * when playback starts
+     */
+    void sync() {
+        melodyAudioManager.setActiveVolumeController(this);
+        appliedStreamVolume = -1;
+        ducked = false;
+        // The module may have been reset since, so always send it
+        sentLevel = -1;
+        requestLevel(streamToLevel(audioManager.getStreamVolume(AudioManager.STREAM_MUSIC)));
+    }
+
+    void duck() {
+        ducked = true;
+        requestLevel(Math.min(DUCK_LEVEL, streamToLevel(audioManager.getStreamVolume(AudioManager.STREAM_MUSIC))));
+    }
+
+    /**
+     * Puts the module back to the stream volume after {@link #duck()}
+     */
+    void restore() {
+        if (ducked) {
+            ducked = false;
+            requestLevel(streamToLevel(audioManager.getStreamVolume(AudioManager.STREAM_MUSIC)));
+        }
+    }
+
+    void onABSVolReceived(int volume) {
+        if (!melodyAudioManager.isActiveVolumeController(this)) {
+            return;
+        }
+
+        int maxStreamVolume = audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
+        int streamVolume = Math.round(
+                (float) Math.max(0, Math.min(volume, MAX_ABS_VOLUME)) * maxStreamVolume / MAX_ABS_VOLUME
+        );
+
+        if (streamVolume != audioManager.getStreamVolume(AudioManager.STREAM_MUSIC)) {
+            appliedStreamVolume = streamVolume;
+            audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, streamVolume, 0);
+        }
+    }
+
+    void release() {
+        handler.removeCallbacks(sendRunnable);
+        melodyAudioManager.onVolumeControllerReleased(this);
+    }
+
+    /**
+     * Called by the manager when this is the active controller
+     */
+    void onStreamVolumeChanged() {
+        int streamVolume = audioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
+        if (streamVolume == appliedStreamVolume) {
+            // Our own change from ABS_VOL, the phone already has this volume
+            appliedStreamVolume = -1;
+            return;
+        }
+        appliedStreamVolume = -1;
+
+        if (!ducked) {
+            requestLevel(streamToLevel(streamVolume));
+        }
+    }
+
+    /**
+     * Sends the level now if no command was sent in the last interval, otherwise once the
+     * interval has passed. A later request replaces one which is waiting.
+     */
+    private void requestLevel(int level) {
+        pendingLevel = level;
+
+        long sinceSent = SystemClock.elapsedRealtime() - sentMillis;
+        handler.removeCallbacks(sendRunnable);
+        if (sinceSent >= intervalMs) {
+            sendPendingLevel();
+        } else {
+            handler.postDelayed(sendRunnable, intervalMs - sinceSent);
+        }
+    }
+
+    private void sendPendingLevel() {
+        if (pendingLevel == -1 || pendingLevel == sentLevel) {
+            pendingLevel = -1;
+            return;
+        }
+
+        melodyAudioManager.sendCommand(
+                MelodyAudioUartInterface.Commands.VOLUME,
+                linkId + " " + Integer.toHexString(pendingLevel).toUpperCase()
+        );
+        sentLevel = pendingLevel;
+        sentMillis = SystemClock.elapsedRealtime();
+        pendingLevel = -1;
+    }
+
+    private int streamToLevel(int streamVolume) {
+        int maxStreamVolume = audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
+        return maxStreamVolume == 0 ? 0 : Math.round((float) streamVolume * MAX_MODULE_LEVEL / maxStreamVolume);
+    }
+}
@@ -0,0 +1,113 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Consumes every callback argument, so the fan-out can't be optimised away.
+ */
+class BlackholeCallback extends MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback {
+    private final Blackhole blackhole;
+
+    BlackholeCallback(Blackhole blackhole) {
+        this.blackhole = blackhole;
+    }
+
+    @Override
+    public void onAVRCPReceived(int linkId, String avrcpType, String[] extras) {
+        blackhole.consume(linkId);
+        blackhole.consume(avrcpType);
+        blackhole.consume(extras);
+    }
+
+    @Override
+    public void onA2DPStreamStatusReceived(int linkId, String a2dpStreamStatus) {
+        blackhole.consume(linkId);
+        blackhole.consume(a2dpStreamStatus);
+    }
+
+    @Override
+    public void onABSVolReceived(int linkId, int volume) {
+        blackhole.consume(linkId);
+        blackhole.consume(volume);
+    }
+
+    @Override
+    public void onCallStatusReceived(int linkId, int linkType, String callStatus) {
+        blackhole.consume(linkId);
+        blackhole.consume(linkType);
+        blackhole.consume(callStatus);
+    }
+
+    @Override
+    public void onCallerNumberReceived(int linkId, String number) {
+        blackhole.consume(linkId);
+        blackhole.consume(number);
+    }
+
+    @Override
+    public void onPreferenceReceived(String key, String value) {
+        blackhole.consume(key);
+        blackhole.consume(value);
+    }
+
+    @Override
+    public void onOKReceived() {
+        blackhole.consume(true);
+    }
+
+    @Override
+    public void onErrorReceived(int code) {
+        blackhole.consume(code);
+    }
+
+    @Override
+    public void onPendingReceived() {
+        blackhole.consume(true);
+    }
+
+    @Override
+    public void onPBDataReceived(int linkId, String data) {
+        blackhole.consume(linkId);
+        blackhole.consume(data);
+    }
+
+    @Override
+    public void onReceivePBPullStatusReceived(int linkId, String command) {
+        blackhole.consume(linkId);
+        blackhole.consume(command);
+    }
+
+    @Override
+    public void onNameReceived(String address, String name) {
+        blackhole.consume(address);
+        blackhole.consume(name);
+    }
+
+    @Override
+    public void onLinkLossReceived(int linkId) {
+        blackhole.consume(linkId);
+    }
+
+    @Override
+    public void onStatusReceived(int numConnected, boolean connectable, boolean discoverable, String bleStatus) {
+        blackhole.consume(numConnected);
+        blackhole.consume(connectable);
+        blackhole.consume(discoverable);
+        blackhole.consume(bleStatus);
+    }
+
+    @Override
+    public void onLinkStatusReceived(int linkId, String status, String linkType, String address, String[] extras) {
+        blackhole.consume(linkId);
+        blackhole.consume(status);
+        blackhole.consume(linkType);
+        blackhole.consume(address);
+        blackhole.consume(extras);
+    }
+
+    @Override
+    public void onListReceived(String address, String[] supportedProfiles) {
+        blackhole.consume(address);
+        blackhole.consume(supportedProfiles);
+    }
+}
@@ -0,0 +1,126 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures resolving a CALLER_NUMBER against the {@link CallerIdIndex}, and building the
+ * index from a phonebook, against a HashMap of numbers normalised to their digits.
+ *
+ * Phonebook numbers are stored in international form, and looked up in the national form
+ * the phone reports them in, so the HashMap has to strip both to their last digits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CallerIdIndexBenchmark {
+    private static final int LOOKUPS = 1024;
+
+    @Param({"1000", "10000", "50000"})
+    public int contacts;
+
+    private String[] numbers;
+    private String[] hitNumbers;
+    private String[] missNumbers;
+
+    private CallerIdIndex<String> index;
+    private HashMap<String, String> hashMap;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+
+        numbers = new String[contacts];
+        for (int i = 0; i < contacts; i++) {
+            numbers[i] = String.format("+44 77%02d %06d", random.nextInt(100), random.nextInt(1000000));
+        }
+
+        hitNumbers = new String[LOOKUPS];
+        missNumbers = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            hitNumbers[i] = "0" + digits(numbers[random.nextInt(contacts)]).substring(2);
+            missNumbers[i] = String.format("0161 %03d %04d", random.nextInt(1000), random.nextInt(10000));
+        }
+
+        index = buildIndex();
+        hashMap = buildHashMap();
+    }
+
+    @Benchmark
+    public String indexHit() {
+        return index.get(hitNumbers[next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public String indexMiss() {
+        return index.get(missNumbers[next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public String hashMapHit() {
+        return hashMap.get(suffix(hitNumbers[next++ & (LOOKUPS - 1)]));
+    }
+
+    @Benchmark
+    public String hashMapMiss() {
+        return hashMap.get(suffix(missNumbers[next++ & (LOOKUPS - 1)]));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public CallerIdIndex<String> indexBuild() {
+        return buildIndex();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public HashMap<String, String> hashMapBuild() {
+        return buildHashMap();
+    }
+
+    private CallerIdIndex<String> buildIndex() {
+        CallerIdIndex<String> built = new CallerIdIndex<>();
+        for (String number: numbers) {
+            built.put(number, number);
+        }
+        return built;
+    }
+
+    private HashMap<String, String> buildHashMap() {
+        HashMap<String, String> built = new HashMap<>();
+        for (String number: numbers) {
+            built.put(suffix(number), number);
+        }
+        return built;
+    }
+
+    private static String suffix(String number) {
+        String digits = digits(number);
+        return digits.substring(Math.max(0, digits.length() - CallerIdIndex.SIGNIFICANT_DIGITS));
+    }
+
+    private static String digits(String number) {
+        StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Loads a traffic corpus from the benchmark resources.
+ *
+ * Corpora are stored one response per line, and are returned as the bytes the module
+ * sends for each response, terminated by "\r\n".
+ */
+final class Corpus {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    static final String AVRCP_METADATA = "avrcp-metadata";
+    static final String PHONEBOOK_PULL = "phonebook-pull";
+    static final String CALL_CHURN = "call-churn";
+    static final String STATUS_LIST = "status-list";
+
+    private Corpus() {}
+
+    static String[] loadLines(String name) throws IOException {
+        InputStream inputStream = Corpus.class.getResourceAsStream("/corpus/" + name + ".txt");
+        if (inputStream == null) {
+            throw new IOException("No corpus named " + name);
+        }
+
+        ArrayList<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    static byte[][] load(String name) throws IOException {
+        String[] lines = loadLines(name);
+
+        byte[][] data = new byte[lines.length][];
+        for (int i = 0; i < lines.length; i++) {
+            data[i] = (lines[i] + "\r\n").getBytes(ASCII);
+        }
+
+        return data;
+    }
+}
@@ -0,0 +1,109 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares callback fan-out through the {@link ListenerRegistry} against the
+ * synchronized list it replaced, one event per operation.
+ *
+ * The churn groups dispatch while another thread keeps registering and unregistering
+ * a listener, which is where the synchronized list contends. They also act as a stress
+ * run for the registry: a dispatch must always see every permanent listener, which is
+ * checked on every operation.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ListenerRegistryBenchmark {
+    @Param({"1", "8", "64"})
+    public int listeners;
+
+    private ListenerRegistry<MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback> registry;
+    private ArrayList<MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback> synchronizedList;
+
+    private MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback churnCallback;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        registry = new ListenerRegistry<>(new MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback[0]);
+        synchronizedList = new ArrayList<>();
+
+        for (int i = 0; i < listeners; i++) {
+            BlackholeCallback callback = new BlackholeCallback(blackhole);
+            registry.add(callback);
+            synchronizedList.add(callback);
+        }
+
+        churnCallback = new BlackholeCallback(blackhole);
+    }
+
+    @Benchmark
+    public void registryDispatch() {
+        for (MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback callback: registry.getListeners()) {
+            callback.onABSVolReceived(0, 10);
+        }
+    }
+
+    @Benchmark
+    public void synchronizedDispatch() {
+        synchronized (synchronizedList) {
+            for (MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback callback: synchronizedList) {
+                callback.onABSVolReceived(0, 10);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("registryChurn")
+    @GroupThreads(3)
+    public void registryChurnDispatch() {
+        MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback[] snapshot = registry.getListeners();
+        if (snapshot.length < listeners) {
+            throw new IllegalStateException("Dispatch missed a listener");
+        }
+
+        for (MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback callback: snapshot) {
+            callback.onABSVolReceived(0, 10);
+        }
+    }
+
+    @Benchmark
+    @Group("registryChurn")
+    @GroupThreads(1)
+    public void registryChurnRegister() {
+        registry.add(churnCallback);
+        registry.remove(churnCallback);
+    }
+
+    @Benchmark
+    @Group("synchronizedChurn")
+    @GroupThreads(3)
+    public void synchronizedChurnDispatch() {
+        synchronizedDispatch();
+    }
+
+    @Benchmark
+    @Group("synchronizedChurn")
+    @GroupThreads(1)
+    public void synchronizedChurnRegister() {
+        synchronized (synchronizedList) {
+            synchronizedList.add(churnCallback);
+        }
+        synchronized (synchronizedList) {
+            synchronizedList.remove(churnCallback);
+        }
+    }
+}
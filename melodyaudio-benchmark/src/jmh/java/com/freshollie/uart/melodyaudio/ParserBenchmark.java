@@ -0,0 +1,110 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the whole receive path, onNewData -> framing -> routeResponse -> callback
+ * fan-out, one corpus line per operation.
+ *
+ * The score is therefore lines per second, and the gc profiler's gc.alloc.rate.norm is
+ * the number of bytes allocated per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParserBenchmark {
+    static final Transport NO_TRANSPORT = new Transport() {
+        @Override
+        public void open() {}
+
+        @Override
+        public void close() {}
+
+        @Override
+        public void setReceiver(Receiver receiver) {}
+
+        @Override
+        public boolean write(byte[] data) {
+            return true;
+        }
+    };
+
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Param({
+            Corpus.AVRCP_METADATA,
+            Corpus.PHONEBOOK_PULL,
+            Corpus.CALL_CHURN,
+            Corpus.STATUS_LIST
+    })
+    public String corpus;
+
+    @Param({"1", "8"})
+    public int callbacks;
+
+    /**
+     * callback registers legacy callbacks, which receive every event. absVol only
+     * subscribes to ABS_VOL, so every other response is classified but not parsed
+     */
+    @Param({"callback", "absVol"})
+    public String subscription;
+
+    private byte[][] lines;
+    private int nextLine;
+
+    private MelodyAudioUartInterface melodyAudioUartInterface;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws IOException {
+        lines = Corpus.load(corpus);
+        nextLine = 0;
+
+        melodyAudioUartInterface = new MelodyAudioUartInterface(NO_TRANSPORT, DIRECT_EXECUTOR);
+        for (int i = 0; i < callbacks; i++) {
+            if (subscription.equals("absVol")) {
+                melodyAudioUartInterface.subscribe(MelodyAudioEvent.AbsVolEvent.class, new BlackholeListener(blackhole));
+            } else {
+                melodyAudioUartInterface.registerMelodyAudioCallback(new BlackholeCallback(blackhole));
+            }
+        }
+    }
+
+    private static class BlackholeListener implements MelodyAudioUartInterface.EventListener<MelodyAudioEvent> {
+        private final Blackhole blackhole;
+
+        BlackholeListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onEvent(MelodyAudioEvent event) {
+            blackhole.consume(event);
+        }
+    }
+
+    @Benchmark
+    public void onNewData() {
+        melodyAudioUartInterface.onNewData(lines[nextLine]);
+
+        if (++nextLine == lines.length) {
+            nextLine = 0;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares parsing the fields out of a line with String.split, the way the handlers used
+ * to, against the ResponseTokenizer. One line per operation, so gc.alloc.rate.norm is
+ * the number of bytes allocated per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TokenizerBenchmark {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final String[] ON_OFF = {"ON", "OFF"};
+
+    private static final String[] KNOWN_KEYS = {
+            MelodyAudioUartInterface.ResponseKeys.ABS_VOL,
+            MelodyAudioUartInterface.ResponseKeys.CALL_INCOMING,
+            MelodyAudioUartInterface.BluetoothProfiles.HFPAG_STRING,
+            "HFP"
+    };
+
+    @Param({
+            "ABS_VOL 11 64",
+            "CALL_INCOMING HFP 13",
+            "ERROR 0x0019",
+            "STATE CONNECTED[1] CONNECTABLE[ON] DISCOVERABLE[OFF] BLE[ADVERTISING]",
+            "NAME 20FABB000001 \"Ollie's Phone\""
+    })
+    public String response;
+
+    private String line;
+    private ResponseLine responseLine;
+    private ResponseTokenizer tokenizer;
+
+    @Setup
+    public void setup() throws IOException {
+        line = response;
+
+        byte[] bytes = response.getBytes(ASCII);
+        responseLine = new ResponseLine();
+        responseLine.set(bytes, 0, bytes.length);
+
+        tokenizer = new ResponseTokenizer();
+    }
+
+    @Benchmark
+    public void split(Blackhole blackhole) {
+        if (line.startsWith(MelodyAudioUartInterface.ResponseKeys.ERROR)) {
+            blackhole.consume(Integer.parseInt(line.replace("ERROR 0x", ""), 16));
+
+        } else if (line.startsWith(MelodyAudioUartInterface.ResponseKeys.NAME)) {
+            blackhole.consume(line.split(" ")[1]);
+            blackhole.consume(line.split("\"")[1]);
+
+        } else if (line.startsWith(MelodyAudioUartInterface.ResponseKeys.STATE)) {
+            String[] values = line.split(" ");
+            blackhole.consume(Integer.parseInt(values[1].split("\\[")[1].split("]")[0]));
+            blackhole.consume(values[2].split("\\[")[1].split("]")[0].equals("ON"));
+            blackhole.consume(values[3].split("\\[")[1].split("]")[0].equals("ON"));
+            blackhole.consume(values[4].split("\\[")[1].split("]")[0]);
+
+        } else {
+            String[] values = line.split(" ");
+            blackhole.consume(values[0]);
+            blackhole.consume(values[1]);
+            blackhole.consume(Integer.parseInt(values[2]));
+        }
+    }
+
+    @Benchmark
+    public void tokenizer(Blackhole blackhole) {
+        // Same fields as split, read with the cursor
+        if (responseLine.startsWith(MelodyAudioUartInterface.ResponseKeys.ERROR)) {
+            blackhole.consume(tokenizer.reset(responseLine).skip().nextHexInt());
+
+        } else if (responseLine.startsWith(MelodyAudioUartInterface.ResponseKeys.NAME)) {
+            blackhole.consume(tokenizer.reset(responseLine).skip().nextToken());
+            blackhole.consume(tokenizer.nextQuoted());
+
+        } else if (responseLine.startsWith(MelodyAudioUartInterface.ResponseKeys.STATE)) {
+            tokenizer.reset(responseLine).skip();
+            blackhole.consume(tokenizer.nextBracketInt());
+            blackhole.consume(tokenizer.nextBracketValue(ON_OFF).equals("ON"));
+            blackhole.consume(tokenizer.nextBracketValue(ON_OFF).equals("ON"));
+            blackhole.consume(tokenizer.nextBracketValue(ON_OFF));
+
+        } else {
+            tokenizer.reset(responseLine);
+            blackhole.consume(tokenizer.nextToken(KNOWN_KEYS));
+            blackhole.consume(tokenizer.nextToken(KNOWN_KEYS));
+            blackhole.consume(tokenizer.nextInt());
+        }
+    }
+}
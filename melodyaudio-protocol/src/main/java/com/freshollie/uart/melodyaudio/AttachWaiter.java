@@ -0,0 +1,82 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for a device to be attached.
+ *
+ * The device list is checked whenever {@link #onDeviceAttached()} is called, such as from
+ * an attach broadcast, and otherwise polled at an interval which doubles from
+ * {@code initialPollIntervalMs} up to {@code maxPollIntervalMs}, in case an attach
+ * is never announced.
+ */
+public class AttachWaiter<D> {
+    public static final long DEFAULT_INITIAL_POLL_INTERVAL_MS = 50;
+    public static final long DEFAULT_MAX_POLL_INTERVAL_MS = 1000;
+
+    public interface DeviceProvider<D> {
+        /**
+         * @return the attached device, or null if it is not attached
+         */
+        D findDevice();
+    }
+
+    private final DeviceProvider<D> deviceProvider;
+    private final long initialPollIntervalMs;
+    private final long maxPollIntervalMs;
+
+    private boolean attachSignalled;
+
+    public AttachWaiter(DeviceProvider<D> deviceProvider) {
+        this(deviceProvider, DEFAULT_INITIAL_POLL_INTERVAL_MS, DEFAULT_MAX_POLL_INTERVAL_MS);
+    }
+
+    public AttachWaiter(DeviceProvider<D> deviceProvider, long initialPollIntervalMs, long maxPollIntervalMs) {
+        if (initialPollIntervalMs < 1 || maxPollIntervalMs < initialPollIntervalMs) {
+            throw new IllegalArgumentException("Bad poll intervals");
+        }
+
+        this.deviceProvider = deviceProvider;
+        this.initialPollIntervalMs = initialPollIntervalMs;
+        this.maxPollIntervalMs = maxPollIntervalMs;
+    }
+
+    /**
+     * Blocks until the device is attached
+     *
+     * @return the device, or null if it was not attached within the timeout
+     */
+    public D await(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        long pollIntervalMs = initialPollIntervalMs;
+
+        while (true) {
+            D device = deviceProvider.findDevice();
+            if (device != null) {
+                return device;
+            }
+
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                return null;
+            }
+
+            synchronized (this) {
+                if (!attachSignalled) {
+                    wait(Math.min(pollIntervalMs, remainingMs));
+                }
+                attachSignalled = false;
+            }
+
+            pollIntervalMs = Math.min(pollIntervalMs * 2, maxPollIntervalMs);
+        }
+    }
+
+    /**
+     * Wakes up {@link #await(long)} to check the device list straight away
+     */
+    public synchronized void onDeviceAttached() {
+        attachSignalled = true;
+        notifyAll();
+    }
+}
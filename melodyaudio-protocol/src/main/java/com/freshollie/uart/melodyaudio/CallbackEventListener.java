@@ -0,0 +1,104 @@
+package com.freshollie.uart.melodyaudio;
+
+/**
+ * Subscribes a {@link MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback} to every
+ * event type, calling the callback method for each event.
+ */
+class CallbackEventListener implements MelodyAudioUartInterface.EventListener<MelodyAudioEvent>,
+        ListenerRegistry.Wrapper {
+    private final MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback callback;
+
+    CallbackEventListener(MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public Object getDelegate() {
+        return callback;
+    }
+
+    @Override
+    public void onEvent(MelodyAudioEvent event) {
+        switch (event.getType()) {
+            case MelodyAudioEvent.TYPE_AVRCP:
+                MelodyAudioEvent.AvrcpEvent avrcpEvent = (MelodyAudioEvent.AvrcpEvent) event;
+                callback.onAVRCPReceived(
+                        avrcpEvent.getLinkId(),
+                        avrcpEvent.getAvrcpType(),
+                        avrcpEvent.getExtras()
+                );
+                break;
+            case MelodyAudioEvent.TYPE_A2DP_STREAM:
+                MelodyAudioEvent.A2dpStreamEvent streamEvent = (MelodyAudioEvent.A2dpStreamEvent) event;
+                callback.onA2DPStreamStatusReceived(streamEvent.getLinkId(), streamEvent.getStreamStatus());
+                break;
+            case MelodyAudioEvent.TYPE_ABS_VOL:
+                MelodyAudioEvent.AbsVolEvent absVolEvent = (MelodyAudioEvent.AbsVolEvent) event;
+                callback.onABSVolReceived(absVolEvent.getLinkId(), absVolEvent.getVolume());
+                break;
+            case MelodyAudioEvent.TYPE_CALL_STATUS:
+                MelodyAudioEvent.CallStatusEvent callEvent = (MelodyAudioEvent.CallStatusEvent) event;
+                callback.onCallStatusReceived(
+                        callEvent.getLinkId(),
+                        callEvent.getLinkType(),
+                        callEvent.getCallStatus()
+                );
+                break;
+            case MelodyAudioEvent.TYPE_CALLER_NUMBER:
+                MelodyAudioEvent.CallerNumberEvent numberEvent = (MelodyAudioEvent.CallerNumberEvent) event;
+                callback.onCallerNumberReceived(numberEvent.getLinkId(), numberEvent.getNumber());
+                break;
+            case MelodyAudioEvent.TYPE_PREFERENCE:
+                MelodyAudioEvent.PreferenceEvent preferenceEvent = (MelodyAudioEvent.PreferenceEvent) event;
+                callback.onPreferenceReceived(preferenceEvent.getKey(), preferenceEvent.getValue());
+                break;
+            case MelodyAudioEvent.TYPE_OK:
+                callback.onOKReceived();
+                break;
+            case MelodyAudioEvent.TYPE_ERROR:
+                callback.onErrorReceived(((MelodyAudioEvent.ErrorEvent) event).getCode());
+                break;
+            case MelodyAudioEvent.TYPE_PENDING:
+                callback.onPendingReceived();
+                break;
+            case MelodyAudioEvent.TYPE_PB_DATA:
+                MelodyAudioEvent.PbDataEvent pbDataEvent = (MelodyAudioEvent.PbDataEvent) event;
+                callback.onPBDataReceived(pbDataEvent.getLinkId(), pbDataEvent.getData());
+                break;
+            case MelodyAudioEvent.TYPE_PB_PULL_STATUS:
+                MelodyAudioEvent.PbPullStatusEvent pullEvent = (MelodyAudioEvent.PbPullStatusEvent) event;
+                callback.onReceivePBPullStatusReceived(pullEvent.getLinkId(), pullEvent.getStatus());
+                break;
+            case MelodyAudioEvent.TYPE_NAME:
+                MelodyAudioEvent.NameEvent nameEvent = (MelodyAudioEvent.NameEvent) event;
+                callback.onNameReceived(nameEvent.getAddress(), nameEvent.getName());
+                break;
+            case MelodyAudioEvent.TYPE_LINK_LOSS:
+                callback.onLinkLossReceived(((MelodyAudioEvent.LinkLossEvent) event).getLinkId());
+                break;
+            case MelodyAudioEvent.TYPE_STATUS:
+                MelodyAudioEvent.StatusEvent statusEvent = (MelodyAudioEvent.StatusEvent) event;
+                callback.onStatusReceived(
+                        statusEvent.getNumConnected(),
+                        statusEvent.isConnectable(),
+                        statusEvent.isDiscoverable(),
+                        statusEvent.getBleStatus()
+                );
+                break;
+            case MelodyAudioEvent.TYPE_LINK_STATUS:
+                MelodyAudioEvent.LinkStatusEvent linkEvent = (MelodyAudioEvent.LinkStatusEvent) event;
+                callback.onLinkStatusReceived(
+                        linkEvent.getLinkId(),
+                        linkEvent.getStatus(),
+                        linkEvent.getLinkType(),
+                        linkEvent.getAddress(),
+                        linkEvent.getExtras()
+                );
+                break;
+            case MelodyAudioEvent.TYPE_LIST:
+                MelodyAudioEvent.ListEvent listEvent = (MelodyAudioEvent.ListEvent) event;
+                callback.onListReceived(listEvent.getAddress(), listEvent.getSupportedProfiles());
+                break;
+        }
+    }
+}
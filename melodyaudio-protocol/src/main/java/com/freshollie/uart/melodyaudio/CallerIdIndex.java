@@ -0,0 +1,201 @@
+package com.freshollie.uart.melodyaudio;
+
+/**
+ * Maps phone numbers to values, such as contacts, so an incoming caller's number can be
+ * resolved without allocating.
+ *
+ * Numbers are keyed by their last {@link #SIGNIFICANT_DIGITS} digits, packed into a long
+ * with the digit count, so international and national forms of a number match,
+ * "+44 7700 900123" and "07700 900123" for example. Keys live in an open addressed table
+ * of primitive longs, which holds at most {@code maxNumbers} numbers.
+ *
+ * Not thread safe.
+ */
+public class CallerIdIndex<T> {
+    // The shortest national number length in common use, so national and international
+    // forms still match where the national number is 9 digits, as in France
+    public static final int SIGNIFICANT_DIGITS = 9;
+    public static final int DEFAULT_MAX_NUMBERS = 65536;
+
+    private static final int DIGIT_COUNT_SHIFT = 30;
+    private static final int MIN_CAPACITY = 16;
+
+    private final int maxNumbers;
+
+    // Capacity is always a power of 2, and at least twice the size. 0 marks an empty slot
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    public CallerIdIndex() {
+        this(DEFAULT_MAX_NUMBERS);
+    }
+
+    /**
+     * @param maxNumbers the most numbers the index holds, numbers put beyond it are ignored
+     */
+    public CallerIdIndex(int maxNumbers) {
+        if (maxNumbers < 1) {
+            throw new IllegalArgumentException("Bad max numbers");
+        }
+
+        this.maxNumbers = maxNumbers;
+        keys = new long[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+    }
+
+    /**
+     * Maps the number to the value, replacing any value it had
+     *
+     * @return false if the number has no digits, or the index is full
+     */
+    public boolean put(CharSequence number, T value) {
+        long key = keyOf(number);
+        if (key == 0) {
+            return false;
+        }
+
+        int slot = find(key);
+        if (keys[slot] == key) {
+            values[slot] = value;
+            return true;
+        }
+
+        if (size >= maxNumbers) {
+            return false;
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+            slot = find(key);
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return the value for the number, or null
+     */
+    @SuppressWarnings("unchecked")
+    public T get(CharSequence number) {
+        long key = keyOf(number);
+        if (key == 0) {
+            return null;
+        }
+
+        int slot = find(key);
+        return keys[slot] == key ? (T) values[slot] : null;
+    }
+
+    /**
+     * Removes the number, only if it maps to the value
+     *
+     * @return true if it was removed
+     */
+    public boolean remove(CharSequence number, T value) {
+        long key = keyOf(number);
+        if (key == 0) {
+            return false;
+        }
+
+        int slot = find(key);
+        if (keys[slot] != key || values[slot] != value) {
+            return false;
+        }
+
+        removeSlot(slot);
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        keys = new long[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * @return the number's last significant digits and digit count, packed into a long,
+     * or 0 if it has no digits
+     */
+    static long keyOf(CharSequence number) {
+        long suffix = 0;
+        long modulus = 1;
+        int digits = 0;
+
+        for (int i = number.length() - 1; i >= 0 && digits < SIGNIFICANT_DIGITS; i--) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                suffix += (c - '0') * modulus;
+                modulus *= 10;
+                digits++;
+            }
+        }
+
+        return digits == 0 ? 0 : (long) digits << DIGIT_COUNT_SHIFT | suffix;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot it would go in
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    static int mix(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Empties the slot, shifting back the keys which probed past it so every key stays
+     * reachable without tombstones
+     */
+    private void removeSlot(int slot) {
+        int mask = keys.length - 1;
+        int empty = slot;
+        int next = (slot + 1) & mask;
+
+        while (keys[next] != 0) {
+            int home = mix(keys[next]) & mask;
+            // Move the key back if its home slot is not between the empty slot and it
+            if (((next - home) & mask) >= ((next - empty) & mask)) {
+                keys[empty] = keys[next];
+                values[empty] = values[next];
+                empty = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        keys[empty] = 0;
+        values[empty] = null;
+        size--;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+/**
+ * A transport over a blocking NIO channel, read on a dedicated thread.
+ */
+public abstract class ChannelTransport implements Transport {
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private volatile Receiver receiver;
+
+    private final Object writeLock = new Object();
+
+    private volatile ByteChannel channel;
+    private Thread readThread;
+
+    /**
+     * @return a newly opened, blocking channel
+     */
+    protected abstract ByteChannel openChannel() throws IOException;
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (channel != null) {
+            return;
+        }
+
+        final ByteChannel openedChannel = openChannel();
+        channel = openedChannel;
+
+        readThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(openedChannel);
+            }
+        }, getClass().getSimpleName());
+        readThread.setDaemon(true);
+        readThread.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        ByteChannel openedChannel = channel;
+        if (openedChannel == null) {
+            return;
+        }
+
+        channel = null;
+        readThread.interrupt();
+        readThread = null;
+
+        try {
+            openedChannel.close();
+        } catch (IOException ignored) {}
+    }
+
+    public boolean isOpen() {
+        return channel != null;
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * Blocks until the data is written, the data is dropped and false returned if the
+     * channel is not open or fails
+     */
+    @Override
+    public boolean write(byte[] data) {
+        ByteChannel openedChannel = channel;
+        if (openedChannel == null) {
+            return false;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        synchronized (writeLock) {
+            try {
+                while (buffer.hasRemaining()) {
+                    openedChannel.write(buffer);
+                }
+            } catch (IOException e) {
+                if (channel == openedChannel) {
+                    onChannelClosed(e);
+                    close();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called when the channel fails or reaches end of stream, the transport is closed
+     * afterwards
+     *
+     * @param e the failure, or null at end of stream
+     */
+    protected void onChannelClosed(IOException e) {}
+
+    private void readLoop(ByteChannel openedChannel) {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                buffer.clear();
+                int read = openedChannel.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+
+                Receiver currentReceiver = receiver;
+                if (read > 0 && currentReceiver != null) {
+                    byte[] data = new byte[read];
+                    buffer.flip();
+                    buffer.get(data);
+                    currentReceiver.onDataReceived(data);
+                }
+            }
+        } catch (IOException e) {
+            if (channel == openedChannel) {
+                onChannelClosed(e);
+                close();
+            }
+            return;
+        }
+
+        if (channel == openedChannel) {
+            onChannelClosed(null);
+            close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues outgoing commands and writes them from a single writer thread.
+ *
+ * Commands which are queued close together are coalesced into one transfer, up to
+ * {@code maxBatchSize} bytes. A command queued while the writer is idle is written
+ * straight away, with anything already queued behind it. Once commands are queueing
+ * up behind a write, the writer waits at most {@code maxLatencyMs} after the first
+ * command of a batch for more to arrive. When the queue is full, writers are blocked
+ * for up to {@code offerTimeoutMs} before the data is rejected.
+ *
+ * A writer can only be started once, create a new writer for every connection.
+ */
+public class CoalescingWriter {
+    public static final int DEFAULT_MAX_BATCH_SIZE = 512;
+    public static final long DEFAULT_MAX_LATENCY_MS = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final long DEFAULT_OFFER_TIMEOUT_MS = 100;
+
+    public interface Sink {
+        /**
+         * Called on the writer thread with each coalesced transfer
+         */
+        void write(byte[] data);
+    }
+
+    private final Sink sink;
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+    private final long offerTimeoutMs;
+
+    private final ArrayBlockingQueue<byte[]> queue;
+    private final byte[] batch;
+
+    // A command which didn't fit in the previous batch
+    private byte[] carried;
+    // Whether commands queued up while the previous batch was being written
+    private boolean backlogged;
+
+    private volatile boolean running;
+    private boolean started;
+    private Thread writerThread;
+
+    public CoalescingWriter(Sink sink) {
+        this(sink, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LATENCY_MS, DEFAULT_QUEUE_CAPACITY, DEFAULT_OFFER_TIMEOUT_MS);
+    }
+
+    public CoalescingWriter(Sink sink, int maxBatchSize, long maxLatencyMs, int queueCapacity, long offerTimeoutMs) {
+        this.sink = sink;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMs);
+        this.offerTimeoutMs = offerTimeoutMs;
+
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        batch = new byte[maxBatchSize];
+    }
+
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+
+        started = true;
+        running = true;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, CoalescingWriter.class.getSimpleName());
+        writerThread.start();
+    }
+
+    /**
+     * Stops the writer thread, anything still queued is discarded
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        writerThread.interrupt();
+        writerThread = null;
+        queue.clear();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Queues data to be written
+     *
+     * @return false if the writer is not running, or if the queue stayed full for the
+     * offer timeout
+     */
+    public boolean write(byte[] data) {
+        if (!running) {
+            return false;
+        }
+
+        try {
+            return queue.offer(data, offerTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void writeLoop() {
+        while (running) {
+            try {
+                int length = fillBatch();
+                if (length > 0 && running) {
+                    sink.write(Arrays.copyOf(batch, length));
+                }
+                backlogged = carried != null || !queue.isEmpty();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Blocks for the first command, then coalesces anything else which fits in the
+     * batch and is already queued, or arrives within the latency budget if commands
+     * queued up behind the previous batch
+     */
+    private int fillBatch() throws InterruptedException {
+        byte[] data = carried != null ? carried : queue.take();
+        carried = null;
+
+        if (data.length >= maxBatchSize) {
+            // Too big to coalesce, send it on its own
+            if (running) {
+                sink.write(data);
+            }
+            return 0;
+        }
+
+        int length = append(data, 0);
+        // An idle writer has no backlog to wait for more of
+        long deadline = System.nanoTime() + (backlogged ? maxLatencyNanos : 0);
+
+        while (length < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            data = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (data == null) {
+                break;
+            }
+
+            if (length + data.length > maxBatchSize) {
+                carried = data;
+                break;
+            }
+
+            length = append(data, length);
+        }
+
+        return length;
+    }
+
+    private int append(byte[] data, int position) {
+        System.arraycopy(data, 0, batch, position, data.length);
+        return position + data.length;
+    }
+}
@@ -0,0 +1,35 @@
+package com.freshollie.uart.melodyaudio;
+
+/**
+ * Encodes commands into the bytes sent to the module.
+ */
+final class CommandEncoder {
+    private static final byte ARGUMENT_SEPARATOR = ' ';
+
+    private CommandEncoder() {}
+
+    static byte[] encode(String command, byte terminator) {
+        byte[] data = new byte[command.length() + 1];
+        int position = put(data, 0, command);
+        data[position] = terminator;
+        return data;
+    }
+
+    static byte[] encode(String command, String args, byte terminator) {
+        byte[] data = new byte[command.length() + args.length() + 2];
+        int position = put(data, 0, command);
+        data[position++] = ARGUMENT_SEPARATOR;
+        position = put(data, position, args);
+        data[position] = terminator;
+        return data;
+    }
+
+    private static int put(byte[] data, int position, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            // The module only speaks ascii
+            data[position++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        return position;
+    }
+}
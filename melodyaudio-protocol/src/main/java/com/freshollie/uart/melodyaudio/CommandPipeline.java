@@ -0,0 +1,368 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps up to {@link #getDepth()} commands in flight to the module at once, and
+ * correlates the responses which come back with the command that caused them.
+ *
+ * The module answers commands in the order they were sent, so in flight commands are
+ * resolved FIFO: reply lines are attached to the oldest in flight command, and the next
+ * OK or ERROR resolves it. Commands beyond the pipeline depth wait in the
+ * {@link CommandScheduler} until a slot is free, and are sent in priority order.
+ *
+ * The oldest in flight command is timed out on a timer thread, so a lost response
+ * doesn't stall the pipeline even if nothing else is sent or received. Once a command
+ * has timed out, a late response to it can't be told apart from the responses to the
+ * commands sent after it, so every in flight command is timed out and the pipeline
+ * resyncs: nothing is sent until the responses still owed have arrived and been
+ * discarded, or none has arrived for {@link #RESYNC_QUIET_MS}.
+ *
+ * Commands are written to the transport outside the pipeline's lock, so a slow write
+ * doesn't hold up responses, but always in the order they were put in flight.
+ */
+public class CommandPipeline {
+    public static final int DEFAULT_DEPTH = 4;
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+    public static final long RESYNC_QUIET_MS = 500;
+
+    private static final String TIMEOUT_THREAD_NAME = "MelodyAudioCommandTimeout";
+
+    // Shared by every pipeline, only one check is scheduled per pipeline at a time. Also
+    // times out phonebook pulls.
+    static final ScheduledExecutorService TIMEOUT_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TIMEOUT_THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Transport transport;
+    private final Executor callbackExecutor;
+    private final UartMetrics metrics;
+
+    private final CommandScheduler scheduler = new CommandScheduler();
+    private final ArrayDeque<PendingCommand> inFlightCommands = new ArrayDeque<>();
+    // In flight commands which have not been written yet
+    private final ArrayDeque<PendingCommand> unwrittenCommands = new ArrayDeque<>();
+    // Held while writing, so commands are written one at a time in order
+    private final Object writeLock = new Object();
+
+    private int depth = DEFAULT_DEPTH;
+    private long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MS);
+
+    // The responses owed to timed out commands, nothing is sent while there are any
+    private int lateResponses;
+    private long resyncUntilNanos;
+
+    private boolean timeoutCheckScheduled;
+    private long timeoutCheckNanos;
+    private final Runnable timeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            onTimeoutCheck();
+        }
+    };
+
+    /**
+     * @param callbackExecutor the executor command callbacks are posted to
+     */
+    CommandPipeline(Transport transport, Executor callbackExecutor, UartMetrics metrics) {
+        this.transport = transport;
+        this.callbackExecutor = callbackExecutor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets how many commands can be waiting for a response from the module at once
+     */
+    public void setDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be at least 1");
+        }
+
+        synchronized (this) {
+            this.depth = depth;
+            sendWaitingCommands();
+        }
+
+        writeUnwrittenCommands();
+    }
+
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Sets how long a sent command can go unanswered before it is resolved as timed out,
+     * so a lost response doesn't stall the pipeline
+     */
+    public synchronized void setTimeout(long timeoutMs) {
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        scheduleTimeoutCheck();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlightCommands.size();
+    }
+
+    public synchronized int getWaitingCount() {
+        return scheduler.size();
+    }
+
+    /**
+     * @return the queueing and round trip latency of the commands answered so far
+     * in the {@link CommandScheduler} priority class
+     */
+    public synchronized CommandScheduler.LatencyStats getLatencyStats(int priority) {
+        CommandScheduler.checkPriority(priority);
+        return scheduler.getLatencyStats(priority);
+    }
+
+    /**
+     * Cancels every command of the priority class which has not been sent yet, such
+     * as the rest of a bulk NAME lookup
+     */
+    public void cancelQueued(int priority) {
+        CommandScheduler.checkPriority(priority);
+
+        ArrayList<PendingCommand> cancelled;
+        synchronized (this) {
+            cancelled = scheduler.cancelQueued(priority);
+        }
+
+        resolveAll(cancelled, CommandResult.STATUS_CANCELLED);
+    }
+
+    PendingCommand send(String command, byte[] data, int priority, PendingCommand.CommandCallback callback) {
+        PendingCommand pendingCommand = new PendingCommand(this, command, data, priority, callback, callbackExecutor);
+
+        ArrayList<PendingCommand> expired;
+        synchronized (this) {
+            expired = expireInFlightCommands();
+            scheduler.add(pendingCommand);
+            sendWaitingCommands();
+        }
+
+        writeUnwrittenCommands();
+        resolveAll(expired, CommandResult.STATUS_TIMEOUT);
+        return pendingCommand;
+    }
+
+    synchronized boolean hasInFlightCommand() {
+        return !inFlightCommands.isEmpty();
+    }
+
+    /**
+     * Attaches a reply line to the oldest in flight command
+     */
+    synchronized void onResponseData(String response) {
+        PendingCommand head = inFlightCommands.peek();
+        if (head != null) {
+            head.addResponse(response);
+        }
+    }
+
+    void onOkReceived() {
+        resolveHead(CommandResult.STATUS_OK, -1);
+    }
+
+    void onErrorReceived(int code) {
+        resolveHead(CommandResult.STATUS_ERROR, code);
+    }
+
+    boolean cancel(PendingCommand command) {
+        synchronized (this) {
+            if (!scheduler.remove(command)) {
+                return false;
+            }
+        }
+
+        command.resolve(CommandResult.STATUS_CANCELLED, -1);
+        return true;
+    }
+
+    /**
+     * Cancels every waiting and in flight command, used when the transport is reopened
+     * and no more responses will arrive for them
+     */
+    void reset() {
+        ArrayList<PendingCommand> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<>(inFlightCommands);
+            cancelled.addAll(scheduler.clear());
+            inFlightCommands.clear();
+            unwrittenCommands.clear();
+            lateResponses = 0;
+        }
+
+        resolveAll(cancelled, CommandResult.STATUS_CANCELLED);
+    }
+
+    private void resolveHead(int status, int errorCode) {
+        PendingCommand head;
+        ArrayList<PendingCommand> expired;
+        synchronized (this) {
+            if (lateResponses > 0) {
+                // Answers a command which has already timed out
+                head = null;
+                lateResponses--;
+                resyncUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESYNC_QUIET_MS);
+            } else {
+                head = inFlightCommands.poll();
+            }
+
+            if (head != null) {
+                long now = System.nanoTime();
+                scheduler.recordLatency(head, now);
+                metrics.record(UartMetrics.HISTOGRAM_ROUND_TRIP, now - head.getSentNanos());
+            }
+
+            expired = expireInFlightCommands();
+            sendWaitingCommands();
+        }
+
+        writeUnwrittenCommands();
+        if (head != null) {
+            head.resolve(status, errorCode);
+        }
+        resolveAll(expired, CommandResult.STATUS_TIMEOUT);
+    }
+
+    /**
+     * Moves waiting commands in flight while there are free slots, they are written by
+     * {@link #writeUnwrittenCommands()}. Must hold the lock.
+     */
+    private void sendWaitingCommands() {
+        PendingCommand command;
+        while (lateResponses == 0 &&
+                inFlightCommands.size() < depth &&
+                (command = scheduler.poll(depth - inFlightCommands.size(), depth)) != null) {
+            command.onSent(System.nanoTime());
+            inFlightCommands.add(command);
+            unwrittenCommands.add(command);
+        }
+
+        scheduleTimeoutCheck();
+    }
+
+    /**
+     * Schedules a check for when the oldest in flight command times out, or resyncing
+     * ends, unless a check is already scheduled by then. Must hold the lock.
+     */
+    private void scheduleTimeoutCheck() {
+        long deadlineNanos;
+        if (lateResponses > 0) {
+            deadlineNanos = resyncUntilNanos;
+        } else {
+            PendingCommand head = inFlightCommands.peek();
+            if (head == null) {
+                return;
+            }
+            deadlineNanos = head.getSentNanos() + timeoutNanos;
+        }
+
+        if (timeoutCheckScheduled && deadlineNanos - timeoutCheckNanos >= 0) {
+            return;
+        }
+
+        timeoutCheckScheduled = true;
+        timeoutCheckNanos = deadlineNanos;
+        long delayNanos = deadlineNanos - System.nanoTime();
+        TIMEOUT_SCHEDULER.schedule(timeoutCheck, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+    }
+
+    private void onTimeoutCheck() {
+        ArrayList<PendingCommand> expired;
+        synchronized (this) {
+            timeoutCheckScheduled = false;
+            if (lateResponses > 0 && System.nanoTime() - resyncUntilNanos >= 0) {
+                // The rest of the late responses were lost
+                lateResponses = 0;
+            }
+
+            expired = expireInFlightCommands();
+            sendWaitingCommands();
+        }
+
+        writeUnwrittenCommands();
+        resolveAll(expired, CommandResult.STATUS_TIMEOUT);
+    }
+
+    /**
+     * Writes the commands put in flight, must not hold the lock. A command the transport
+     * rejects is taken out of flight, as no response will come for it, and resolved
+     * as not sent.
+     */
+    private void writeUnwrittenCommands() {
+        synchronized (writeLock) {
+            PendingCommand command;
+            while ((command = pollUnwrittenCommand()) != null) {
+                if (transport.write(command.getData())) {
+                    metrics.increment(UartMetrics.COUNTER_COMMANDS_SENT);
+                    metrics.add(UartMetrics.COUNTER_BYTES_OUT, command.getData().length);
+                } else if (onWriteFailed(command)) {
+                    command.resolve(CommandResult.STATUS_NOT_SENT, -1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the command had already timed out
+     */
+    private synchronized boolean onWriteFailed(PendingCommand command) {
+        if (!inFlightCommands.remove(command)) {
+            return false;
+        }
+
+        sendWaitingCommands();
+        return true;
+    }
+
+    private synchronized PendingCommand pollUnwrittenCommand() {
+        return unwrittenCommands.poll();
+    }
+
+    /**
+     * Times out every in flight command if the oldest has gone unanswered for the
+     * timeout, and starts resyncing. Must hold the lock.
+     */
+    private ArrayList<PendingCommand> expireInFlightCommands() {
+        PendingCommand head = inFlightCommands.peek();
+        long now = System.nanoTime();
+        if (head == null || now - head.getSentNanos() < timeoutNanos) {
+            return null;
+        }
+
+        ArrayList<PendingCommand> expired = new ArrayList<>(inFlightCommands);
+        for (PendingCommand command: expired) {
+            // Commands still stuck behind a slow write are never written, so are never answered
+            if (!unwrittenCommands.remove(command)) {
+                lateResponses++;
+            }
+        }
+        inFlightCommands.clear();
+        resyncUntilNanos = now + TimeUnit.MILLISECONDS.toNanos(RESYNC_QUIET_MS);
+
+        metrics.add(UartMetrics.COUNTER_COMMANDS_TIMED_OUT, expired.size());
+        return expired;
+    }
+
+    private static void resolveAll(ArrayList<PendingCommand> commands, int status) {
+        if (commands != null) {
+            for (PendingCommand command: commands) {
+                command.resolve(status, -1);
+            }
+        }
+    }
+}
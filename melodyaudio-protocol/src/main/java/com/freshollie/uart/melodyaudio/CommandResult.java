@@ -0,0 +1,60 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a command sent through the {@link CommandPipeline}.
+ */
+public class CommandResult {
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+    public static final int STATUS_TIMEOUT = 2;
+    public static final int STATUS_CANCELLED = 3;
+    // The transport rejected the command, so it never reached the module
+    public static final int STATUS_NOT_SENT = 4;
+
+    private final String command;
+    private final int status;
+    private final int errorCode;
+    private final List<String> responses;
+
+    CommandResult(String command, int status, int errorCode, List<String> responses) {
+        this.command = command;
+        this.status = status;
+        this.errorCode = errorCode;
+        this.responses = Collections.unmodifiableList(responses);
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isOk() {
+        return status == STATUS_OK;
+    }
+
+    /**
+     * @return the code from the module's ERROR response, or -1 if the command did not error
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @return the reply lines the module sent for this command before its OK or ERROR,
+     * such as the LIST or STATE lines
+     */
+    public List<String> getResponses() {
+        return responses;
+    }
+
+    @Override
+    public String toString() {
+        return command + " " + status + " " + responses;
+    }
+}
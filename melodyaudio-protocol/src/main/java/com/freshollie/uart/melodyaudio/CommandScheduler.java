@@ -0,0 +1,198 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Orders the commands waiting to be sent by priority class, so latency sensitive
+ * controls don't wait behind bulk queries.
+ *
+ * Commands are taken highest priority first, and FIFO within a class. Bulk queries
+ * are never given the last free pipeline slot, so a call control or media command can
+ * always be sent straight away, and queued queries can be dropped with
+ * {@link #cancelQueued(int)} when they are no longer wanted.
+ *
+ * Not thread safe, the {@link CommandPipeline} holds its lock while using it.
+ */
+public class CommandScheduler {
+    public static final int PRIORITY_CALL_CONTROL = 0;
+    public static final int PRIORITY_MEDIA_TRANSPORT = 1;
+    public static final int PRIORITY_VOLUME = 2;
+    public static final int PRIORITY_QUERY = 3;
+
+    static final int PRIORITY_COUNT = 4;
+
+    public static class LatencyStats {
+        private long count;
+        private long totalQueueNanos;
+        private long maxQueueNanos;
+        private long totalRoundTripNanos;
+        private long maxRoundTripNanos;
+
+        LatencyStats() {}
+
+        LatencyStats(LatencyStats other) {
+            count = other.count;
+            totalQueueNanos = other.totalQueueNanos;
+            maxQueueNanos = other.maxQueueNanos;
+            totalRoundTripNanos = other.totalRoundTripNanos;
+            maxRoundTripNanos = other.maxRoundTripNanos;
+        }
+
+        void record(long queueNanos, long roundTripNanos) {
+            count++;
+            totalQueueNanos += queueNanos;
+            maxQueueNanos = Math.max(maxQueueNanos, queueNanos);
+            totalRoundTripNanos += roundTripNanos;
+            maxRoundTripNanos = Math.max(maxRoundTripNanos, roundTripNanos);
+        }
+
+        /**
+         * @return the number of commands which have been answered
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean time, in nanoseconds, commands waited before being sent
+         */
+        public long getMeanQueueNanos() {
+            return count == 0 ? 0 : totalQueueNanos / count;
+        }
+
+        public long getMaxQueueNanos() {
+            return maxQueueNanos;
+        }
+
+        /**
+         * @return the mean time, in nanoseconds, from a command being sent to its response
+         */
+        public long getMeanRoundTripNanos() {
+            return count == 0 ? 0 : totalRoundTripNanos / count;
+        }
+
+        public long getMaxRoundTripNanos() {
+            return maxRoundTripNanos;
+        }
+    }
+
+    // Generic arrays can't be created, so the array is raw and filled with typed queues
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<PendingCommand>[] queues = new ArrayDeque[PRIORITY_COUNT];
+    private final LatencyStats[] latencyStats;
+
+    CommandScheduler() {
+        latencyStats = new LatencyStats[PRIORITY_COUNT];
+
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            queues[i] = new ArrayDeque<>();
+            latencyStats[i] = new LatencyStats();
+        }
+    }
+
+    /**
+     * @return the priority class the command is sent with when no priority is given
+     */
+    public static int priorityOf(String command) {
+        if (command.equals(MelodyAudioUartInterface.Commands.CALL) ||
+                command.equals(MelodyAudioUartInterface.Commands.ANSWER) ||
+                command.equals(MelodyAudioUartInterface.Commands.END) ||
+                command.equals(MelodyAudioUartInterface.Commands.REJECT)) {
+            return PRIORITY_CALL_CONTROL;
+        }
+
+        if (command.equals(MelodyAudioUartInterface.Commands.MUSIC) ||
+                command.equals(MelodyAudioUartInterface.Commands.MEDIA)) {
+            return PRIORITY_MEDIA_TRANSPORT;
+        }
+
+        if (command.equals(MelodyAudioUartInterface.Commands.VOLUME)) {
+            return PRIORITY_VOLUME;
+        }
+
+        return PRIORITY_QUERY;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the priority is not one of the priority classes
+     */
+    static void checkPriority(int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("Unknown priority class " + priority);
+        }
+    }
+
+    void add(PendingCommand command) {
+        queues[command.getPriority()].add(command);
+    }
+
+    boolean remove(PendingCommand command) {
+        return queues[command.getPriority()].remove(command);
+    }
+
+    boolean isEmpty() {
+        for (ArrayDeque<PendingCommand> queue: queues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        int size = 0;
+        for (ArrayDeque<PendingCommand> queue: queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the next command to send, or null if nothing can be sent into the
+     * remaining free slots
+     */
+    PendingCommand poll(int freeSlots, int totalSlots) {
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            if (priority == PRIORITY_QUERY && freeSlots == 1 && totalSlots > 1) {
+                // Keep the last slot for latency sensitive commands
+                return null;
+            }
+
+            PendingCommand command = queues[priority].poll();
+            if (command != null) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes every queued command of the priority class
+     */
+    ArrayList<PendingCommand> cancelQueued(int priority) {
+        ArrayList<PendingCommand> cancelled = new ArrayList<>(queues[priority]);
+        queues[priority].clear();
+        return cancelled;
+    }
+
+    ArrayList<PendingCommand> clear() {
+        ArrayList<PendingCommand> cleared = new ArrayList<>();
+        for (ArrayDeque<PendingCommand> queue: queues) {
+            cleared.addAll(queue);
+            queue.clear();
+        }
+        return cleared;
+    }
+
+    void recordLatency(PendingCommand command, long resolvedNanos) {
+        latencyStats[command.getPriority()].record(
+                command.getSentNanos() - command.getQueuedNanos(),
+                resolvedNanos - command.getSentNanos()
+        );
+    }
+
+    LatencyStats getLatencyStats(int priority) {
+        return new LatencyStats(latencyStats[priority]);
+    }
+}
@@ -0,0 +1,348 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a connection through connecting, reconnecting after the link is lost, and
+ * backing off between failed attempts.
+ *
+ * Attempts are made by a {@link Connector} on a worker thread. After a failed attempt the
+ * machine waits in {@link #STATE_BACKOFF} for an exponentially growing, jittered delay
+ * before trying again. The first attempt after a lost link is a resume, which lets the
+ * connector reopen the device it had without discovering it again.
+ */
+public class ConnectionStateMachine {
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_RECONNECTING = 2;
+    public static final int STATE_CONNECTED = 3;
+    public static final int STATE_BACKOFF = 4;
+
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 250;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 10000;
+    public static final double DEFAULT_BACKOFF_MULTIPLIER = 2;
+    public static final double DEFAULT_JITTER = 0.2;
+
+    // Keep trying until stopped
+    public static final int DEFAULT_MAX_ATTEMPTS = 0;
+
+    public interface Connector {
+        /**
+         * Makes one attempt at connecting, called on the worker thread
+         *
+         * @param resume true for the first attempt after the link was lost, when the
+         *               previous device can be reopened without discovering it again
+         * @return true if the connection is open
+         */
+        boolean connect(boolean resume) throws InterruptedException;
+
+        /**
+         * Closes the connection, or a partially opened one
+         */
+        void disconnect();
+    }
+
+    public interface StateListener {
+        /**
+         * Called on the thread which caused the change, with the state machine locked,
+         * so must not block
+         */
+        void onStateChange(int newState);
+    }
+
+    public static class ReconnectStats {
+        private long count;
+        private long failedAttempts;
+        private long lastNanos;
+        private long totalNanos;
+        private long maxNanos;
+
+        ReconnectStats() {}
+
+        ReconnectStats(ReconnectStats other) {
+            count = other.count;
+            failedAttempts = other.failedAttempts;
+            lastNanos = other.lastNanos;
+            totalNanos = other.totalNanos;
+            maxNanos = other.maxNanos;
+        }
+
+        void record(long reconnectNanos) {
+            count++;
+            lastNanos = reconnectNanos;
+            totalNanos += reconnectNanos;
+            maxNanos = Math.max(maxNanos, reconnectNanos);
+        }
+
+        /**
+         * @return the number of times a lost link has been reconnected
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the number of attempts, while connecting or reconnecting, which failed
+         */
+        public long getFailedAttempts() {
+            return failedAttempts;
+        }
+
+        /**
+         * @return the time, in nanoseconds, from the link being lost to it being reconnected,
+         * for the most recent reconnect
+         */
+        public long getLastNanos() {
+            return lastNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+    }
+
+    private final Connector connector;
+    private final ListenerRegistry<StateListener> stateListeners =
+            new ListenerRegistry<>(new StateListener[0]);
+
+    private final Random random;
+
+    private long initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INITIAL_BACKOFF_MS);
+    private long maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_BACKOFF_MS);
+    private double backoffMultiplier = DEFAULT_BACKOFF_MULTIPLIER;
+    private double jitter = DEFAULT_JITTER;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private int state = STATE_DISCONNECTED;
+    private Thread worker;
+
+    // When the link was lost, 0 if it wasn't
+    private long lostNanos;
+
+    private final ReconnectStats reconnectStats = new ReconnectStats();
+    // Also records reconnects, if set
+    private UartMetrics metrics;
+
+    public ConnectionStateMachine(Connector connector) {
+        this(connector, new Random());
+    }
+
+    /**
+     * @param random the source of backoff jitter, can be seeded for repeatable runs
+     */
+    public ConnectionStateMachine(Connector connector, Random random) {
+        this.connector = connector;
+        this.random = random;
+    }
+
+    /**
+     * @param initialBackoffMs the delay after the first failed attempt
+     * @param maxBackoffMs the longest delay between attempts
+     * @param multiplier how much the delay grows after every failed attempt
+     * @param jitter the fraction, 0 to 1, the delay is randomly varied by in
+     *               either direction, so many clients don't retry in step
+     */
+    public synchronized void setBackoff(long initialBackoffMs, long maxBackoffMs, double multiplier, double jitter) {
+        if (initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs || multiplier < 1 ||
+                jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Bad backoff");
+        }
+
+        initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialBackoffMs);
+        maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMs);
+        backoffMultiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param maxAttempts how many attempts are made before giving up and disconnecting,
+     *                    0 to keep trying until {@link #stop()}
+     */
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    public synchronized ReconnectStats getReconnectStats() {
+        return new ReconnectStats(reconnectStats);
+    }
+
+    /**
+     * Records reconnects and failed attempts in the metrics too, such as the
+     * {@link MelodyAudioUartInterface#getMetrics()} of the interface being connected
+     */
+    public synchronized void setMetrics(UartMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void registerStateListener(StateListener listener) {
+        stateListeners.add(listener);
+    }
+
+    public void unregisterStateListener(StateListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    /**
+     * Starts connecting, if disconnected
+     */
+    public synchronized void start() {
+        if (state != STATE_DISCONNECTED) {
+            return;
+        }
+
+        lostNanos = 0;
+        setState(STATE_CONNECTING);
+        startWorker(false);
+    }
+
+    /**
+     * Should be called when the open connection stops working, such as the device
+     * being detached. Starts reconnecting.
+     */
+    public void onConnectionLost() {
+        synchronized (this) {
+            if (state != STATE_CONNECTED) {
+                return;
+            }
+
+            lostNanos = System.nanoTime();
+            setState(STATE_RECONNECTING);
+        }
+
+        connector.disconnect();
+
+        synchronized (this) {
+            // Unless stopped while disconnecting
+            if (state == STATE_RECONNECTING && worker == null) {
+                startWorker(true);
+            }
+        }
+    }
+
+    /**
+     * Stops any attempt in progress and disconnects
+     */
+    public void stop() {
+        synchronized (this) {
+            if (state == STATE_DISCONNECTED) {
+                return;
+            }
+
+            setState(STATE_DISCONNECTED);
+            if (worker != null) {
+                worker.interrupt();
+                worker = null;
+            }
+        }
+
+        connector.disconnect();
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void startWorker(final boolean resume) {
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connectLoop(Thread.currentThread(), resume);
+            }
+        }, ConnectionStateMachine.class.getSimpleName());
+        worker.start();
+    }
+
+    private void connectLoop(Thread thread, boolean resume) {
+        int attempt = 0;
+
+        try {
+            while (true) {
+                boolean connected = connector.connect(resume && attempt == 0);
+                attempt++;
+
+                long delayNanos;
+                synchronized (this) {
+                    if (worker != thread) {
+                        // Stopped during the attempt
+                        if (connected) {
+                            connector.disconnect();
+                        }
+                        return;
+                    }
+
+                    if (connected) {
+                        worker = null;
+                        if (lostNanos != 0) {
+                            long reconnectNanos = System.nanoTime() - lostNanos;
+                            reconnectStats.record(reconnectNanos);
+                            if (metrics != null) {
+                                metrics.increment(UartMetrics.COUNTER_RECONNECTS);
+                                metrics.record(UartMetrics.HISTOGRAM_RECONNECT, reconnectNanos);
+                            }
+                            lostNanos = 0;
+                        }
+                        setState(STATE_CONNECTED);
+                        return;
+                    }
+
+                    reconnectStats.failedAttempts++;
+                    if (metrics != null) {
+                        metrics.increment(UartMetrics.COUNTER_CONNECT_FAILURES);
+                    }
+
+                    if (maxAttempts > 0 && attempt >= maxAttempts) {
+                        worker = null;
+                        lostNanos = 0;
+                        setState(STATE_DISCONNECTED);
+                        return;
+                    }
+
+                    delayNanos = backoffNanos(attempt);
+                    setState(STATE_BACKOFF);
+                }
+
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+
+                synchronized (this) {
+                    if (worker != thread) {
+                        return;
+                    }
+
+                    setState(resume ? STATE_RECONNECTING : STATE_CONNECTING);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Must hold the lock
+     *
+     * @return the jittered delay after the given number of failed attempts
+     */
+    private long backoffNanos(int failedAttempts) {
+        double delay = initialBackoffNanos * Math.pow(backoffMultiplier, failedAttempts - 1);
+        delay = Math.min(delay, maxBackoffNanos);
+        delay *= 1 - jitter + 2 * jitter * random.nextDouble();
+        return (long) delay;
+    }
+
+    /**
+     * Must hold the lock, so listeners see changes in order
+     */
+    private void setState(int newState) {
+        state = newState;
+        for (StateListener listener: stateListeners.getListeners()) {
+            listener.onStateChange(newState);
+        }
+    }
+}
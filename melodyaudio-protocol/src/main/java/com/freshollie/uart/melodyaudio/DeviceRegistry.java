@@ -0,0 +1,458 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the module's paired devices, their names and profiles, across connections
+ * and restarts.
+ *
+ * Every device in a LIST reply has its name queried only if it was never fetched, or was
+ * fetched more than {@code maxNameAgeMs} ago, and only one NAME query per device is in
+ * flight at a time. Devices missing from a {@link #refresh()} are forgotten.
+ *
+ * The cache is saved on a storage executor, never on the callback executor. The devices
+ * listed by a refresh are saved once, when its LIST finishes, and saves requested while
+ * one is waiting to run are coalesced into it.
+ */
+public class DeviceRegistry {
+    public static final long DEFAULT_MAX_NAME_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static final int FILE_MAGIC = 0x4d414452;
+    private static final int FILE_VERSION = 1;
+
+    private static final String STORAGE_THREAD_NAME = "DeviceRegistryStorage";
+
+    public static final class Device {
+        private final String address;
+        private final String name;
+        private final String[] profiles;
+        private final long nameCheckedMillis;
+
+        Device(String address, String name, String[] profiles, long nameCheckedMillis) {
+            this.address = address;
+            this.name = name;
+            this.profiles = profiles;
+            this.nameCheckedMillis = nameCheckedMillis;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @return the device's name, or null if the module doesn't know it
+         */
+        public String getName() {
+            return name;
+        }
+
+        public String[] getProfiles() {
+            return profiles.clone();
+        }
+
+        /**
+         * @return when the name was last queried, in milliseconds since the epoch,
+         * or 0 if it never has been
+         */
+        public long getNameCheckedMillis() {
+            return nameCheckedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return address + " " + name + " " + Arrays.toString(profiles);
+        }
+    }
+
+    public interface DeviceListener {
+        /**
+         * Called on the interface's callback executor when a device is listed, or its
+         * name changes
+         */
+        void onDeviceUpdated(Device device);
+
+        /**
+         * Called on the interface's callback executor when a device is no longer paired
+         */
+        void onDeviceRemoved(Device device);
+    }
+
+    private final File file;
+    private final long maxNameAgeMs;
+    private final Executor storageExecutor;
+    private final ListenerRegistry<DeviceListener> deviceListeners =
+            new ListenerRegistry<>(new DeviceListener[0]);
+
+    private MelodyAudioUartInterface uartInterface;
+
+    // Guarded by this
+    private final LinkedHashMap<String, Device> devices = new LinkedHashMap<>();
+    private final HashSet<String> nameQueriesInFlight = new HashSet<>();
+    // The addresses listed by the refresh in flight, or null
+    private HashSet<String> listedAddresses;
+    // A device changed during the refresh in flight, so is saved when it finishes
+    private boolean listChanged;
+    private boolean savePending;
+
+    // Held while writing, so saves never overlap
+    private final Object saveLock = new Object();
+    private final Runnable saveTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DeviceRegistry.this) {
+                savePending = false;
+            }
+            save();
+        }
+    };
+
+    /**
+     * Saves on a dedicated daemon thread
+     */
+    public DeviceRegistry(File file) {
+        this(file, DEFAULT_MAX_NAME_AGE_MS);
+    }
+
+    /**
+     * Saves on a dedicated daemon thread
+     *
+     * @param maxNameAgeMs how long a device's name is trusted before it is queried again
+     */
+    public DeviceRegistry(File file, long maxNameAgeMs) {
+        this(file, maxNameAgeMs, newStorageExecutor());
+    }
+
+    public DeviceRegistry(File file, Executor storageExecutor) {
+        this(file, DEFAULT_MAX_NAME_AGE_MS, storageExecutor);
+    }
+
+    /**
+     * @param maxNameAgeMs how long a device's name is trusted before it is queried again
+     * @param storageExecutor the executor the cache is written on, such as the one
+     *                        {@link #load()} is called on. Should not be the interface's
+     *                        callback executor
+     */
+    public DeviceRegistry(File file, long maxNameAgeMs, Executor storageExecutor) {
+        this.file = file;
+        this.maxNameAgeMs = maxNameAgeMs;
+        this.storageExecutor = storageExecutor;
+    }
+
+    private static Executor newStorageExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, STORAGE_THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts caching the LIST and NAME replies the interface receives
+     */
+    public void attach(MelodyAudioUartInterface uartInterface) {
+        this.uartInterface = uartInterface;
+
+        uartInterface.subscribe(
+                MelodyAudioEvent.ListEvent.class,
+                new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.ListEvent>() {
+                    @Override
+                    public void onEvent(MelodyAudioEvent.ListEvent event) {
+                        onListed(event.getAddress(), event.getSupportedProfiles());
+                    }
+                }
+        );
+
+        uartInterface.subscribe(
+                MelodyAudioEvent.NameEvent.class,
+                new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.NameEvent>() {
+                    @Override
+                    public void onEvent(MelodyAudioEvent.NameEvent event) {
+                        onNamed(event.getAddress(), event.getName(), System.currentTimeMillis());
+                    }
+                }
+        );
+    }
+
+    public void registerDeviceListener(DeviceListener listener) {
+        deviceListeners.add(listener);
+    }
+
+    public void unregisterDeviceListener(DeviceListener listener) {
+        deviceListeners.remove(listener);
+    }
+
+    /**
+     * Reads the cached devices from disk, without replacing any already listed.
+     * Blocks on IO.
+     */
+    public void load() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+
+        ArrayList<Device> loaded = new ArrayList<>();
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                String name = in.readBoolean() ? in.readUTF() : null;
+                long nameCheckedMillis = in.readLong();
+
+                String[] profiles = new String[in.readUnsignedShort()];
+                for (int j = 0; j < profiles.length; j++) {
+                    profiles[j] = in.readUTF();
+                }
+
+                loaded.add(new Device(address, name, profiles, nameCheckedMillis));
+            }
+        } catch (EOFException e) {
+            // Cut short, the devices are listed again on the next refresh anyway
+            return;
+        } finally {
+            in.close();
+        }
+
+        synchronized (this) {
+            for (Device device: loaded) {
+                if (!devices.containsKey(device.address)) {
+                    devices.put(device.address, device);
+                }
+            }
+        }
+    }
+
+    public synchronized Device getDevice(String address) {
+        return devices.get(address);
+    }
+
+    public synchronized List<Device> getDevices() {
+        return new ArrayList<>(devices.values());
+    }
+
+    /**
+     * Sends LIST, querying the names which are stale and forgetting the devices which
+     * are no longer paired. Does nothing if a refresh is already in flight.
+     */
+    public void refresh() {
+        synchronized (this) {
+            if (listedAddresses != null) {
+                return;
+            }
+            listedAddresses = new HashSet<>();
+            listChanged = false;
+        }
+
+        uartInterface.sendCommand(MelodyAudioUartInterface.Commands.LIST, new PendingCommand.CommandCallback() {
+            @Override
+            public void onCommandResult(CommandResult result) {
+                onListFinished(result.isOk());
+            }
+        });
+    }
+
+    private void onListed(String address, String[] profiles) {
+        Device device;
+        boolean changed;
+        boolean queryName;
+
+        synchronized (this) {
+            if (listedAddresses != null) {
+                listedAddresses.add(address);
+            }
+
+            Device cached = devices.get(address);
+            device = cached != null && Arrays.equals(cached.profiles, profiles) ?
+                    cached :
+                    new Device(
+                            address,
+                            cached != null ? cached.name : null,
+                            profiles,
+                            cached != null ? cached.nameCheckedMillis : 0
+                    );
+            devices.put(address, device);
+            changed = device != cached;
+            if (changed && listedAddresses != null) {
+                // Saved once the whole list has been received
+                listChanged = true;
+                changed = false;
+            }
+
+            queryName = isNameStale(device) && nameQueriesInFlight.add(address);
+        }
+
+        if (queryName) {
+            queryName(address);
+        }
+
+        if (changed) {
+            requestSave();
+        }
+        for (DeviceListener listener: deviceListeners.getListeners()) {
+            listener.onDeviceUpdated(device);
+        }
+    }
+
+    private void onNamed(String address, String name, long checkedMillis) {
+        Device device;
+
+        synchronized (this) {
+            Device cached = devices.get(address);
+            device = new Device(
+                    address,
+                    name,
+                    cached != null ? cached.profiles : new String[0],
+                    checkedMillis
+            );
+            devices.put(address, device);
+        }
+
+        requestSave();
+        for (DeviceListener listener: deviceListeners.getListeners()) {
+            listener.onDeviceUpdated(device);
+        }
+    }
+
+    private void onListFinished(boolean ok) {
+        ArrayList<Device> removed = new ArrayList<>();
+        boolean changed;
+
+        synchronized (this) {
+            if (ok) {
+                Iterator<Device> iterator = devices.values().iterator();
+                while (iterator.hasNext()) {
+                    Device device = iterator.next();
+                    if (!listedAddresses.contains(device.address)) {
+                        iterator.remove();
+                        removed.add(device);
+                    }
+                }
+            }
+            listedAddresses = null;
+            changed = listChanged || !removed.isEmpty();
+        }
+
+        if (changed) {
+            requestSave();
+        }
+        if (!removed.isEmpty()) {
+            for (Device device: removed) {
+                for (DeviceListener listener: deviceListeners.getListeners()) {
+                    listener.onDeviceRemoved(device);
+                }
+            }
+        }
+    }
+
+    private void queryName(final String address) {
+        uartInterface.sendCommand(MelodyAudioUartInterface.Commands.NAME, address, new PendingCommand.CommandCallback() {
+            @Override
+            public void onCommandResult(CommandResult result) {
+                synchronized (DeviceRegistry.this) {
+                    nameQueriesInFlight.remove(address);
+                }
+
+                if (result.getErrorCode() == MelodyAudioUartInterface.Errors.NAME_NOT_FOUND) {
+                    // Don't ask again until the name is stale
+                    onNamed(address, null, System.currentTimeMillis());
+                }
+            }
+        });
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private boolean isNameStale(Device device) {
+        return device.nameCheckedMillis == 0 ||
+                System.currentTimeMillis() - device.nameCheckedMillis > maxNameAgeMs;
+    }
+
+    /**
+     * Saves on the storage executor, unless a save is already waiting to run, which
+     * will include this change
+     */
+    private void requestSave() {
+        synchronized (this) {
+            if (savePending) {
+                return;
+            }
+            savePending = true;
+        }
+
+        storageExecutor.execute(saveTask);
+    }
+
+    /**
+     * Called on the storage executor.
+     *
+     * Writes every device to a temporary file, then replaces the cache with it. The cache
+     * is only an optimisation, so a failed write is ignored, and the devices are listed
+     * and named again on the next connection.
+     */
+    private void save() {
+        synchronized (saveLock) {
+            writeDevices(getDevices());
+        }
+    }
+
+    private void writeDevices(List<Device> snapshot) {
+        File written = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(written)));
+            try {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeInt(snapshot.size());
+                for (Device device: snapshot) {
+                    out.writeUTF(device.address);
+                    out.writeBoolean(device.name != null);
+                    if (device.name != null) {
+                        out.writeUTF(device.name);
+                    }
+                    out.writeLong(device.nameCheckedMillis);
+                    out.writeShort(device.profiles.length);
+                    for (String profile: device.profiles) {
+                        out.writeUTF(profile);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!written.renameTo(file)) {
+                written.delete();
+            }
+        } catch (IOException e) {
+            written.delete();
+        }
+    }
+}
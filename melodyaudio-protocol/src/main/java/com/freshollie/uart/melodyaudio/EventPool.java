@@ -0,0 +1,39 @@
+package com.freshollie.uart.melodyaudio;
+
+/**
+ * Recycles event objects between dispatches, keeping a few of each event type.
+ *
+ * Not thread safe, only used from the dispatch of a single interface, which never runs
+ * on two threads at once.
+ */
+final class EventPool {
+    private static final int MAX_POOLED_PER_TYPE = 4;
+
+    private final MelodyAudioEvent[][] pooled =
+            new MelodyAudioEvent[MelodyAudioEvent.TYPE_COUNT][MAX_POOLED_PER_TYPE];
+    private final int[] pooledCounts = new int[MelodyAudioEvent.TYPE_COUNT];
+
+    MelodyAudioEvent acquire(int type) {
+        int count = pooledCounts[type];
+        if (count == 0) {
+            return MelodyAudioEvent.newEvent(type);
+        }
+
+        count--;
+        MelodyAudioEvent event = pooled[type][count];
+        pooled[type][count] = null;
+        pooledCounts[type] = count;
+        return event;
+    }
+
+    void release(MelodyAudioEvent event) {
+        event.recycle();
+
+        int type = event.getType();
+        int count = pooledCounts[type];
+        if (count < MAX_POOLED_PER_TYPE) {
+            pooled[type][count] = event;
+            pooledCounts[type] = count + 1;
+        }
+    }
+}
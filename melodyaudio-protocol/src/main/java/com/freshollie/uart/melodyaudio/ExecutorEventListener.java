@@ -0,0 +1,37 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Forwards events to a listener on another executor, such as the main thread.
+ *
+ * Dispatched events are recycled as soon as dispatch returns, so the listener is given
+ * a detached copy.
+ */
+class ExecutorEventListener<E extends MelodyAudioEvent> implements MelodyAudioUartInterface.EventListener<E>,
+        ListenerRegistry.Wrapper {
+    private final MelodyAudioUartInterface.EventListener<E> delegate;
+    private final Executor executor;
+
+    ExecutorEventListener(MelodyAudioUartInterface.EventListener<E> delegate, Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public Object getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onEvent(E event) {
+        final E copy = (E) event.detach();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onEvent(copy);
+            }
+        });
+    }
+}
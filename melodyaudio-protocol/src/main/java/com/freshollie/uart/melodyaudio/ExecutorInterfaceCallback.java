@@ -0,0 +1,185 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Forwards every callback to a delegate on another executor, such as the main thread.
+ */
+class ExecutorInterfaceCallback extends MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback
+        implements ListenerRegistry.Wrapper {
+    private final MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback delegate;
+    private final Executor executor;
+
+    ExecutorInterfaceCallback(MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback delegate,
+                              Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void onAVRCPReceived(final int linkId, final String avrcpType, final String[] extras) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onAVRCPReceived(linkId, avrcpType, extras);
+            }
+        });
+    }
+
+    @Override
+    public void onA2DPStreamStatusReceived(final int linkId, final String a2dpStreamStatus) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onA2DPStreamStatusReceived(linkId, a2dpStreamStatus);
+            }
+        });
+    }
+
+    @Override
+    public void onABSVolReceived(final int linkId, final int volume) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onABSVolReceived(linkId, volume);
+            }
+        });
+    }
+
+    @Override
+    public void onCallStatusReceived(final int linkId, final int linkType, final String callStatus) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onCallStatusReceived(linkId, linkType, callStatus);
+            }
+        });
+    }
+
+    @Override
+    public void onCallerNumberReceived(final int linkId, final String number) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onCallerNumberReceived(linkId, number);
+            }
+        });
+    }
+
+    @Override
+    public void onPreferenceReceived(final String key, final String value) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onPreferenceReceived(key, value);
+            }
+        });
+    }
+
+    @Override
+    public void onOKReceived() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onOKReceived();
+            }
+        });
+    }
+
+    @Override
+    public void onErrorReceived(final int code) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onErrorReceived(code);
+            }
+        });
+    }
+
+    @Override
+    public void onPendingReceived() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onPendingReceived();
+            }
+        });
+    }
+
+    @Override
+    public void onPBDataReceived(final int linkId, final String data) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onPBDataReceived(linkId, data);
+            }
+        });
+    }
+
+    @Override
+    public void onReceivePBPullStatusReceived(final int linkId, final String command) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onReceivePBPullStatusReceived(linkId, command);
+            }
+        });
+    }
+
+    @Override
+    public void onNameReceived(final String address, final String name) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onNameReceived(address, name);
+            }
+        });
+    }
+
+    @Override
+    public void onLinkLossReceived(final int linkId) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onLinkLossReceived(linkId);
+            }
+        });
+    }
+
+    @Override
+    public void onStatusReceived(final int numConnected, final boolean connectable,
+                                 final boolean discoverable, final String bleStatus) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onStatusReceived(numConnected, connectable, discoverable, bleStatus);
+            }
+        });
+    }
+
+    @Override
+    public void onLinkStatusReceived(final int linkId, final String status, final String linkType,
+                                     final String address, final String[] extras) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onLinkStatusReceived(linkId, status, linkType, address, extras);
+            }
+        });
+    }
+
+    @Override
+    public void onListReceived(final String address, final String[] supportedProfiles) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onListReceived(address, supportedProfiles);
+            }
+        });
+    }
+}
@@ -0,0 +1,216 @@
+package com.freshollie.uart.melodyaudio;
+
+/**
+ * Splits the raw UART byte stream into response lines.
+ *
+ * Bytes are written into a ring buffer by the serial read thread, and complete lines
+ * are handed back by {@link #drain(LineListener)} as slices of a reusable line buffer,
+ * so framing a line does not allocate once the buffers have warmed up.
+ *
+ * Every byte other than the terminator is kept, including the bytes of UTF-8 sequences,
+ * such as the names in phonebook vCards.
+ */
+class LineFramer {
+    private static final int DEFAULT_CAPACITY = 1024;
+    // Far longer than any response, a line this long means the terminator was lost
+    static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+
+    interface LineListener {
+        /**
+         * Called for every complete, trimmed, non empty line. The slice is only valid
+         * for the duration of the call.
+         */
+        void onLine(byte[] buffer, int offset, int length);
+    }
+
+    private final byte lineTerminator;
+
+    // Ring buffer of received bytes, capacity is always a power of 2
+    private byte[] ring;
+    private int head;
+    private int size;
+
+    // Number of terminators currently held in the ring
+    private int completeLines;
+
+    private final int maxLineLength;
+    // Bytes held for the line which hasn't been terminated yet
+    private int partialLength;
+    // Set once the partial line is too long, its bytes are dropped up to its terminator
+    private boolean discarding;
+    private UartMetrics metrics;
+
+    // Only touched by the draining thread
+    private byte[] lineBuffer;
+
+    LineFramer(byte lineTerminator) {
+        this(lineTerminator, DEFAULT_CAPACITY);
+    }
+
+    LineFramer(byte lineTerminator, int initialCapacity) {
+        this(lineTerminator, initialCapacity, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    /**
+     * @param maxLineLength the longest line kept, longer lines are discarded whole
+     */
+    LineFramer(byte lineTerminator, int initialCapacity, int maxLineLength) {
+        this.lineTerminator = lineTerminator;
+        this.maxLineLength = maxLineLength;
+
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1;
+        ring = new byte[capacity];
+        lineBuffer = new byte[capacity];
+    }
+
+    /**
+     * Counts discarded lines in {@link UartMetrics#COUNTER_LINES_TOO_LONG}
+     */
+    synchronized void setMetrics(UartMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Appends received bytes to the ring. A line longer than the maximum line length is
+     * discarded, so a lost terminator can't grow the ring without bound.
+     *
+     * @return true if there is at least one complete line waiting to be drained
+     */
+    synchronized boolean write(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+
+            if (discarding) {
+                discarding = b != lineTerminator;
+                continue;
+            }
+
+            if (b != lineTerminator && partialLength == maxLineLength) {
+                discardPartialLine();
+                continue;
+            }
+
+            if (size == ring.length) {
+                grow();
+            }
+
+            ring[(head + size) & (ring.length - 1)] = b;
+            size++;
+
+            if (b == lineTerminator) {
+                completeLines++;
+                partialLength = 0;
+            } else {
+                partialLength++;
+            }
+        }
+
+        return completeLines > 0;
+    }
+
+    synchronized boolean write(byte[] bytes) {
+        return write(bytes, 0, bytes.length);
+    }
+
+    synchronized boolean hasLine() {
+        return completeLines > 0;
+    }
+
+    /**
+     * @return the number of complete lines waiting to be drained
+     */
+    synchronized int getLineCount() {
+        return completeLines;
+    }
+
+    synchronized void reset() {
+        head = 0;
+        size = 0;
+        completeLines = 0;
+        partialLength = 0;
+        discarding = false;
+    }
+
+    /**
+     * Hands every complete line to the listener. The ring is only locked while a line is
+     * copied out, so the read thread can keep writing while lines are being routed.
+     *
+     * Must only be called from one thread at a time.
+     */
+    void drain(LineListener listener) {
+        int length;
+        while ((length = takeLine()) > -1) {
+            int start = 0;
+            int end = length;
+
+            // Same semantics as String.trim(), bytes of UTF-8 sequences are not spaces
+            while (start < end && (lineBuffer[start] & 0xff) <= ' ') {
+                start++;
+            }
+            while (end > start && (lineBuffer[end - 1] & 0xff) <= ' ') {
+                end--;
+            }
+
+            if (end > start) {
+                listener.onLine(lineBuffer, start, end - start);
+            }
+        }
+    }
+
+    /**
+     * Copies the next line, without its terminator, into the line buffer.
+     *
+     * @return the length of the line, or -1 if there is no complete line
+     */
+    private synchronized int takeLine() {
+        if (completeLines == 0) {
+            return -1;
+        }
+
+        int mask = ring.length - 1;
+        int length = 0;
+        while (ring[(head + length) & mask] != lineTerminator) {
+            length++;
+        }
+
+        if (lineBuffer.length < length) {
+            lineBuffer = new byte[ring.length];
+        }
+
+        int firstPart = Math.min(length, ring.length - head);
+        System.arraycopy(ring, head, lineBuffer, 0, firstPart);
+        System.arraycopy(ring, 0, lineBuffer, firstPart, length - firstPart);
+
+        // Consume the terminator as well
+        head = (head + length + 1) & mask;
+        size -= length + 1;
+        completeLines--;
+
+        return length;
+    }
+
+    /**
+     * Drops the bytes of the line which is too long, and the rest of it as it arrives.
+     * Must hold the lock.
+     */
+    private void discardPartialLine() {
+        size -= partialLength;
+        partialLength = 0;
+        discarding = true;
+
+        if (metrics != null) {
+            metrics.increment(UartMetrics.COUNTER_LINES_TOO_LONG);
+        }
+    }
+
+    private void grow() {
+        byte[] newRing = new byte[ring.length * 2];
+
+        int firstPart = Math.min(size, ring.length - head);
+        System.arraycopy(ring, head, newRing, 0, firstPart);
+        System.arraycopy(ring, 0, newRing, firstPart, size - firstPart);
+
+        ring = newRing;
+        head = 0;
+    }
+}
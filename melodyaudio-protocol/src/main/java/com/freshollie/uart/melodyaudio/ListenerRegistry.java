@@ -0,0 +1,78 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.Arrays;
+
+/**
+ * A copy on write set of listeners.
+ *
+ * Registering and unregistering copy the listener array, while dispatching just walks
+ * the current array without taking a lock, so listeners can be (un)registered from any
+ * thread, including from inside a callback, while events are being dispatched.
+ */
+public class ListenerRegistry<T> {
+    /**
+     * Implemented by listeners which forward to another listener, such as onto
+     * another executor, so they can be unregistered by the listener they wrap
+     */
+    public interface Wrapper {
+        Object getDelegate();
+    }
+
+    private volatile T[] listeners;
+
+    /**
+     * @param empty an empty array of the listener type, which snapshots are copied from
+     */
+    public ListenerRegistry(T[] empty) {
+        listeners = empty;
+    }
+
+    public synchronized void add(T listener) {
+        T[] current = listeners;
+        for (T registered: current) {
+            if (registered == listener) {
+                return;
+            }
+        }
+
+        T[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    /**
+     * Removes the listener, or the first wrapper of it, however deeply wrapped
+     *
+     * @return true if anything was removed
+     */
+    public synchronized boolean remove(Object listener) {
+        T[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            Object registered = current[i];
+            while (registered != listener && registered instanceof Wrapper) {
+                registered = ((Wrapper) registered).getDelegate();
+            }
+
+            if (registered == listener) {
+                T[] updated = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the listeners registered at the time of the call. The array must not
+     * be modified
+     */
+    public T[] getListeners() {
+        return listeners;
+    }
+
+    public boolean isEmpty() {
+        return listeners.length == 0;
+    }
+}
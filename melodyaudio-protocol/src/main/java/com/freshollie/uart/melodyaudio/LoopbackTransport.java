@@ -0,0 +1,119 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * One end of an in memory link. Data written to one end is received by the other end
+ * on its own delivery thread, like a serial link, so the protocol stack can be run
+ * against a simulated module.
+ *
+ * Writes block while the other end's queue is full, and are dropped if the other end
+ * isn't open.
+ */
+public class LoopbackTransport implements Transport {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final LinkedBlockingQueue<byte[]> incoming;
+
+    private volatile LoopbackTransport peer;
+    private volatile Receiver receiver;
+
+    private volatile boolean open;
+    private Thread deliveryThread;
+
+    public LoopbackTransport() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity how many writes can be waiting to be delivered to this end
+     */
+    public LoopbackTransport(int queueCapacity) {
+        incoming = new LinkedBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Links the two ends together
+     */
+    public static void connect(LoopbackTransport first, LoopbackTransport second) {
+        first.peer = second;
+        second.peer = first;
+    }
+
+    @Override
+    public synchronized void open() {
+        if (open) {
+            return;
+        }
+
+        open = true;
+        deliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliverLoop();
+            }
+        }, LoopbackTransport.class.getSimpleName());
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    /**
+     * Closes this end, anything not yet delivered to it is discarded
+     */
+    @Override
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+
+        open = false;
+        deliveryThread.interrupt();
+        deliveryThread = null;
+        incoming.clear();
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public boolean write(byte[] data) {
+        LoopbackTransport other = peer;
+        return open && other != null && other.enqueue(Arrays.copyOf(data, data.length));
+    }
+
+    private boolean enqueue(byte[] data) {
+        if (!open) {
+            return false;
+        }
+
+        try {
+            incoming.put(data);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void deliverLoop() {
+        try {
+            while (open) {
+                byte[] data = incoming.take();
+
+                Receiver currentReceiver = receiver;
+                if (open && currentReceiver != null) {
+                    currentReceiver.onDataReceived(data);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+}
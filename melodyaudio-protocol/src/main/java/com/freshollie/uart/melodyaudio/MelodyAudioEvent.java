@@ -0,0 +1,793 @@
+package com.freshollie.uart.melodyaudio;
+
+/**
+ * An event parsed from a response of the module. Listeners subscribe to one event
+ * class with {@link MelodyAudioUartInterface#subscribe(Class, MelodyAudioUartInterface.EventListener)},
+ * and responses nobody has subscribed to are not parsed.
+ *
+ * Most events are views over the line they were received in, and only decode a field
+ * the first time it is asked for. Events are pooled, so an event is only valid for the
+ * duration of the listener call, use {@link #detach()} to keep one.
+ */
+public abstract class MelodyAudioEvent {
+    static final int TYPE_AVRCP = 0;
+    static final int TYPE_A2DP_STREAM = 1;
+    static final int TYPE_ABS_VOL = 2;
+    static final int TYPE_CALL_STATUS = 3;
+    static final int TYPE_CALLER_NUMBER = 4;
+    static final int TYPE_PREFERENCE = 5;
+    static final int TYPE_OK = 6;
+    static final int TYPE_ERROR = 7;
+    static final int TYPE_PENDING = 8;
+    static final int TYPE_PB_DATA = 9;
+    static final int TYPE_PB_PULL_STATUS = 10;
+    static final int TYPE_NAME = 11;
+    static final int TYPE_LINK_LOSS = 12;
+    static final int TYPE_STATUS = 13;
+    static final int TYPE_LINK_STATUS = 14;
+    static final int TYPE_LIST = 15;
+
+    static final int TYPE_COUNT = 16;
+
+    // Indexed by type
+    private static final Class<?>[] TYPE_CLASSES = {
+            AvrcpEvent.class,
+            A2dpStreamEvent.class,
+            AbsVolEvent.class,
+            CallStatusEvent.class,
+            CallerNumberEvent.class,
+            PreferenceEvent.class,
+            OkEvent.class,
+            ErrorEvent.class,
+            PendingEvent.class,
+            PbDataEvent.class,
+            PbPullStatusEvent.class,
+            NameEvent.class,
+            LinkLossEvent.class,
+            StatusEvent.class,
+            LinkStatusEvent.class,
+            ListEvent.class
+    };
+
+    private final int type;
+
+    MelodyAudioEvent(int type) {
+        this.type = type;
+    }
+
+    int getType() {
+        return type;
+    }
+
+    /**
+     * @return the type of the event class, or -1 for {@link MelodyAudioEvent} itself,
+     * which matches every type
+     */
+    static int typeOf(Class<?> eventClass) {
+        if (eventClass == MelodyAudioEvent.class) {
+            return -1;
+        }
+
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            if (TYPE_CLASSES[type] == eventClass) {
+                return type;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown event class " + eventClass.getName());
+    }
+
+    static MelodyAudioEvent newEvent(int type) {
+        switch (type) {
+            case TYPE_AVRCP:
+                return new AvrcpEvent();
+            case TYPE_A2DP_STREAM:
+                return new A2dpStreamEvent();
+            case TYPE_ABS_VOL:
+                return new AbsVolEvent();
+            case TYPE_CALL_STATUS:
+                return new CallStatusEvent();
+            case TYPE_CALLER_NUMBER:
+                return new CallerNumberEvent();
+            case TYPE_PREFERENCE:
+                return new PreferenceEvent();
+            case TYPE_OK:
+                return OkEvent.INSTANCE;
+            case TYPE_ERROR:
+                return new ErrorEvent();
+            case TYPE_PENDING:
+                return PendingEvent.INSTANCE;
+            case TYPE_PB_DATA:
+                return new PbDataEvent();
+            case TYPE_PB_PULL_STATUS:
+                return new PbPullStatusEvent();
+            case TYPE_NAME:
+                return new NameEvent();
+            case TYPE_LINK_LOSS:
+                return new LinkLossEvent();
+            case TYPE_STATUS:
+                return new StatusEvent();
+            case TYPE_LINK_STATUS:
+                return new LinkStatusEvent();
+            case TYPE_LIST:
+                return new ListEvent();
+            default:
+                throw new IllegalArgumentException("Unknown event type " + type);
+        }
+    }
+
+    /**
+     * @return a copy of the event which stays valid after the listener call, and can be
+     * passed to other threads
+     */
+    public MelodyAudioEvent detach() {
+        MelodyAudioEvent copy = newEvent(type);
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    abstract void copyFrom(MelodyAudioEvent event);
+
+    /**
+     * Drops everything the event refers to, before it goes back in the pool
+     */
+    abstract void recycle();
+
+    /**
+     * An event which decodes its fields from the response line on demand
+     */
+    abstract static class LineEvent extends MelodyAudioEvent {
+        final ResponseLine line = new ResponseLine();
+        final ResponseTokenizer tokenizer = new ResponseTokenizer();
+
+        LineEvent(int type) {
+            super(type);
+        }
+
+        void set(ResponseLine source) {
+            line.set(source);
+            clear();
+        }
+
+        /**
+         * @return the raw response line
+         */
+        public ResponseLine getLine() {
+            return line;
+        }
+
+        @Override
+        void copyFrom(MelodyAudioEvent event) {
+            line.copyFrom(((LineEvent) event).line);
+            clear();
+        }
+
+        @Override
+        void recycle() {
+            line.set(null, 0, 0);
+            clear();
+        }
+
+        /**
+         * Forgets every decoded field
+         */
+        abstract void clear();
+    }
+
+    /**
+     * AVRCP_PLAY 10, AVRCP_MEDIA TITLE: Song
+     */
+    public static class AvrcpEvent extends LineEvent {
+        private boolean headDecoded;
+        private String avrcpType;
+        private int linkId;
+
+        private String[] extras;
+
+        AvrcpEvent() {
+            super(TYPE_AVRCP);
+        }
+
+        @Override
+        void clear() {
+            headDecoded = false;
+            avrcpType = null;
+            extras = null;
+        }
+
+        private void decodeHead() {
+            if (headDecoded) {
+                return;
+            }
+
+            avrcpType = tokenizer.reset(line).nextToken(MelodyAudioUartInterface.AVRCP_KEYS);
+
+            // For some reason media doesn't contain the link id?
+            linkId = avrcpType.equals(MelodyAudioUartInterface.ResponseKeys.AVRCP_MEDIA) ?
+                    -1 :
+                    tokenizer.nextInt();
+            headDecoded = true;
+        }
+
+        /**
+         * @return the link, or -1 for AVRCP_MEDIA, which the module sends without one
+         */
+        public int getLinkId() {
+            decodeHead();
+            return linkId;
+        }
+
+        /**
+         * @return one of the AVRCP {@link MelodyAudioUartInterface.ResponseKeys}
+         */
+        public String getAvrcpType() {
+            decodeHead();
+            return avrcpType;
+        }
+
+        public String[] getExtras() {
+            if (extras == null) {
+                headDecoded = false;
+                decodeHead();
+                extras = tokenizer.remainingTokens();
+            }
+            return extras;
+        }
+    }
+
+    /**
+     * A2DP_STREAM_START 10
+     */
+    public static class A2dpStreamEvent extends LineEvent {
+        private String streamStatus;
+        private int linkId;
+
+        A2dpStreamEvent() {
+            super(TYPE_A2DP_STREAM);
+        }
+
+        @Override
+        void clear() {
+            streamStatus = null;
+        }
+
+        private void decode() {
+            if (streamStatus == null) {
+                streamStatus = tokenizer.reset(line).nextToken(MelodyAudioUartInterface.A2DP_STREAM_KEYS);
+                linkId = tokenizer.nextInt();
+            }
+        }
+
+        public int getLinkId() {
+            decode();
+            return linkId;
+        }
+
+        public String getStreamStatus() {
+            decode();
+            return streamStatus;
+        }
+    }
+
+    /**
+     * ABS_VOL 10 64
+     */
+    public static class AbsVolEvent extends LineEvent {
+        private boolean decoded;
+        private int linkId;
+        private int volume;
+
+        AbsVolEvent() {
+            super(TYPE_ABS_VOL);
+        }
+
+        @Override
+        void clear() {
+            decoded = false;
+        }
+
+        private void decode() {
+            if (!decoded) {
+                tokenizer.reset(line).skip();
+                linkId = tokenizer.nextInt();
+                volume = tokenizer.nextInt();
+                decoded = true;
+            }
+        }
+
+        public int getLinkId() {
+            decode();
+            return linkId;
+        }
+
+        public int getVolume() {
+            decode();
+            return volume;
+        }
+    }
+
+    /**
+     * CALL_INCOMING HFP 13
+     */
+    public static class CallStatusEvent extends LineEvent {
+        private String callStatus;
+        private int linkType;
+        private int linkId;
+
+        CallStatusEvent() {
+            super(TYPE_CALL_STATUS);
+        }
+
+        @Override
+        void clear() {
+            callStatus = null;
+        }
+
+        private void decode() {
+            if (callStatus != null) {
+                return;
+            }
+
+            String status = tokenizer.reset(line).nextToken(MelodyAudioUartInterface.CALL_KEYS);
+
+            linkType = tokenizer.peekEquals(MelodyAudioUartInterface.BluetoothProfiles.HFPAG_STRING) ?
+                    MelodyAudioUartInterface.BluetoothProfiles.HFPAG :
+                    MelodyAudioUartInterface.BluetoothProfiles.HFP;
+
+            linkId = tokenizer.skip().nextInt();
+            callStatus = status;
+        }
+
+        public int getLinkId() {
+            decode();
+            return linkId;
+        }
+
+        /**
+         * @return {@link MelodyAudioUartInterface.BluetoothProfiles#HFP} or
+         * {@link MelodyAudioUartInterface.BluetoothProfiles#HFPAG}
+         */
+        public int getLinkType() {
+            decode();
+            return linkType;
+        }
+
+        public String getCallStatus() {
+            decode();
+            return callStatus;
+        }
+    }
+
+    /**
+     * CALLER_NUMBER 13 07123456789
+     */
+    public static class CallerNumberEvent extends LineEvent {
+        private boolean linkIdDecoded;
+        private int linkId;
+        private String number;
+
+        CallerNumberEvent() {
+            super(TYPE_CALLER_NUMBER);
+        }
+
+        @Override
+        void clear() {
+            linkIdDecoded = false;
+            number = null;
+        }
+
+        public int getLinkId() {
+            if (!linkIdDecoded) {
+                linkId = tokenizer.reset(line).skip().nextInt();
+                linkIdDecoded = true;
+            }
+            return linkId;
+        }
+
+        public String getNumber() {
+            if (number == null) {
+                number = tokenizer.reset(line).skip().skip().nextToken();
+            }
+            return number;
+        }
+    }
+
+    /**
+     * NAME=My Device
+     */
+    public static class PreferenceEvent extends LineEvent {
+        private String key;
+        private String value;
+
+        PreferenceEvent() {
+            super(TYPE_PREFERENCE);
+        }
+
+        @Override
+        void clear() {
+            key = null;
+            value = null;
+        }
+
+        public String getKey() {
+            if (key == null) {
+                key = line.substring(0, line.indexOf('='));
+            }
+            return key;
+        }
+
+        public String getValue() {
+            if (value == null) {
+                value = line.substring(line.indexOf('=') + 1, line.length());
+            }
+            return value;
+        }
+    }
+
+    public static class OkEvent extends MelodyAudioEvent {
+        static final OkEvent INSTANCE = new OkEvent();
+
+        private OkEvent() {
+            super(TYPE_OK);
+        }
+
+        @Override
+        public MelodyAudioEvent detach() {
+            return this;
+        }
+
+        @Override
+        void copyFrom(MelodyAudioEvent event) {}
+
+        @Override
+        void recycle() {}
+    }
+
+    /**
+     * ERROR 0x0019
+     */
+    public static class ErrorEvent extends MelodyAudioEvent {
+        private int code;
+
+        ErrorEvent() {
+            super(TYPE_ERROR);
+        }
+
+        void set(int code) {
+            this.code = code;
+        }
+
+        /**
+         * @return the error code, such as {@link MelodyAudioUartInterface.Errors#NAME_NOT_FOUND}
+         */
+        public int getCode() {
+            return code;
+        }
+
+        @Override
+        void copyFrom(MelodyAudioEvent event) {
+            code = ((ErrorEvent) event).code;
+        }
+
+        @Override
+        void recycle() {}
+    }
+
+    public static class PendingEvent extends MelodyAudioEvent {
+        static final PendingEvent INSTANCE = new PendingEvent();
+
+        private PendingEvent() {
+            super(TYPE_PENDING);
+        }
+
+        @Override
+        public MelodyAudioEvent detach() {
+            return this;
+        }
+
+        @Override
+        void copyFrom(MelodyAudioEvent event) {}
+
+        @Override
+        void recycle() {}
+    }
+
+    /**
+     * A line of phonebook data received between PB_PULL_START and PB_PULL_END
+     */
+    public static class PbDataEvent extends MelodyAudioEvent {
+        private int linkId;
+        private String data;
+
+        PbDataEvent() {
+            super(TYPE_PB_DATA);
+        }
+
+        void set(int linkId, String data) {
+            this.linkId = linkId;
+            this.data = data;
+        }
+
+        public int getLinkId() {
+            return linkId;
+        }
+
+        public String getData() {
+            return data;
+        }
+
+        @Override
+        void copyFrom(MelodyAudioEvent event) {
+            PbDataEvent source = (PbDataEvent) event;
+            set(source.linkId, source.data);
+        }
+
+        @Override
+        void recycle() {
+            data = null;
+        }
+    }
+
+    /**
+     * PB_PULL_START 13
+     */
+    public static class PbPullStatusEvent extends MelodyAudioEvent {
+        private int linkId;
+        private String status;
+
+        PbPullStatusEvent() {
+            super(TYPE_PB_PULL_STATUS);
+        }
+
+        void set(int linkId, String status) {
+            this.linkId = linkId;
+            this.status = status;
+        }
+
+        public int getLinkId() {
+            return linkId;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        @Override
+        void copyFrom(MelodyAudioEvent event) {
+            PbPullStatusEvent source = (PbPullStatusEvent) event;
+            set(source.linkId, source.status);
+        }
+
+        @Override
+        void recycle() {}
+    }
+
+    /**
+     * NAME 20FABB000001 "My Phone"
+     */
+    public static class NameEvent extends LineEvent {
+        private String address;
+
+        private boolean nameDecoded;
+        private String name;
+
+        NameEvent() {
+            super(TYPE_NAME);
+        }
+
+        @Override
+        void clear() {
+            address = null;
+            nameDecoded = false;
+            name = null;
+        }
+
+        public String getAddress() {
+            if (address == null) {
+                address = tokenizer.reset(line).skip().nextToken();
+            }
+            return address;
+        }
+
+        /**
+         * @return the name, or null if the response has none
+         */
+        public String getName() {
+            if (!nameDecoded) {
+                name = tokenizer.reset(line).skip().skip().nextQuoted();
+                nameDecoded = true;
+            }
+            return name;
+        }
+    }
+
+    /**
+     * LINK_LOSS 10 1, then LINK_LOSS 10 0 if the link recovers
+     */
+    public static class LinkLossEvent extends LineEvent {
+        private boolean decoded;
+        private int linkId;
+        private boolean lost;
+
+        LinkLossEvent() {
+            super(TYPE_LINK_LOSS);
+        }
+
+        @Override
+        void clear() {
+            decoded = false;
+        }
+
+        private void decode() {
+            if (!decoded) {
+                linkId = tokenizer.reset(line).skip().nextInt();
+                lost = !tokenizer.hasMoreTokens() || tokenizer.nextInt() != 0;
+                decoded = true;
+            }
+        }
+
+        public int getLinkId() {
+            decode();
+            return linkId;
+        }
+
+        /**
+         * @return false if the link has recovered
+         */
+        public boolean isLost() {
+            decode();
+            return lost;
+        }
+    }
+
+    /**
+     * STATE CONNECTED[1] CONNECTABLE[ON] DISCOVERABLE[OFF] BLE[ADVERTISING]
+     */
+    public static class StatusEvent extends LineEvent {
+        private String bleStatus;
+        private int numConnected;
+        private boolean connectable;
+        private boolean discoverable;
+
+        StatusEvent() {
+            super(TYPE_STATUS);
+        }
+
+        @Override
+        void clear() {
+            bleStatus = null;
+        }
+
+        private void decode() {
+            if (bleStatus != null) {
+                return;
+            }
+
+            tokenizer.reset(line).skip();
+            numConnected = tokenizer.nextBracketInt();
+            connectable = tokenizer.nextBracketValue(MelodyAudioUartInterface.ON_OFF_VALUES)
+                    .equals(MelodyAudioUartInterface.Values.ON);
+            discoverable = tokenizer.nextBracketValue(MelodyAudioUartInterface.ON_OFF_VALUES)
+                    .equals(MelodyAudioUartInterface.Values.ON);
+            bleStatus = tokenizer.nextBracketValue(MelodyAudioUartInterface.ON_OFF_VALUES);
+        }
+
+        public int getNumConnected() {
+            decode();
+            return numConnected;
+        }
+
+        public boolean isConnectable() {
+            decode();
+            return connectable;
+        }
+
+        public boolean isDiscoverable() {
+            decode();
+            return discoverable;
+        }
+
+        public String getBleStatus() {
+            decode();
+            return bleStatus;
+        }
+    }
+
+    /**
+     * LINK 10 CONNECTED A2DP 20FABB000001 PLAYING
+     */
+    public static class LinkStatusEvent extends LineEvent {
+        private boolean linkIdDecoded;
+        private int linkId;
+
+        private String status;
+        private String linkType;
+        private String address;
+
+        private String[] extras;
+
+        LinkStatusEvent() {
+            super(TYPE_LINK_STATUS);
+        }
+
+        @Override
+        void clear() {
+            linkIdDecoded = false;
+            status = null;
+            linkType = null;
+            address = null;
+            extras = null;
+        }
+
+        public int getLinkId() {
+            if (!linkIdDecoded) {
+                linkId = tokenizer.reset(line).skip().nextInt();
+                linkIdDecoded = true;
+            }
+            return linkId;
+        }
+
+        private void decodeTokens() {
+            if (status == null) {
+                tokenizer.reset(line).skip().skip();
+                status = tokenizer.nextToken();
+                linkType = tokenizer.nextToken();
+                address = tokenizer.nextToken();
+            }
+        }
+
+        public String getStatus() {
+            decodeTokens();
+            return status;
+        }
+
+        public String getLinkType() {
+            decodeTokens();
+            return linkType;
+        }
+
+        public String getAddress() {
+            decodeTokens();
+            return address;
+        }
+
+        public String[] getExtras() {
+            if (extras == null) {
+                extras = tokenizer.reset(line).skip().skip().skip().skip().skip().remainingTokens();
+            }
+            return extras;
+        }
+    }
+
+    /**
+     * LIST 20FABB000001 A2DP AVRCP HFP
+     */
+    public static class ListEvent extends LineEvent {
+        private String address;
+        private String[] supportedProfiles;
+
+        ListEvent() {
+            super(TYPE_LIST);
+        }
+
+        @Override
+        void clear() {
+            address = null;
+            supportedProfiles = null;
+        }
+
+        public String getAddress() {
+            if (address == null) {
+                address = tokenizer.reset(line).skip().nextToken();
+            }
+            return address;
+        }
+
+        public String[] getSupportedProfiles() {
+            if (supportedProfiles == null) {
+                supportedProfiles = tokenizer.reset(line).skip().skip().remainingTokens();
+            }
+            return supportedProfiles;
+        }
+    }
+}
@@ -0,0 +1,994 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Created by freshollie on 08.12.17.
+ */
+
+public class MelodyAudioUartInterface {
+    private static final String TAG = MelodyAudioUartInterface.class.getSimpleName();
+
+    private static final char NEW_LINE_CHARACTER = '\r';
+
+    private static final String DISPATCH_THREAD_NAME = "MelodyAudioUartDispatch";
+
+    // Never the start of a vCard line, so ends a pull's data if the link is lost mid pull
+    private static final String LINK_LOSS_PREFIX = "LINK_LOSS ";
+
+    public static class BluetoothProfiles {
+        public static final int A2DP = 0;
+        public static final int AVRCP = 1;
+        public static final int HFPAG = 2;
+        public static final int HFP = 3;
+        public static final int BLE = 4;
+        public static final int SPP = 5;
+        public static final int PBAP = 6;
+        public static final int HID = 7;
+        public static final int MAP = 8;
+        public static final int IAP = 9;
+        public static final int TWS = 10;
+
+        public static final String HFPAG_STRING = "HFPAG";
+    }
+
+    public static class ConfigKeys {
+        public static final String NAME = "NAME";
+        public static final String NAME_SHORT = "NAME_SHORT";
+    }
+
+    public static class Values {
+        public static final String ON = "ON";
+        public static final String OFF = "OFF";
+    }
+
+    public static class Errors {
+        public static final int NAME_NOT_FOUND = 25;
+    }
+
+    public static class Commands {
+        public static final String RESET = "RESET";
+
+        public static final String CONFIG = "CONFIG";
+        public static final String GET = "GET";
+        public static final String SET = "SET";
+        public static final String WRITE = "WRITE";
+
+        public static final String LIST = "LIST";
+        public static final String STATUS = "STATUS";
+
+        public static final String NAME = "NAME";
+
+        public static final String CALL = "CALL";
+        public static final String ANSWER = "ANSWER";
+        public static final String END = "END";
+        public static final String REJECT = "REJECT";
+
+        public static final String MEDIA = "MEDIA";
+        public static final String MUSIC = "MUSIC";
+        public static final String VOLUME = "VOLUME";
+
+        public static final String PB_PULL = "PB_PULL";
+
+        public static final String DISCOVERABLE = "DISCOVERABLE";
+    }
+
+    public static class ResponseTypes {
+        public static final String AVRCP = "AVRCP";
+        public static final String CALL = "CALL";
+        public static final String PB = "PB_PULL";
+        public static final String OPEN = "OPEN";
+        public static final String A2DP_STREAM = "A2DP_STREAM";
+        public static final String PAIR = "PAIR";
+        public static final String MAP = "MAP";
+    }
+
+    public static class ResponseKeys {
+        public static final String READY = "READY";
+        public static final String PENDING = "PENDING";
+
+        public static final String A2DP_STREAM_START = "A2DP_STREAM_START";
+        public static final String A2DP_STREAM_SUSPEND = "A2DP_STREAM_SUSPEND";
+
+        public static final String ABS_VOL = "ABS_VOL";
+
+        public static final String AT = "AT";
+
+        public static final String AVRCP_MEDIA = "AVRCP_MEDIA";
+        public static final String AVRCP_PLAY = "AVRCP_PLAY";
+        public static final String AVRCP_STOP = "AVRCP_STOP";
+        public static final String AVRCP_PAUSE = "AVRCP_PAUSE";
+        public static final String AVRCP_FORWARD = "AVRCP_FORWARD";
+        public static final String AVRCP_BACKWARD = "AVRCP_BACKWARD";
+
+        public static final String CALL_ACTIVE  = "CALL_ACTIVE";
+        public static final String CALL_DIAL= "CALL_DIAL";
+        public static final String CALL_END = "CALL_END";
+        public static final String CALL_INCOMING = "CALL_INCOMING";
+        public static final String CALL_MEMORY = "CALL_MEMORY";
+        public static final String CALL_OUTGOING = "CALL_OUTGOING";
+        public static final String CALL_REDIAL = "CALL_REDIAL";
+
+        public static final String CALLER_NUMBER = "CALLER_NUMBER";
+
+        public static final String CLOSE_OK = "CLOSE_OK";
+        public static final String CLOSE_ERROR = "CLOSE_ERROR";
+
+        public static final String ERROR = "ERROR";
+        public static final String OK = "OK";
+
+        public static final String LINK_LOSS = "LINK_LOSS";
+
+        public static final String MAP_NEW_SMS = "MAP_NEW_SMS";
+        public static final String MAP_MSG_BEGIN = "MAP_MSG_BEGIN";
+        public static final String MAP_MSG_END = "MAP_MSG_END";
+
+        public static final String NAME = "NAME";
+
+        public static final String OPEN_ERROR = "OPEN_ERROR";
+        public static final String OPEN_OK = "OPEN_OK";
+
+        public static final String PAIR_ERROR = "PAIR_ERROR";
+        public static final String PAIR_OK = "PAIR_OK";
+        public static final String PAIR_PASSKEY = "PAIR_PASSKEY";
+        public static final String PAIR_PENDING = "PAIR_PENDING";
+
+        public static final String PB_PULL_START = "PB_PULL_START";
+        public static final String PB_PULL_END = "PB_PULL_END";
+        // Pull done
+        public static final String PB_PULL_OK = "PB_PULL_OK";
+
+        public static final String STATE = "STATE";
+        public static final String LINK = "LINK";
+        public static final String LIST = "LIST";
+    }
+
+    // Response classes, the first token of every line is classified into one of these
+    static final int RESPONSE_OK = 0;
+    static final int RESPONSE_ERROR = 1;
+    static final int RESPONSE_PENDING = 2;
+    static final int RESPONSE_PREFERENCE = 3;
+    static final int RESPONSE_AVRCP = 4;
+    static final int RESPONSE_ABS_VOL = 5;
+    static final int RESPONSE_CALL = 6;
+    static final int RESPONSE_CALLER_NUMBER = 7;
+    static final int RESPONSE_A2DP_STREAM = 8;
+    static final int RESPONSE_PB = 9;
+    static final int RESPONSE_NAME = 10;
+    static final int RESPONSE_LINK_LOSS = 11;
+    static final int RESPONSE_STATE = 12;
+    static final int RESPONSE_LINK = 13;
+    static final int RESPONSE_LIST = 14;
+
+    // The event type each built in response class is counted as, indexed by response class
+    private static final int[] RESPONSE_EVENT_TYPES = {
+            MelodyAudioEvent.TYPE_OK,
+            MelodyAudioEvent.TYPE_ERROR,
+            MelodyAudioEvent.TYPE_PENDING,
+            MelodyAudioEvent.TYPE_PREFERENCE,
+            MelodyAudioEvent.TYPE_AVRCP,
+            MelodyAudioEvent.TYPE_ABS_VOL,
+            MelodyAudioEvent.TYPE_CALL_STATUS,
+            MelodyAudioEvent.TYPE_CALLER_NUMBER,
+            MelodyAudioEvent.TYPE_A2DP_STREAM,
+            MelodyAudioEvent.TYPE_PB_PULL_STATUS,
+            MelodyAudioEvent.TYPE_NAME,
+            MelodyAudioEvent.TYPE_LINK_LOSS,
+            MelodyAudioEvent.TYPE_STATUS,
+            MelodyAudioEvent.TYPE_LINK_STATUS,
+            MelodyAudioEvent.TYPE_LIST
+    };
+
+    // Registered response handlers are classified after the built in responses
+    private static final int RESPONSE_CUSTOM = 100;
+
+    // Known tokens, so parsed keys can be returned as these constants
+    static final String[] AVRCP_KEYS = {
+            ResponseKeys.AVRCP_MEDIA,
+            ResponseKeys.AVRCP_PLAY,
+            ResponseKeys.AVRCP_STOP,
+            ResponseKeys.AVRCP_PAUSE,
+            ResponseKeys.AVRCP_FORWARD,
+            ResponseKeys.AVRCP_BACKWARD
+    };
+
+    static final String[] CALL_KEYS = {
+            ResponseKeys.CALL_ACTIVE,
+            ResponseKeys.CALL_DIAL,
+            ResponseKeys.CALL_END,
+            ResponseKeys.CALL_INCOMING,
+            ResponseKeys.CALL_MEMORY,
+            ResponseKeys.CALL_OUTGOING,
+            ResponseKeys.CALL_REDIAL
+    };
+
+    static final String[] A2DP_STREAM_KEYS = {
+            ResponseKeys.A2DP_STREAM_START,
+            ResponseKeys.A2DP_STREAM_SUSPEND
+    };
+
+    private static final String[] PB_KEYS = {
+            ResponseKeys.PB_PULL_START,
+            ResponseKeys.PB_PULL_END,
+            ResponseKeys.PB_PULL_OK
+    };
+
+    static final String[] ON_OFF_VALUES = {
+            Values.ON,
+            Values.OFF
+    };
+
+    private final ResponseTrie responseTrie;
+    private final ResponseTokenizer tokenizer;
+    private final ArrayList<ResponseHandler> responseHandlers;
+
+    // Frames the received bytes into response lines
+    private final LineFramer lineFramer;
+    private final ResponseLine responseLine;
+
+    // Runs one task at a time on the supplied executor, as routing isn't thread safe
+    private final SerialExecutor callbackExecutor;
+    private boolean drainPosted;
+
+    private final Transport transport;
+    private final UartMetrics metrics;
+    private final CommandPipeline commandPipeline;
+    // Indexed by event type
+    private final ListenerRegistry<EventListener<?>>[] eventListeners;
+    private final EventPool eventPool;
+
+    // Only used on the callback executor
+    private int receivingPBDataLinkId;
+    private final VCardParser vCardParser;
+    // Set by reset(), the routing state is reset on the callback executor before the next line
+    private volatile boolean routingResetPending;
+    // The pull started by pullPhonebook, until its data has all been received
+    private final AtomicReference<PhonebookPull> phonebookPull = new AtomicReference<>();
+    private volatile long phonebookPullTimeoutMs = PhonebookPull.DEFAULT_TIMEOUT_MS;
+
+    /**
+     * Routes responses on a dedicated dispatch thread
+     */
+    public MelodyAudioUartInterface(Transport transport) {
+        this(transport, newDispatchExecutor());
+    }
+
+    /**
+     * @param transport the link to the module, received data is framed
+     *                  on the thread the transport delivers it on
+     * @param callbackExecutor the executor responses are parsed and routed on, and
+     *                         callbacks are called on. Should not be the main thread.
+     *                         May be multi-threaded, tasks are still run one at a time
+     */
+    public MelodyAudioUartInterface(Transport transport, Executor callbackExecutor) {
+        this.transport = transport;
+        this.callbackExecutor = new SerialExecutor(callbackExecutor);
+
+        metrics = new UartMetrics();
+        commandPipeline = new CommandPipeline(transport, this.callbackExecutor, metrics);
+        eventListeners = newEventListeners();
+        eventPool = new EventPool();
+        responseHandlers = new ArrayList<>();
+        responseTrie = createResponseTrie();
+        tokenizer = new ResponseTokenizer();
+        vCardParser = new VCardParser();
+        lineFramer = new LineFramer((byte) NEW_LINE_CHARACTER);
+        lineFramer.setMetrics(metrics);
+        responseLine = new ResponseLine();
+        receivingPBDataLinkId = -1;
+
+        transport.setReceiver(new Transport.Receiver() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                onNewData(data);
+            }
+        });
+    }
+
+    static ResponseTrie createResponseTrie() {
+        ResponseTrie trie = new ResponseTrie();
+
+        trie.put(ResponseKeys.OK, RESPONSE_OK);
+        trie.put(ResponseKeys.ERROR, RESPONSE_ERROR);
+        trie.put(ResponseKeys.PENDING, RESPONSE_PENDING);
+        trie.putAssignment(RESPONSE_PREFERENCE);
+
+        trie.putPrefix(ResponseTypes.AVRCP, RESPONSE_AVRCP);
+        trie.put(ResponseKeys.ABS_VOL, RESPONSE_ABS_VOL);
+
+        trie.put(ResponseKeys.CALL_ACTIVE, RESPONSE_CALL);
+        trie.put(ResponseKeys.CALL_DIAL, RESPONSE_CALL);
+        trie.put(ResponseKeys.CALL_END, RESPONSE_CALL);
+        trie.put(ResponseKeys.CALL_INCOMING, RESPONSE_CALL);
+        trie.put(ResponseKeys.CALL_MEMORY, RESPONSE_CALL);
+        trie.put(ResponseKeys.CALL_OUTGOING, RESPONSE_CALL);
+        trie.put(ResponseKeys.CALL_REDIAL, RESPONSE_CALL);
+        trie.put(ResponseKeys.CALLER_NUMBER, RESPONSE_CALLER_NUMBER);
+
+        trie.putPrefix(ResponseTypes.A2DP_STREAM, RESPONSE_A2DP_STREAM);
+
+        trie.put(ResponseKeys.PB_PULL_START, RESPONSE_PB);
+        trie.put(ResponseKeys.PB_PULL_END, RESPONSE_PB);
+        trie.put(ResponseKeys.PB_PULL_OK, RESPONSE_PB);
+
+        trie.put(ResponseKeys.NAME, RESPONSE_NAME);
+        trie.put(ResponseKeys.LINK_LOSS, RESPONSE_LINK_LOSS);
+        trie.put(ResponseKeys.STATE, RESPONSE_STATE);
+        trie.put(ResponseKeys.LINK, RESPONSE_LINK);
+        trie.put(ResponseKeys.LIST, RESPONSE_LIST);
+
+        return trie;
+    }
+
+    /**
+     * Discards any partially received response. Should be called whenever the
+     * transport is (re)opened.
+     *
+     * Can be called on any thread. The routing state is only touched on the callback
+     * executor, so it is reset there, before any line received after this call is routed.
+     */
+    public void reset() {
+        lineFramer.reset();
+        commandPipeline.reset();
+
+        routingResetPending = true;
+        callbackExecutor.execute(resetRouting);
+
+        PhonebookPull pull = phonebookPull.getAndSet(null);
+        if (pull != null) {
+            pull.onFailed();
+        }
+    }
+
+    private final Runnable resetRouting = new Runnable() {
+        @Override
+        public void run() {
+            applyPendingReset();
+        }
+    };
+
+    /**
+     * Called on the callback executor
+     */
+    private void applyPendingReset() {
+        if (routingResetPending) {
+            routingResetPending = false;
+            receivingPBDataLinkId = -1;
+            vCardParser.reset();
+        }
+    }
+
+    /**
+     * Routes every line the framer has completed. Posted at most once at a time,
+     * however many lines arrive before it runs, and only ever run on the serial
+     * callback executor so two drains never overlap.
+     */
+    private final Runnable drainLines = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (lineFramer) {
+                drainPosted = false;
+            }
+            metrics.setGauge(UartMetrics.GAUGE_DISPATCH_QUEUE_DEPTH, lineFramer.getLineCount());
+            lineFramer.drain(lineListener);
+        }
+    };
+
+    private final LineFramer.LineListener lineListener = new LineFramer.LineListener() {
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            long startNanos = System.nanoTime();
+            applyPendingReset();
+            responseLine.set(buffer, offset, length);
+            try {
+                routeResponse(responseLine);
+            } catch (RuntimeException e) {
+                // A malformed line, or a listener which failed on it, mustn't stop
+                // the lines after it from being routed
+                metrics.increment(UartMetrics.COUNTER_LINES_FAILED);
+            }
+
+            metrics.record(UartMetrics.HISTOGRAM_LINE_ROUTING, System.nanoTime() - startNanos);
+            metrics.increment(UartMetrics.COUNTER_LINES_IN);
+        }
+    };
+
+    private void onOkReceived() {
+        if (hasListeners(MelodyAudioEvent.TYPE_OK)) {
+            dispatch(MelodyAudioEvent.OkEvent.INSTANCE);
+        }
+
+        commandPipeline.onOkReceived();
+    }
+
+    private void onErrorReceived(ResponseLine data) {
+        // ERROR 0x0019
+        int code = tokenizer.reset(data).skip().nextHexInt();
+
+        if (hasListeners(MelodyAudioEvent.TYPE_ERROR)) {
+            MelodyAudioEvent.ErrorEvent event =
+                    (MelodyAudioEvent.ErrorEvent) eventPool.acquire(MelodyAudioEvent.TYPE_ERROR);
+            event.set(code);
+            dispatchAndRelease(event);
+        }
+
+        commandPipeline.onErrorReceived(code);
+    }
+
+    private void onPendingReceived(ResponseLine data) {
+        if (hasListeners(MelodyAudioEvent.TYPE_PENDING)) {
+            dispatch(MelodyAudioEvent.PendingEvent.INSTANCE);
+        }
+    }
+
+    private void onReceivePBPullStatusReceived(ResponseLine data) {
+        // PB_PULL_START 13
+        String command = tokenizer.reset(data).nextToken(PB_KEYS);
+        int linkId = tokenizer.nextInt();
+
+        if (command.equals(ResponseKeys.PB_PULL_START)) {
+            receivingPBDataLinkId = linkId;
+
+            PhonebookPull pull = phonebookPull.get();
+            if (pull != null && pull.getLinkId() == linkId) {
+                vCardParser.reset();
+                pull.onActivity();
+                pull.onStarted();
+            }
+        } else {
+            receivingPBDataLinkId = -1;
+        }
+
+        if (hasListeners(MelodyAudioEvent.TYPE_PB_PULL_STATUS)) {
+            MelodyAudioEvent.PbPullStatusEvent event =
+                    (MelodyAudioEvent.PbPullStatusEvent) eventPool.acquire(MelodyAudioEvent.TYPE_PB_PULL_STATUS);
+            event.set(linkId, command);
+            dispatchAndRelease(event);
+        }
+    }
+
+    private void onPBDataReceived(ResponseLine data) {
+        int linkId = receivingPBDataLinkId;
+
+        // The end marker can follow the last vCard line without a line break
+        int endIndex = data.indexOf(ResponseKeys.PB_PULL_END);
+        if (endIndex != -1) {
+            data.truncate(endIndex);
+            receivingPBDataLinkId = -1;
+        }
+
+        PhonebookPull pull = phonebookPull.get();
+        if (pull != null && pull.getLinkId() == linkId) {
+            pull.onActivity();
+            parsePBData(pull, data, endIndex != -1);
+        }
+
+        if (hasListeners(MelodyAudioEvent.TYPE_PB_DATA)) {
+            MelodyAudioEvent.PbDataEvent event =
+                    (MelodyAudioEvent.PbDataEvent) eventPool.acquire(MelodyAudioEvent.TYPE_PB_DATA);
+            event.set(linkId, data.toString());
+            dispatchAndRelease(event);
+        }
+    }
+
+    /**
+     * Feeds the pull's vCard parser, skipping the parsing once the pull is cancelled
+     */
+    private void parsePBData(PhonebookPull pull, ResponseLine data, boolean lastLine) {
+        if (!pull.isFinished()) {
+            PhonebookContact contact = vCardParser.onLine(data);
+            if (contact != null) {
+                pull.onContact(contact);
+            }
+        }
+
+        if (lastLine) {
+            phonebookPull.compareAndSet(pull, null);
+            pull.onComplete();
+        }
+    }
+
+    /**
+     * Stops receiving phonebook data, and fails the pull, if the module lost the device
+     * the data is from, since the rest of it will never arrive
+     */
+    private void onLinkLossReceived(ResponseLine data) {
+        PhonebookPull pull = phonebookPull.get();
+        if (pull == null && receivingPBDataLinkId == -1) {
+            return;
+        }
+
+        // LINK_LOSS 10 1, then LINK_LOSS 10 0 if the link recovers
+        int linkId = tokenizer.reset(data).skip().nextInt();
+        if (tokenizer.hasMoreTokens() && tokenizer.nextInt() == 0) {
+            return;
+        }
+
+        if (receivingPBDataLinkId != -1 && deviceOf(linkId) == deviceOf(receivingPBDataLinkId)) {
+            receivingPBDataLinkId = -1;
+        }
+        if (pull != null && deviceOf(linkId) == deviceOf(pull.getLinkId())) {
+            failPhonebookPull(pull);
+        }
+    }
+
+    /**
+     * Link ids are the device's index on the module, then the profile
+     */
+    private static int deviceOf(int linkId) {
+        return linkId / 10;
+    }
+
+    /**
+     * Called on the callback executor
+     */
+    private void failPhonebookPull(PhonebookPull pull) {
+        if (phonebookPull.compareAndSet(pull, null)) {
+            if (receivingPBDataLinkId == pull.getLinkId()) {
+                // What is left of the pull is routed as responses again
+                receivingPBDataLinkId = -1;
+            }
+            pull.onFailed();
+        }
+    }
+
+    private void schedulePhonebookPullTimeout(final PhonebookPull pull, long delayNanos) {
+        CommandPipeline.TIMEOUT_SCHEDULER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        checkPhonebookPullTimeout(pull);
+                    }
+                });
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Fails the pull if the module has sent nothing for it for the timeout, otherwise
+     * checks again when it could next time out
+     */
+    private void checkPhonebookPullTimeout(PhonebookPull pull) {
+        if (phonebookPull.get() != pull) {
+            return;
+        }
+
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(phonebookPullTimeoutMs);
+        long idleNanos = System.nanoTime() - pull.getActivityNanos();
+        if (idleNanos < timeoutNanos) {
+            schedulePhonebookPullTimeout(pull, timeoutNanos - idleNanos);
+        } else {
+            failPhonebookPull(pull);
+        }
+    }
+
+    private void routeResponse(ResponseLine response) {
+        if (receivingPBDataLinkId != -1 && !response.startsWith(LINK_LOSS_PREFIX)) {
+            // This is definitely pb data
+            metrics.incrementLines(MelodyAudioEvent.TYPE_PB_DATA);
+            onPBDataReceived(response);
+            return;
+        }
+
+        int responseClass = responseTrie.classify(response);
+        if (responseClass == ResponseTrie.NO_MATCH) {
+            metrics.increment(UartMetrics.COUNTER_LINES_UNMATCHED);
+        } else if (responseClass >= RESPONSE_CUSTOM) {
+            metrics.increment(UartMetrics.COUNTER_LINES_CUSTOM);
+        } else {
+            metrics.incrementLines(RESPONSE_EVENT_TYPES[responseClass]);
+        }
+
+        switch (responseClass) {
+            case ResponseTrie.NO_MATCH:
+                break;
+            case RESPONSE_OK:
+                onOkReceived();
+                break;
+            case RESPONSE_ERROR:
+                onErrorReceived(response);
+                break;
+            case RESPONSE_PENDING:
+                onPendingReceived(response);
+                break;
+            case RESPONSE_PREFERENCE:
+                attachToCommand(response);
+                dispatchLine(MelodyAudioEvent.TYPE_PREFERENCE, response);
+                break;
+            case RESPONSE_AVRCP:
+                dispatchLine(MelodyAudioEvent.TYPE_AVRCP, response);
+                break;
+            case RESPONSE_ABS_VOL:
+                dispatchLine(MelodyAudioEvent.TYPE_ABS_VOL, response);
+                break;
+            case RESPONSE_CALL:
+                dispatchLine(MelodyAudioEvent.TYPE_CALL_STATUS, response);
+                break;
+            case RESPONSE_CALLER_NUMBER:
+                dispatchLine(MelodyAudioEvent.TYPE_CALLER_NUMBER, response);
+                break;
+            case RESPONSE_A2DP_STREAM:
+                dispatchLine(MelodyAudioEvent.TYPE_A2DP_STREAM, response);
+                break;
+            case RESPONSE_PB:
+                onReceivePBPullStatusReceived(response);
+                break;
+            case RESPONSE_NAME:
+                attachToCommand(response);
+                dispatchLine(MelodyAudioEvent.TYPE_NAME, response);
+                break;
+            case RESPONSE_LINK_LOSS:
+                onLinkLossReceived(response);
+                dispatchLine(MelodyAudioEvent.TYPE_LINK_LOSS, response);
+                break;
+            case RESPONSE_STATE:
+                attachToCommand(response);
+                dispatchLine(MelodyAudioEvent.TYPE_STATUS, response);
+                break;
+            case RESPONSE_LINK:
+                attachToCommand(response);
+                dispatchLine(MelodyAudioEvent.TYPE_LINK_STATUS, response);
+                break;
+            case RESPONSE_LIST:
+                attachToCommand(response);
+                dispatchLine(MelodyAudioEvent.TYPE_LIST, response);
+                break;
+            default:
+                responseHandlers.get(responseClass - RESPONSE_CUSTOM).onResponseReceived(response);
+        }
+    }
+
+    /**
+     * Routes every response whose first token is the given key to the handler, instead
+     * of the built in handling for that key.
+     *
+     * Handlers should be registered before the connection is opened.
+     */
+    public void registerResponseHandler(String responseKey, ResponseHandler handler) {
+        responseTrie.put(responseKey, RESPONSE_CUSTOM + responseHandlers.size());
+        responseHandlers.add(handler);
+    }
+
+    /**
+     * Same as {@link #registerResponseHandler(String, ResponseHandler)}, but for every
+     * response whose first token starts with the given prefix
+     */
+    public void registerResponseTypeHandler(String responseType, ResponseHandler handler) {
+        responseTrie.putPrefix(responseType, RESPONSE_CUSTOM + responseHandlers.size());
+        responseHandlers.add(handler);
+    }
+
+    /**
+     * Reply lines are only kept if there is a command to attach them to
+     */
+    private void attachToCommand(ResponseLine response) {
+        if (commandPipeline.hasInFlightCommand()) {
+            commandPipeline.onResponseData(response.toString());
+        }
+    }
+
+    public PendingCommand sendCommand(String command) {
+        return sendCommand(command, (PendingCommand.CommandCallback) null);
+    }
+
+    public PendingCommand sendCommand(String command, String args) {
+        return sendCommand(command, args, null);
+    }
+
+    /**
+     * Sends the command through the command pipeline, with the priority class
+     * {@link CommandScheduler#priorityOf(String)} gives it
+     *
+     * @param callback called with the command's result on the callback executor, may be null
+     */
+    public PendingCommand sendCommand(String command, PendingCommand.CommandCallback callback) {
+        return sendCommand(CommandScheduler.priorityOf(command), command, callback);
+    }
+
+    public PendingCommand sendCommand(String command, String args, PendingCommand.CommandCallback callback) {
+        return sendCommand(CommandScheduler.priorityOf(command), command, args, callback);
+    }
+
+    /**
+     * @param priority the {@link CommandScheduler} priority class to send the command with
+     * @throws IllegalArgumentException if the priority is not a priority class
+     */
+    public PendingCommand sendCommand(int priority, String command, PendingCommand.CommandCallback callback) {
+        CommandScheduler.checkPriority(priority);
+        return commandPipeline.send(
+                command,
+                CommandEncoder.encode(command, (byte) NEW_LINE_CHARACTER),
+                priority,
+                callback
+        );
+    }
+
+    public PendingCommand sendCommand(int priority, String command, String args, PendingCommand.CommandCallback callback) {
+        CommandScheduler.checkPriority(priority);
+        return commandPipeline.send(
+                command + " " + args,
+                CommandEncoder.encode(command, args, (byte) NEW_LINE_CHARACTER),
+                priority,
+                callback
+        );
+    }
+
+    /**
+     * Pulls the phonebook from the device on the link, parsing the contacts as they arrive
+     * and handing them to the listener in batches on the executor. Only one pull can be
+     * received at a time.
+     *
+     * The pull fails if the module sends nothing for it for the pull timeout, or the
+     * device's link is lost.
+     *
+     * @param executor where the listener is called, must not be the callback executor, so
+     *                 a slow listener doesn't hold up routing
+     * @throws IllegalStateException if another pull, even a cancelled one, is still being
+     * received
+     */
+    public PhonebookPull pullPhonebook(int linkId, PhonebookPull.PhonebookListener listener, Executor executor) {
+        return pullPhonebook(
+                linkId,
+                listener,
+                executor,
+                PhonebookPull.DEFAULT_BATCH_SIZE,
+                PhonebookPull.DEFAULT_MAX_PENDING_BATCHES
+        );
+    }
+
+    /**
+     * @param batchSize the number of contacts handed to the listener at once
+     * @param maxPendingBatches the number of batches which can wait for the listener
+     *                          before the pull is ended as {@link PhonebookPull#STATE_OVERRUN}
+     */
+    public PhonebookPull pullPhonebook(int linkId,
+                                       PhonebookPull.PhonebookListener listener,
+                                       Executor executor,
+                                       int batchSize,
+                                       int maxPendingBatches) {
+        if (executor == callbackExecutor || executor == callbackExecutor.getExecutor()) {
+            throw new IllegalArgumentException("Phonebook listeners can't be called on the callback executor");
+        }
+
+        final PhonebookPull pull = new PhonebookPull(linkId, listener, executor, batchSize, maxPendingBatches);
+        if (!phonebookPull.compareAndSet(null, pull)) {
+            throw new IllegalStateException("Already pulling a phonebook");
+        }
+
+        schedulePhonebookPullTimeout(pull, TimeUnit.MILLISECONDS.toNanos(phonebookPullTimeoutMs));
+        sendCommand(Commands.PB_PULL, String.valueOf(linkId), new PendingCommand.CommandCallback() {
+            @Override
+            public void onCommandResult(CommandResult result) {
+                if (!result.isOk() && phonebookPull.compareAndSet(pull, null)) {
+                    pull.onFailed();
+                }
+            }
+        });
+
+        return pull;
+    }
+
+    /**
+     * @return true while a pull, even a cancelled one, is still being received, so
+     * {@link #pullPhonebook} would throw
+     */
+    public boolean isPullingPhonebook() {
+        return phonebookPull.get() != null;
+    }
+
+    /**
+     * @param timeoutMs how long a phonebook pull waits for its next line from the module
+     *                  before it fails, defaults to {@link PhonebookPull#DEFAULT_TIMEOUT_MS}
+     */
+    public void setPhonebookPullTimeout(long timeoutMs) {
+        phonebookPullTimeoutMs = timeoutMs;
+    }
+
+    public CommandPipeline getCommandPipeline() {
+        return commandPipeline;
+    }
+
+    /**
+     * @return the metrics of the data received, commands sent, and of the transport if it
+     * records them
+     */
+    public UartMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Subscribes the listener to the event class, it is called on the callback executor.
+     * Subscribing to {@link MelodyAudioEvent} itself subscribes to every event.
+     */
+    public <E extends MelodyAudioEvent> void subscribe(Class<E> eventClass, EventListener<? super E> listener) {
+        int type = MelodyAudioEvent.typeOf(eventClass);
+        if (type == -1) {
+            for (ListenerRegistry<EventListener<?>> registry: eventListeners) {
+                registry.add(listener);
+            }
+        } else {
+            eventListeners[type].add(listener);
+        }
+    }
+
+    /**
+     * The listener is called on the given executor, such as the main thread,
+     * instead of the callback executor
+     */
+    public <E extends MelodyAudioEvent> void subscribe(Class<E> eventClass,
+                                                       EventListener<? super E> listener,
+                                                       Executor executor) {
+        subscribe(eventClass, new ExecutorEventListener<>(listener, executor));
+    }
+
+    /**
+     * Unsubscribes the listener from every event class it was subscribed to
+     */
+    public void unsubscribe(EventListener<?> listener) {
+        for (ListenerRegistry<EventListener<?>> registry: eventListeners) {
+            registry.remove(listener);
+        }
+    }
+
+    /**
+     * The callback is subscribed to every event, and called on the callback executor.
+     * Prefer {@link #subscribe(Class, EventListener)} for the events which are needed,
+     * responses for events nobody subscribes to aren't parsed.
+     */
+    public void registerMelodyAudioCallback(MelodyAudioUartInterfaceCallback callback) {
+        subscribe(MelodyAudioEvent.class, new CallbackEventListener(callback));
+    }
+
+    /**
+     * The callback is called on the given executor, such as the main thread,
+     * instead of the callback executor
+     */
+    public void registerMelodyAudioCallback(MelodyAudioUartInterfaceCallback callback, Executor executor) {
+        subscribe(
+                MelodyAudioEvent.class,
+                new CallbackEventListener(new ExecutorInterfaceCallback(callback, executor))
+        );
+    }
+
+    public void unregisterMelodyAudioCallback(MelodyAudioUartInterfaceCallback callback) {
+        for (ListenerRegistry<EventListener<?>> registry: eventListeners) {
+            registry.remove(callback);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ListenerRegistry<EventListener<?>>[] newEventListeners() {
+        ListenerRegistry<EventListener<?>>[] registries =
+                (ListenerRegistry<EventListener<?>>[]) new ListenerRegistry<?>[MelodyAudioEvent.TYPE_COUNT];
+        for (int type = 0; type < registries.length; type++) {
+            registries[type] = new ListenerRegistry<EventListener<?>>(new EventListener<?>[0]);
+        }
+        return registries;
+    }
+
+    private boolean hasListeners(int type) {
+        return !eventListeners[type].isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dispatch(MelodyAudioEvent event) {
+        // Listeners are only registered for the event types they accept
+        for (EventListener<?> listener: eventListeners[event.getType()].getListeners()) {
+            ((EventListener<MelodyAudioEvent>) listener).onEvent(event);
+        }
+    }
+
+    private void dispatchAndRelease(MelodyAudioEvent event) {
+        try {
+            dispatch(event);
+        } finally {
+            eventPool.release(event);
+        }
+    }
+
+    /**
+     * Dispatches a view over the response line, which listeners decode as they need to.
+     * Nothing is parsed if there are no listeners for the event type.
+     */
+    private void dispatchLine(int type, ResponseLine response) {
+        if (!hasListeners(type)) {
+            metrics.increment(UartMetrics.COUNTER_LINES_UNDISPATCHED);
+            return;
+        }
+
+        MelodyAudioEvent.LineEvent event = (MelodyAudioEvent.LineEvent) eventPool.acquire(type);
+        event.set(response);
+        dispatchAndRelease(event);
+    }
+
+    /**
+     * @return a single thread executor, with a daemon thread, for parsing and
+     * dispatching responses off the main thread
+     */
+    public static Executor newDispatchExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, DISPATCH_THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    void onNewData(byte[] bytes) {
+        metrics.add(UartMetrics.COUNTER_BYTES_IN, bytes.length);
+
+        // The framer builds up lines of new data until it finds a
+        // new line character, completed lines are then routed
+        // on the callback executor
+        if (lineFramer.write(bytes)) {
+            synchronized (lineFramer) {
+                if (drainPosted) {
+                    return;
+                }
+                drainPosted = true;
+            }
+            callbackExecutor.execute(drainLines);
+        }
+    }
+
+    public interface ResponseHandler {
+        /**
+         * The response is only valid for the duration of the call
+         */
+        void onResponseReceived(ResponseLine response);
+    }
+
+    public interface EventListener<E extends MelodyAudioEvent> {
+        /**
+         * The event is recycled when this returns, use {@link MelodyAudioEvent#detach()}
+         * to keep it
+         */
+        void onEvent(E event);
+    }
+
+    /**
+     * Receives every event, see {@link #subscribe(Class, EventListener)}
+     */
+    public static class MelodyAudioUartInterfaceCallback {
+        public void onAVRCPReceived(int linkId, String avrcpType, String[] extras) {}
+
+        public void onA2DPStreamStatusReceived(int linkId, String a2dpStreamStatus) {}
+
+        public void onABSVolReceived(int linkId, int volume) {}
+
+        public void onCallStatusReceived(int linkId,  int linkType, String callStatus) {}
+
+        public void onCallerNumberReceived(int linkId, String number)  {}
+
+        public void onPreferenceReceived(String key, String value) {}
+
+        public void onOKReceived() {}
+
+        public void onErrorReceived(int code) {}
+
+        public void onPendingReceived() {}
+
+        public void onPBDataReceived(int linkId, String data) {}
+
+        public void onReceivePBPullStatusReceived(int linkId, String command) {}
+
+        public void onNameReceived(String address, String name) {}
+
+        public void onLinkLossReceived(int linkId) {}
+
+        public void onStatusReceived(int numConnected, boolean connectable, boolean discoverable, String bleStatus) {}
+
+        public void onLinkStatusReceived(int linkId, String status, String linkType, String address, String[] extras) {}
+
+        public void onListReceived(String address, String[] supportedProfiles) {}
+    }
+}
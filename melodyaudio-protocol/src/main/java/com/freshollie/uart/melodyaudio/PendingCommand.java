@@ -0,0 +1,146 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A command which has been queued or sent to the module, and is waiting for its
+ * OK or ERROR.
+ *
+ * Never block on {@link #get()} from the callback executor, commands are resolved
+ * from it.
+ */
+public class PendingCommand implements Future<CommandResult> {
+    public interface CommandCallback {
+        /**
+         * Called on the interface's callback executor once the command has resolved
+         */
+        void onCommandResult(CommandResult result);
+    }
+
+    private final String command;
+    private final byte[] data;
+    private final int priority;
+    private final CommandCallback callback;
+    private final Executor callbackExecutor;
+
+    private final ArrayList<String> responses = new ArrayList<>();
+    private final CountDownLatch resolved = new CountDownLatch(1);
+
+    private volatile CommandResult result;
+    private final CommandPipeline pipeline;
+
+    private final long queuedNanos;
+    private long sentNanos;
+
+    PendingCommand(CommandPipeline pipeline,
+                   String command,
+                   byte[] data,
+                   int priority,
+                   CommandCallback callback,
+                   Executor callbackExecutor) {
+        this.pipeline = pipeline;
+        this.command = command;
+        this.data = data;
+        this.priority = priority;
+        this.callback = callback;
+        this.callbackExecutor = callbackExecutor;
+
+        queuedNanos = System.nanoTime();
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the {@link CommandScheduler} priority class of the command
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    long getQueuedNanos() {
+        return queuedNanos;
+    }
+
+    long getSentNanos() {
+        return sentNanos;
+    }
+
+    void onSent(long nanos) {
+        sentNanos = nanos;
+    }
+
+    void addResponse(String response) {
+        responses.add(response);
+    }
+
+    /**
+     * Completes the command on the calling thread, and posts the callback to the
+     * callback executor
+     */
+    void resolve(int status, int errorCode) {
+        final CommandResult result = new CommandResult(command, status, errorCode, responses);
+        this.result = result;
+        resolved.countDown();
+
+        if (callback != null) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCommandResult(result);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes the command from the scheduler if it has not been sent yet.
+     * Commands which have already been written can't be recalled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return pipeline.cancel(this);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        CommandResult result = this.result;
+        return result != null && result.getStatus() == CommandResult.STATUS_CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return result != null;
+    }
+
+    @Override
+    public CommandResult get() throws InterruptedException {
+        resolved.await();
+        return result;
+    }
+
+    @Override
+    public CommandResult get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!resolved.await(timeout, unit)) {
+            throw new TimeoutException(command);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return command;
+    }
+}
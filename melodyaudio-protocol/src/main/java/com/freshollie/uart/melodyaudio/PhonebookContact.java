@@ -0,0 +1,112 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.Arrays;
+
+/**
+ * A contact parsed from a phonebook pull's vCard.
+ */
+public final class PhonebookContact {
+    private final String formattedName;
+    private final String familyName;
+    private final String givenName;
+    private final String[] numbers;
+    private final String[] numberTypes;
+
+    public PhonebookContact(String formattedName,
+                            String familyName,
+                            String givenName,
+                            String[] numbers,
+                            String[] numberTypes) {
+        if (numbers.length != numberTypes.length) {
+            throw new IllegalArgumentException("Every number needs a type");
+        }
+
+        this.formattedName = formattedName;
+        this.familyName = familyName;
+        this.givenName = givenName;
+        this.numbers = numbers;
+        this.numberTypes = numberTypes;
+    }
+
+    /**
+     * @return the FN property, or the given and family names if the vCard had no FN
+     */
+    public String getName() {
+        if (formattedName != null && !formattedName.isEmpty()) {
+            return formattedName;
+        }
+
+        if (givenName == null || givenName.isEmpty()) {
+            return familyName;
+        }
+        if (familyName == null || familyName.isEmpty()) {
+            return givenName;
+        }
+        return givenName + " " + familyName;
+    }
+
+    /**
+     * @return the FN property, or null
+     */
+    public String getFormattedName() {
+        return formattedName;
+    }
+
+    public String getFamilyName() {
+        return familyName;
+    }
+
+    public String getGivenName() {
+        return givenName;
+    }
+
+    /**
+     * @return the TEL properties, as sent by the phone
+     */
+    public String[] getNumbers() {
+        return numbers.clone();
+    }
+
+    /**
+     * @return the type of each number, such as CELL or HOME, or null where it had none
+     */
+    public String[] getNumberTypes() {
+        return numberTypes.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PhonebookContact)) {
+            return false;
+        }
+
+        PhonebookContact other = (PhonebookContact) o;
+        return equal(formattedName, other.formattedName) &&
+                equal(familyName, other.familyName) &&
+                equal(givenName, other.givenName) &&
+                Arrays.equals(numbers, other.numbers) &&
+                Arrays.equals(numberTypes, other.numberTypes);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = formattedName != null ? formattedName.hashCode() : 0;
+        result = 31 * result + (familyName != null ? familyName.hashCode() : 0);
+        result = 31 * result + (givenName != null ? givenName.hashCode() : 0);
+        result = 31 * result + Arrays.hashCode(numbers);
+        result = 31 * result + Arrays.hashCode(numberTypes);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " " + Arrays.toString(numbers);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,241 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * A phonebook pull started by {@link MelodyAudioUartInterface#pullPhonebook}.
+ *
+ * Contacts are parsed as their vCards arrive and handed to the {@link PhonebookListener}
+ * in batches, on the listener's executor, so the whole phonebook is never held in memory.
+ * Batches are delivered one at a time, and only {@code maxPendingBatches} batches may wait
+ * for the listener. The module can't be told to pause, so parsing never waits for the
+ * listener: if it falls further behind the pull ends as {@link #STATE_OVERRUN}.
+ */
+public class PhonebookPull {
+    public static final int STATE_REQUESTED = 0;
+    public static final int STATE_RECEIVING = 1;
+    public static final int STATE_COMPLETE = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELLED = 4;
+    // The listener fell more than maxPendingBatches behind the module
+    public static final int STATE_OVERRUN = 5;
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_PENDING_BATCHES = 16;
+    // How long a pull waits for its next line from the module before it fails
+    public static final long DEFAULT_TIMEOUT_MS = 30000;
+
+    public interface PhonebookListener {
+        /**
+         * Called on the listener's executor for every batch, in order
+         */
+        void onContacts(PhonebookPull pull, List<PhonebookContact> contacts);
+
+        /**
+         * Called on the listener's executor once, after the last batch, when the pull
+         * completes, fails or is cancelled. See {@link PhonebookPull#getState()}.
+         */
+        void onPullFinished(PhonebookPull pull);
+    }
+
+    private final int linkId;
+    private final PhonebookListener listener;
+    private final Executor executor;
+    private final int batchSize;
+    private final int maxPendingBatches;
+
+    private int state = STATE_REQUESTED;
+    private int contactCount;
+    // When the pull was requested, or its last line was received
+    private volatile long activityNanos = System.nanoTime();
+    // Batches waiting for the listener, in order
+    private final ArrayDeque<List<PhonebookContact>> pendingBatches = new ArrayDeque<>();
+    private boolean delivering;
+    private boolean finishDelivered;
+
+    // Only touched by the dispatch thread
+    private ArrayList<PhonebookContact> batch;
+
+    /**
+     * Hands the listener the next batch, or the end of the pull, then posts itself again
+     * until there is nothing left to hand over
+     */
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            List<PhonebookContact> contacts;
+            synchronized (PhonebookPull.this) {
+                if (state == STATE_CANCELLED) {
+                    pendingBatches.clear();
+                }
+
+                contacts = pendingBatches.poll();
+                if (contacts == null && (!isFinished() || finishDelivered)) {
+                    delivering = false;
+                    return;
+                }
+                if (contacts == null) {
+                    finishDelivered = true;
+                }
+            }
+
+            try {
+                if (contacts != null) {
+                    listener.onContacts(PhonebookPull.this, contacts);
+                } else {
+                    listener.onPullFinished(PhonebookPull.this);
+                }
+            } finally {
+                executor.execute(this);
+            }
+        }
+    };
+
+    PhonebookPull(int linkId, PhonebookListener listener, Executor executor, int batchSize, int maxPendingBatches) {
+        if (batchSize < 1 || maxPendingBatches < 1) {
+            throw new IllegalArgumentException("Bad batching");
+        }
+
+        this.linkId = linkId;
+        this.listener = listener;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.maxPendingBatches = maxPendingBatches;
+    }
+
+    public int getLinkId() {
+        return linkId;
+    }
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    public synchronized boolean isFinished() {
+        return state >= STATE_COMPLETE;
+    }
+
+    /**
+     * @return the number of contacts parsed so far
+     */
+    public synchronized int getContactCount() {
+        return contactCount;
+    }
+
+    /**
+     * Stops delivering contacts. The module can't be told to stop sending, so the rest
+     * of the pull is still received, but it is discarded without being parsed.
+     */
+    public void cancel() {
+        finish(STATE_CANCELLED);
+    }
+
+    long getActivityNanos() {
+        return activityNanos;
+    }
+
+    /**
+     * Called on the dispatch thread for every line of the pull
+     */
+    void onActivity() {
+        activityNanos = System.nanoTime();
+    }
+
+    synchronized void onStarted() {
+        if (state == STATE_REQUESTED) {
+            state = STATE_RECEIVING;
+        }
+    }
+
+    /**
+     * Called on the dispatch thread, never waits for the listener
+     */
+    void onContact(PhonebookContact contact) {
+        if (batch == null) {
+            batch = new ArrayList<>(batchSize);
+        }
+        batch.add(contact);
+
+        synchronized (this) {
+            contactCount++;
+        }
+
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Called on the dispatch thread once every vCard has been received
+     */
+    void onComplete() {
+        flush();
+        finish(STATE_COMPLETE);
+    }
+
+    void onFailed() {
+        finish(STATE_FAILED);
+    }
+
+    private void flush() {
+        List<PhonebookContact> contacts = batch;
+        if (contacts == null || contacts.isEmpty()) {
+            return;
+        }
+        batch = null;
+
+        boolean overrun;
+        boolean startDelivering = false;
+        synchronized (this) {
+            if (isFinished()) {
+                return;
+            }
+
+            overrun = pendingBatches.size() >= maxPendingBatches;
+            if (!overrun) {
+                pendingBatches.add(contacts);
+                startDelivering = claimDelivery();
+            }
+        }
+
+        if (overrun) {
+            finish(STATE_OVERRUN);
+        } else if (startDelivering) {
+            executor.execute(deliver);
+        }
+    }
+
+    private void finish(int finalState) {
+        boolean startDelivering;
+        synchronized (this) {
+            if (isFinished()) {
+                return;
+            }
+            state = finalState;
+            startDelivering = claimDelivery();
+        }
+
+        if (startDelivering) {
+            executor.execute(deliver);
+        }
+    }
+
+    /**
+     * @return true if the caller should post the delivery, as it isn't already running
+     */
+    private boolean claimDelivery() {
+        if (delivering) {
+            return false;
+        }
+        delivering = true;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "PhonebookPull " + linkId + " " + getState() + " " + getContactCount();
+    }
+}
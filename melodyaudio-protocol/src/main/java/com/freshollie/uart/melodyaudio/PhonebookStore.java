@@ -0,0 +1,582 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps the phonebook of every paired device on disk, keyed by Bluetooth address, so
+ * callers can be named without waiting for a phonebook pull.
+ *
+ * Callers are looked up in a {@link CallerIdIndex} of every loaded phonebook.
+ *
+ * Each phonebook is an append only log of contacts added and removed, identified by a
+ * hash of their content. A pull is synced into the log with {@link #newSync}, which only
+ * writes the contacts which changed since the last pull. The log is rewritten once it
+ * holds more removed records than contacts.
+ */
+public class PhonebookStore {
+    private static final String FILE_SUFFIX = ".pb";
+    private static final int FILE_MAGIC = 0x4d415042;
+    private static final int FILE_VERSION = 1;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    private static final int MIN_DEAD_RECORDS_TO_COMPACT = 64;
+
+    public interface SyncCallback {
+        /**
+         * Called on the pull's executor once the sync has finished
+         */
+        void onSyncFinished(Sync sync);
+    }
+
+    private final File directory;
+
+    // Guarded by this
+    private final HashMap<String, Book> books = new HashMap<>();
+
+    public PhonebookStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Reads the device's phonebook from disk, if it hasn't been already. Blocks on IO.
+     * A damaged phonebook keeps the contacts read before the damage, and is rewritten
+     * without it.
+     *
+     * @throws IOException if the phonebook couldn't be read or repaired, it is then
+     * read again from the start by the next load
+     */
+    public void load(String address) throws IOException {
+        getBook(address);
+    }
+
+    /**
+     * Finds the contact with the number in the device's phonebook. Never touches the
+     * disk, so only finds contacts in phonebooks which have been loaded or synced.
+     *
+     * @return the contact, or null if the number isn't known
+     */
+    public PhonebookContact lookup(String address, String number) {
+        Book book;
+        synchronized (this) {
+            book = books.get(address);
+        }
+
+        return book == null ? null : book.lookup(number);
+    }
+
+    /**
+     * @return the contacts of a loaded phonebook, empty if it isn't loaded
+     */
+    public List<PhonebookContact> getContacts(String address) {
+        Book book;
+        synchronized (this) {
+            book = books.get(address);
+        }
+
+        if (book == null) {
+            return new ArrayList<>();
+        }
+
+        synchronized (book) {
+            return new ArrayList<>(book.contacts.values());
+        }
+    }
+
+    /**
+     * Deletes the device's phonebook from memory and disk
+     */
+    public void delete(String address) {
+        Book book;
+        synchronized (this) {
+            book = books.remove(address);
+        }
+
+        if (book != null) {
+            synchronized (book.writeLock) {
+                book.closeLog();
+            }
+        }
+        fileFor(address).delete();
+    }
+
+    /**
+     * @return a listener which syncs a pull of the device's phonebook into the store,
+     * for {@link MelodyAudioUartInterface#pullPhonebook}. Its executor should not be the
+     * main thread, as it writes to disk.
+     *
+     * @param callback called when the sync finishes, may be null
+     */
+    public Sync newSync(String address, SyncCallback callback) {
+        return new Sync(address, callback);
+    }
+
+    private Book getBook(String address) throws IOException {
+        Book book;
+        synchronized (this) {
+            book = books.get(address);
+            if (book == null) {
+                book = new Book(fileFor(address));
+                books.put(address, book);
+            }
+        }
+
+        synchronized (book.writeLock) {
+            if (!book.loaded) {
+                try {
+                    book.load();
+                } catch (IOException e) {
+                    // Forget the partly read book, so it isn't used or synced into
+                    book.clear();
+                    synchronized (this) {
+                        if (books.get(address) == book) {
+                            books.remove(address);
+                        }
+                    }
+                    throw e;
+                }
+            }
+        }
+        return book;
+    }
+
+    private File fileFor(String address) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                name.append(Character.toUpperCase(c));
+            }
+        }
+        return new File(directory, name.append(FILE_SUFFIX).toString());
+    }
+
+    /**
+     * @return a 64 bit FNV-1a hash of everything the contact holds
+     */
+    static long contentHash(PhonebookContact contact) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, contact.getFormattedName());
+        hash = hash(hash, contact.getFamilyName());
+        hash = hash(hash, contact.getGivenName());
+
+        String[] numbers = contact.getNumbers();
+        String[] types = contact.getNumberTypes();
+        for (int i = 0; i < numbers.length; i++) {
+            hash = hash(hash, numbers[i]);
+            hash = hash(hash, types[i]);
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        // Separates the fields, and null from empty
+        return (hash ^ (value == null ? 0x10000 : 0x10001)) * 0x100000001b3L;
+    }
+
+    /**
+     * One device's phonebook. The maps are guarded by the book, the log by writeLock,
+     * so lookups never wait for the disk.
+     */
+    private static class Book {
+        final File file;
+        final Object writeLock = new Object();
+
+        final LinkedHashMap<Long, PhonebookContact> contacts = new LinkedHashMap<>();
+        CallerIdIndex<PhonebookContact> numberIndex = new CallerIdIndex<>();
+
+        boolean loaded;
+        int deadRecords;
+        FileOutputStream logFile;
+        DataOutputStream log;
+
+        Book(File file) {
+            this.file = file;
+        }
+
+        synchronized void clear() {
+            contacts.clear();
+            numberIndex = new CallerIdIndex<>();
+            deadRecords = 0;
+        }
+
+        synchronized PhonebookContact lookup(String number) {
+            return numberIndex.get(number);
+        }
+
+        synchronized boolean contains(long hash) {
+            return contacts.containsKey(hash);
+        }
+
+        synchronized HashSet<Long> hashes() {
+            return new HashSet<>(contacts.keySet());
+        }
+
+        synchronized void put(long hash, PhonebookContact contact) {
+            contacts.put(hash, contact);
+            for (String number: contact.getNumbers()) {
+                numberIndex.put(number, contact);
+            }
+        }
+
+        synchronized void remove(long hash) {
+            PhonebookContact contact = contacts.remove(hash);
+            if (contact == null) {
+                return;
+            }
+
+            boolean unindexed = false;
+            for (String number: contact.getNumbers()) {
+                unindexed |= numberIndex.remove(number, contact);
+            }
+
+            if (unindexed) {
+                // Another contact may share the number
+                for (PhonebookContact other: contacts.values()) {
+                    for (String number: other.getNumbers()) {
+                        if (numberIndex.get(number) == null) {
+                            numberIndex.put(number, other);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Must hold writeLock. Only marks the book loaded once it has been read, and
+         * repaired if it was damaged.
+         */
+        void load() throws IOException {
+            DataInputStream in;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (FileNotFoundException e) {
+                loaded = true;
+                return;
+            }
+
+            boolean damaged = false;
+            try {
+                if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                    damaged = true;
+                }
+
+                while (!damaged) {
+                    int record = in.read();
+                    if (record == -1) {
+                        break;
+                    }
+
+                    long hash = in.readLong();
+                    if (record == RECORD_PUT) {
+                        if (contains(hash)) {
+                            deadRecords++;
+                        }
+                        put(hash, readContact(in));
+                    } else if (record == RECORD_REMOVE) {
+                        remove(hash);
+                        // The remove record and the put it cancels
+                        deadRecords += 2;
+                    } else {
+                        damaged = true;
+                    }
+                }
+            } catch (IOException e) {
+                // The last write was cut short, a record is corrupt, or the read failed
+                damaged = true;
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException ignored) {}
+            }
+
+            if (damaged) {
+                // Keeps every contact read before the damage
+                compact();
+            }
+            loaded = true;
+        }
+
+        /**
+         * Must hold writeLock
+         */
+        void append(byte record, long hash, PhonebookContact contact) throws IOException {
+            if (log == null) {
+                boolean created = !file.exists();
+                if (created) {
+                    file.getParentFile().mkdirs();
+                }
+                logFile = new FileOutputStream(file, true);
+                log = new DataOutputStream(new BufferedOutputStream(logFile));
+                if (created) {
+                    log.writeInt(FILE_MAGIC);
+                    log.writeInt(FILE_VERSION);
+                }
+            }
+
+            log.writeByte(record);
+            log.writeLong(hash);
+            if (record == RECORD_PUT) {
+                writeContact(log, contact);
+            }
+        }
+
+        /**
+         * Must hold writeLock. Flushes the log to the disk.
+         */
+        void sync() throws IOException {
+            if (log != null) {
+                log.flush();
+                logFile.getFD().sync();
+            }
+        }
+
+        /**
+         * Must hold writeLock
+         */
+        void compactIfNeeded() throws IOException {
+            int live;
+            synchronized (this) {
+                live = contacts.size();
+            }
+
+            if (deadRecords >= MIN_DEAD_RECORDS_TO_COMPACT && deadRecords > live) {
+                compact();
+            }
+        }
+
+        /**
+         * Must hold writeLock. Rewrites the log with only the current contacts.
+         */
+        void compact() throws IOException {
+            closeLog();
+
+            LinkedHashMap<Long, PhonebookContact> current;
+            synchronized (this) {
+                current = new LinkedHashMap<>(contacts);
+            }
+
+            file.getParentFile().mkdirs();
+            File compacted = new File(file.getPath() + ".tmp");
+            FileOutputStream compactedFile = new FileOutputStream(compacted);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(compactedFile));
+            try {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                for (Long hash: current.keySet()) {
+                    out.writeByte(RECORD_PUT);
+                    out.writeLong(hash);
+                    writeContact(out, current.get(hash));
+                }
+                out.flush();
+                compactedFile.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            if (!compacted.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+            deadRecords = 0;
+        }
+
+        /**
+         * Must hold writeLock
+         */
+        void closeLog() {
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException ignored) {}
+                log = null;
+                logFile = null;
+            }
+        }
+    }
+
+    private static void writeContact(DataOutputStream out, PhonebookContact contact) throws IOException {
+        writeNullable(out, contact.getFormattedName());
+        writeNullable(out, contact.getFamilyName());
+        writeNullable(out, contact.getGivenName());
+
+        String[] numbers = contact.getNumbers();
+        String[] types = contact.getNumberTypes();
+        out.writeShort(numbers.length);
+        for (int i = 0; i < numbers.length; i++) {
+            writeNullable(out, numbers[i]);
+            writeNullable(out, types[i]);
+        }
+    }
+
+    private static PhonebookContact readContact(DataInputStream in) throws IOException {
+        String formattedName = readNullable(in);
+        String familyName = readNullable(in);
+        String givenName = readNullable(in);
+
+        int count = in.readUnsignedShort();
+        String[] numbers = new String[count];
+        String[] types = new String[count];
+        for (int i = 0; i < count; i++) {
+            numbers[i] = readNullable(in);
+            types[i] = readNullable(in);
+        }
+
+        return new PhonebookContact(formattedName, familyName, givenName, numbers, types);
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Syncs one phonebook pull into the store. Contacts whose hash is already stored are
+     * left alone, new ones are appended as they arrive, and once the pull completes the
+     * contacts it didn't contain are removed. Nothing is removed if the pull fails or is
+     * cancelled.
+     */
+    public class Sync implements PhonebookPull.PhonebookListener {
+        private final String address;
+        private final SyncCallback callback;
+
+        private Book book;
+        private HashSet<Long> unseen;
+
+        private int added;
+        private int unchanged;
+        private int removed;
+        private IOException error;
+        private boolean complete;
+
+        private Sync(String address, SyncCallback callback) {
+            this.address = address;
+            this.callback = callback;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public int getAdded() {
+            return added;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return true once the whole pull has been received and stored
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * @return the error which stopped the sync, or null
+         */
+        public IOException getError() {
+            return error;
+        }
+
+        @Override
+        public void onContacts(PhonebookPull pull, List<PhonebookContact> contacts) {
+            if (error != null) {
+                return;
+            }
+
+            try {
+                if (book == null) {
+                    book = getBook(address);
+                    unseen = book.hashes();
+                }
+
+                synchronized (book.writeLock) {
+                    for (PhonebookContact contact: contacts) {
+                        long hash = contentHash(contact);
+                        unseen.remove(hash);
+
+                        if (book.contains(hash)) {
+                            unchanged++;
+                        } else {
+                            book.append(RECORD_PUT, hash, contact);
+                            book.put(hash, contact);
+                            added++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        @Override
+        public void onPullFinished(PhonebookPull pull) {
+            if (error == null && book == null && pull.getState() == PhonebookPull.STATE_COMPLETE) {
+                // The phone has no contacts
+                try {
+                    book = getBook(address);
+                    unseen = book.hashes();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+
+            if (book != null) {
+                synchronized (book.writeLock) {
+                    try {
+                        if (error == null && pull.getState() == PhonebookPull.STATE_COMPLETE) {
+                            for (Long hash: unseen) {
+                                book.append(RECORD_REMOVE, hash, null);
+                                book.remove(hash);
+                                book.deadRecords += 2;
+                                removed++;
+                            }
+                        }
+
+                        book.sync();
+                        book.compactIfNeeded();
+                    } catch (IOException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                }
+            }
+
+            complete = error == null && pull.getState() == PhonebookPull.STATE_COMPLETE;
+            if (callback != null) {
+                callback.onSyncFinished(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+
+/**
+ * Connects to the module through a serial device or pty, such as /dev/ttyUSB0.
+ *
+ * The line settings can't be configured from Java, so the device must already be set up,
+ * for example with {@code stty -F /dev/ttyUSB0 115200 raw -echo}.
+ */
+public class PtyTransport extends ChannelTransport {
+    private final String path;
+
+    public PtyTransport(String path) {
+        this.path = path;
+    }
+
+    @Override
+    protected ByteChannel openChannel() throws IOException {
+        // A single FileChannel can't write while another thread is blocked reading it,
+        // so the device is opened once for each direction
+        FileChannel readChannel = new FileInputStream(path).getChannel();
+        try {
+            return new DuplexChannel(readChannel, new FileOutputStream(path, true).getChannel());
+        } catch (IOException e) {
+            readChannel.close();
+            throw e;
+        }
+    }
+
+    private static class DuplexChannel implements ByteChannel {
+        private final FileChannel readChannel;
+        private final FileChannel writeChannel;
+
+        DuplexChannel(FileChannel readChannel, FileChannel writeChannel) {
+            this.readChannel = readChannel;
+            this.writeChannel = writeChannel;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            return readChannel.read(buffer);
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            return writeChannel.write(buffer);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return readChannel.isOpen() && writeChannel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                readChannel.close();
+            } finally {
+                writeChannel.close();
+            }
+        }
+    }
+}
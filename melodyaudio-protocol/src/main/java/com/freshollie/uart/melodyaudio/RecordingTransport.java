@@ -0,0 +1,47 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.IOException;
+
+/**
+ * Wraps a transport, recording everything received from and written to it with a
+ * {@link TrafficRecorder}.
+ */
+public class RecordingTransport implements Transport {
+    private final Transport transport;
+    private final TrafficRecorder recorder;
+
+    public RecordingTransport(Transport transport, TrafficRecorder recorder) {
+        this.transport = transport;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void open() throws IOException {
+        transport.open();
+    }
+
+    /**
+     * Closes the transport, the recorder is left open
+     */
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    @Override
+    public void setReceiver(final Receiver receiver) {
+        transport.setReceiver(receiver == null ? null : new Receiver() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                recorder.recordIn(data);
+                receiver.onDataReceived(data);
+            }
+        });
+    }
+
+    @Override
+    public boolean write(byte[] data) {
+        recorder.recordOut(data);
+        return transport.write(data);
+    }
+}
@@ -0,0 +1,157 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays back the received bytes of a {@link TrafficRecorder} capture, so a capture from
+ * the field can be fed through a {@link MelodyAudioUartInterface} again.
+ *
+ * Received chunks are delivered on a replay thread, with the same gaps between them as
+ * when they were recorded divided by the speed, or back to back if the speed is
+ * {@link #AS_FAST_AS_POSSIBLE}. Written data goes nowhere, it is only counted.
+ */
+public class ReplayTransport implements Transport {
+    public static final double REAL_TIME = 1;
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private final File file;
+    private final double speed;
+
+    private volatile Receiver receiver;
+
+    private Thread replayThread;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private volatile long chunksReplayed;
+    private final AtomicLong writeCount = new AtomicLong();
+    private volatile IOException error;
+
+    public ReplayTransport(File file) {
+        this(file, REAL_TIME);
+    }
+
+    /**
+     * @param speed how many times faster than recorded to replay, or
+     *              {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public ReplayTransport(File file, double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Bad speed");
+        }
+
+        this.file = file;
+        this.speed = speed;
+    }
+
+    /**
+     * Starts replaying, a transport can only be replayed once
+     *
+     * @throws IOException if the capture can't be opened
+     */
+    @Override
+    public synchronized void open() throws IOException {
+        if (replayThread != null) {
+            return;
+        }
+
+        final TrafficRecorder.Reader reader = new TrafficRecorder.Reader(file);
+        replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay(reader);
+                } finally {
+                    try {
+                        reader.close();
+                    } catch (IOException ignored) {}
+                    finished.countDown();
+                }
+            }
+        }, ReplayTransport.class.getSimpleName());
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+
+    /**
+     * Stops replaying, the rest of the capture is not delivered
+     */
+    @Override
+    public synchronized void close() {
+        if (replayThread != null) {
+            replayThread.interrupt();
+        }
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public boolean write(byte[] data) {
+        writeCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Waits for the whole capture to have been delivered, or replaying to be closed
+     *
+     * @return false if it timed out
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    public long getChunksReplayed() {
+        return chunksReplayed;
+    }
+
+    /**
+     * @return the number of writes made to the transport, such as commands, which are
+     * discarded
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * @return why replaying stopped before the end of the capture, or null
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    private void replay(TrafficRecorder.Reader reader) {
+        long startNanos = System.nanoTime();
+
+        try {
+            TrafficRecorder.Chunk chunk;
+            while ((chunk = reader.read()) != null) {
+                if (chunk.getDirection() != TrafficRecorder.DIRECTION_IN) {
+                    continue;
+                }
+
+                if (speed != AS_FAST_AS_POSSIBLE) {
+                    long delayNanos = startNanos + (long) (chunk.getTimeNanos() / speed) - System.nanoTime();
+                    if (delayNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delayNanos);
+                    }
+                }
+
+                Receiver currentReceiver = receiver;
+                if (currentReceiver != null) {
+                    currentReceiver.onDataReceived(chunk.getData());
+                }
+                chunksReplayed++;
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.nio.charset.Charset;
+
+/**
+ * A reusable view over a single response line in the framer's line buffer.
+ *
+ * The line is only turned into a {@link String}, decoded as UTF-8, when something
+ * asks for it.
+ */
+public final class ResponseLine {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] buffer;
+    private int offset;
+    private int length;
+
+    private String string;
+
+    void set(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        string = null;
+    }
+
+    /**
+     * Views the same bytes as the other line
+     */
+    void set(ResponseLine line) {
+        buffer = line.buffer;
+        offset = line.offset;
+        length = line.length;
+        string = line.string;
+    }
+
+    /**
+     * Copies the other line's bytes, so this line no longer depends on the framer's buffer
+     */
+    void copyFrom(ResponseLine line) {
+        buffer = new byte[line.length];
+        if (line.length > 0) {
+            System.arraycopy(line.buffer, line.offset, buffer, 0, line.length);
+        }
+        offset = 0;
+        length = line.length;
+        string = line.string;
+    }
+
+    /**
+     * Shortens the line to its first length bytes
+     */
+    void truncate(int length) {
+        if (length < this.length) {
+            this.length = length;
+            string = null;
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte byteAt(int index) {
+        return buffer[offset + index];
+    }
+
+    public boolean startsWith(String prefix) {
+        if (prefix.length() > length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer[offset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public boolean contentEquals(String value) {
+        return value.length() == length && startsWith(value);
+    }
+
+    public int indexOf(char c) {
+        for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] == c) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public int indexOf(String value) {
+        for (int start = 0; start + value.length() <= length; start++) {
+            int i = 0;
+            while (i < value.length() && buffer[offset + start + i] == value.charAt(i)) {
+                i++;
+            }
+            if (i == value.length()) {
+                return start;
+            }
+        }
+
+        return -1;
+    }
+
+    public String substring(int start, int end) {
+        if (start == 0 && end == length) {
+            return toString();
+        }
+        return new String(buffer, offset + start, end - start, UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        if (string == null) {
+            string = new String(buffer, offset, length, UTF_8);
+        }
+        return string;
+    }
+}
@@ -0,0 +1,271 @@
+package com.freshollie.uart.melodyaudio;
+
+/**
+ * A cursor over the space separated tokens of a {@link ResponseLine}.
+ *
+ * Numbers, hex codes and bracketed status values are parsed straight out of the line,
+ * and tokens which are known constants are returned as those constants, so most
+ * responses can be parsed without allocating.
+ *
+ * Reusable, but only from one thread at a time.
+ */
+final class ResponseTokenizer {
+    private ResponseLine line;
+    private int position;
+
+    ResponseTokenizer reset(ResponseLine line) {
+        this.line = line;
+        position = 0;
+        skipSpaces();
+        return this;
+    }
+
+    boolean hasMoreTokens() {
+        return position < line.length();
+    }
+
+    /**
+     * Skips over the next token
+     */
+    ResponseTokenizer skip() {
+        tokenEnd();
+        skipSpaces();
+        return this;
+    }
+
+    /**
+     * @return true if the next token equals the value, without consuming it
+     */
+    boolean peekEquals(String value) {
+        int end = findTokenEnd();
+        if (end - position != value.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            if (line.byteAt(position + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the next token as a new string
+     */
+    String nextToken() {
+        int start = position;
+        int end = tokenEnd();
+        skipSpaces();
+        return substring(start, end);
+    }
+
+    /**
+     * @return the known value which equals the next token, or the token as a new string if
+     * it is not one of the known values
+     */
+    String nextToken(String[] knownValues) {
+        for (String value: knownValues) {
+            if (peekEquals(value)) {
+                skip();
+                return value;
+            }
+        }
+
+        return nextToken();
+    }
+
+    int nextInt() {
+        return nextInt(10);
+    }
+
+    /**
+     * Parses a hex token, with or without a 0x prefix
+     */
+    int nextHexInt() {
+        if (position + 1 < line.length() &&
+                line.byteAt(position) == '0' &&
+                (line.byteAt(position + 1) == 'x' || line.byteAt(position + 1) == 'X')) {
+            position += 2;
+        }
+
+        return nextInt(16);
+    }
+
+    /**
+     * Parses the value between the brackets of a status token, such as CONNECTABLE[ON]
+     */
+    String nextBracketValue(String[] knownValues) {
+        int open = indexOf('[', position);
+        int close = indexOf(']', open + 1);
+        int end = tokenEnd();
+
+        String value = null;
+        if (open != -1 && close != -1 && close < end) {
+            for (String knownValue: knownValues) {
+                if (regionEquals(open + 1, close, knownValue)) {
+                    value = knownValue;
+                    break;
+                }
+            }
+
+            if (value == null) {
+                value = substring(open + 1, close);
+            }
+        }
+
+        skipSpaces();
+
+        if (value == null) {
+            throw new IllegalArgumentException("No bracket value in " + line);
+        }
+        return value;
+    }
+
+    int nextBracketInt() {
+        int open = indexOf('[', position);
+        int close = indexOf(']', open + 1);
+        int end = tokenEnd();
+
+        if (open == -1 || close == -1 || close > end) {
+            throw new NumberFormatException("No bracket value in " + line);
+        }
+
+        int value = parseInt(open + 1, close, 10);
+        skipSpaces();
+        return value;
+    }
+
+    /**
+     * @return the contents of the next double quoted string in the line, which may contain
+     * spaces, or null if there is none
+     */
+    String nextQuoted() {
+        int open = indexOf('"', position);
+        if (open == -1) {
+            return null;
+        }
+
+        int close = indexOf('"', open + 1);
+        if (close == -1) {
+            close = line.length();
+        }
+
+        position = Math.min(close + 1, line.length());
+        skipSpaces();
+
+        return substring(open + 1, close);
+    }
+
+    /**
+     * @return every remaining token
+     */
+    String[] remainingTokens() {
+        int count = 0;
+        int savedPosition = position;
+        while (hasMoreTokens()) {
+            skip();
+            count++;
+        }
+        position = savedPosition;
+
+        String[] tokens = new String[count];
+        for (int i = 0; i < count; i++) {
+            tokens[i] = nextToken();
+        }
+        return tokens;
+    }
+
+    /**
+     * @return the rest of the line from the cursor, and moves the cursor to the end
+     */
+    String remaining() {
+        int start = position;
+        position = line.length();
+        return substring(start, line.length());
+    }
+
+    private int nextInt(int radix) {
+        int start = position;
+        int end = tokenEnd();
+        skipSpaces();
+        return parseInt(start, end, radix);
+    }
+
+    private int parseInt(int start, int end, int radix) {
+        if (start >= end) {
+            throw new NumberFormatException("Empty number in " + line);
+        }
+
+        boolean negative = line.byteAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i >= end) {
+            throw new NumberFormatException("Empty number in " + line);
+        }
+
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit((char) line.byteAt(i), radix);
+            if (digit < 0) {
+                throw new NumberFormatException("Bad number in " + line);
+            }
+            value = value * radix + digit;
+        }
+
+        return negative ? -value : value;
+    }
+
+    private boolean regionEquals(int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            if (line.byteAt(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int indexOf(char c, int from) {
+        if (from < 0) {
+            return -1;
+        }
+
+        for (int i = from; i < line.length(); i++) {
+            if (line.byteAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int findTokenEnd() {
+        int end = position;
+        while (end < line.length() && line.byteAt(end) != ' ') {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Moves the cursor to the end of the current token
+     */
+    private int tokenEnd() {
+        position = findTokenEnd();
+        return position;
+    }
+
+    private void skipSpaces() {
+        while (position < line.length() && line.byteAt(position) == ' ') {
+            position++;
+        }
+    }
+
+    private String substring(int start, int end) {
+        return line.substring(start, end);
+    }
+}
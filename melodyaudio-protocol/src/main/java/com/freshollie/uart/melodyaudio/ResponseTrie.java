@@ -0,0 +1,118 @@
+package com.freshollie.uart.melodyaudio;
+
+/**
+ * Classifies a response line by its first token in a single pass.
+ *
+ * Keys are stored in a trie of bytes. A token matches the value registered for the exact
+ * key if there is one, otherwise the value of the longest registered prefix of the token.
+ * A first token which is terminated by an '=' is classified as an assignment
+ * (e.g. "NAME=Melody" from a GET).
+ */
+class ResponseTrie {
+    static final int NO_MATCH = -1;
+
+    private static class Node {
+        private byte[] keys = new byte[0];
+        private Node[] children = new Node[0];
+
+        private int exactValue = NO_MATCH;
+        private int prefixValue = NO_MATCH;
+
+        Node child(byte key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node getOrCreateChild(byte key) {
+            Node child = child(key);
+
+            if (child == null) {
+                byte[] newKeys = new byte[keys.length + 1];
+                Node[] newChildren = new Node[children.length + 1];
+
+                System.arraycopy(keys, 0, newKeys, 0, keys.length);
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+
+                child = new Node();
+                newKeys[keys.length] = key;
+                newChildren[children.length] = child;
+
+                keys = newKeys;
+                children = newChildren;
+            }
+
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+    private int assignmentValue = NO_MATCH;
+
+    /**
+     * Maps a first token which exactly equals the key to the value
+     */
+    void put(String key, int value) {
+        nodeFor(key).exactValue = value;
+    }
+
+    /**
+     * Maps any first token which starts with the prefix to the value, unless a longer
+     * prefix or an exact key also matches
+     */
+    void putPrefix(String prefix, int value) {
+        nodeFor(prefix).prefixValue = value;
+    }
+
+    void putAssignment(int value) {
+        assignmentValue = value;
+    }
+
+    int classify(ResponseLine line) {
+        Node node = root;
+        int match = NO_MATCH;
+
+        int length = line.length();
+        for (int i = 0; i < length; i++) {
+            byte b = line.byteAt(i);
+
+            if (b == ' ') {
+                break;
+            }
+
+            if (b == '=') {
+                return assignmentValue;
+            }
+
+            if (node != null) {
+                if (node.prefixValue != NO_MATCH) {
+                    match = node.prefixValue;
+                }
+                node = node.child(b);
+            }
+        }
+
+        if (node != null) {
+            if (node.exactValue != NO_MATCH) {
+                return node.exactValue;
+            }
+
+            if (node.prefixValue != NO_MATCH) {
+                return node.prefixValue;
+            }
+        }
+
+        return match;
+    }
+
+    private Node nodeFor(String key) {
+        Node node = root;
+        for (int i = 0; i < key.length(); i++) {
+            node = node.getOrCreateChild((byte) key.charAt(i));
+        }
+        return node;
+    }
+}
@@ -0,0 +1,85 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were posted, on another executor which
+ * may be multi-threaded. Response routing keeps its state in plain fields, so it must
+ * never run on two threads at once.
+ *
+ * A single task on the underlying executor runs every queued task, so a busy queue
+ * doesn't post a task per line.
+ */
+class SerialExecutor implements Executor {
+    private final Executor executor;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean running;
+
+    private final Runnable runTasks = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // Keep running the queued tasks, and let the executor see the failure
+                    repost();
+                    throw e;
+                }
+            }
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+
+        post();
+    }
+
+    private void repost() {
+        synchronized (tasks) {
+            if (tasks.isEmpty()) {
+                running = false;
+                return;
+            }
+        }
+
+        post();
+    }
+
+    private void post() {
+        try {
+            executor.execute(runTasks);
+        } catch (RuntimeException e) {
+            synchronized (tasks) {
+                running = false;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects to the module through a TCP serial bridge, such as ser2net in raw mode.
+ */
+public class TcpTransport extends ChannelTransport {
+    private final String host;
+    private final int port;
+
+    public TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    protected ByteChannel openChannel() throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            socketChannel.socket().setTcpNoDelay(true);
+            socketChannel.connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+        return socketChannel;
+    }
+}
@@ -0,0 +1,302 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the raw bytes received from and written to the module into a capture file,
+ * which a {@link ReplayTransport} can play back.
+ *
+ * A capture is a header, then a chunk for every receive or write, in the order they
+ * happened: the direction, the nanoseconds since recording started, the length and the
+ * bytes. Chunks are copied into a buffer, which is written with a {@link FileChannel}.
+ * The buffer is written on a shared flush thread every {@link #FLUSH_INTERVAL_MS}, so a
+ * quiet capture still reaches the file, and by the recording thread only when a chunk
+ * doesn't fit in it.
+ *
+ * If writing fails, recording stops and {@link #getError()} has the cause.
+ */
+public class TrafficRecorder implements Closeable {
+    public static final int DIRECTION_IN = 1;
+    public static final int DIRECTION_OUT = 2;
+
+    public static final long FLUSH_INTERVAL_MS = 1000;
+
+    private static final int FILE_MAGIC = 0x4d415452;
+    private static final int FILE_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int CHUNK_HEADER_SIZE = 13;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String FLUSH_THREAD_NAME = "TrafficRecorderFlush";
+    private static final ScheduledExecutorService FLUSH_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, FLUSH_THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * One receive or write from a capture
+     */
+    public static final class Chunk {
+        private final int direction;
+        private final long timeNanos;
+        private final byte[] data;
+
+        Chunk(int direction, long timeNanos, byte[] data) {
+            this.direction = direction;
+            this.timeNanos = timeNanos;
+            this.data = data;
+        }
+
+        /**
+         * @return {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}
+         */
+        public int getDirection() {
+            return direction;
+        }
+
+        /**
+         * @return the nanoseconds from recording starting to this chunk
+         */
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    /**
+     * Reads the chunks of a capture in order
+     */
+    public static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final long startMillis;
+
+        public Reader(File file) throws IOException {
+            channel = new FileInputStream(file).getChannel();
+            buffer.limit(0);
+
+            try {
+                if (!fill(HEADER_SIZE) || buffer.getInt() != FILE_MAGIC || buffer.getInt() != FILE_VERSION) {
+                    throw new IOException("Not a capture " + file);
+                }
+                startMillis = buffer.getLong();
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return when recording started, in milliseconds since the epoch
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return the next chunk, or null at the end of the capture. A chunk cut short,
+         * by the recorder being killed, is treated as the end.
+         */
+        public Chunk read() throws IOException {
+            if (!fill(CHUNK_HEADER_SIZE)) {
+                return null;
+            }
+
+            int direction = buffer.get();
+            long timeNanos = buffer.getLong();
+            int length = buffer.getInt();
+            if ((direction != DIRECTION_IN && direction != DIRECTION_OUT) || length < 0) {
+                throw new IOException("Damaged capture");
+            }
+
+            byte[] data = new byte[length];
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(data, 0, read);
+
+            if (read < length) {
+                // Larger than the buffer, so read the rest straight into the data
+                ByteBuffer rest = ByteBuffer.wrap(data, read, length - read);
+                while (rest.hasRemaining()) {
+                    if (channel.read(rest) == -1) {
+                        return null;
+                    }
+                }
+            }
+
+            return new Chunk(direction, timeNanos, data);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * @return false if the capture ends before the bytes are available
+         */
+        private boolean fill(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return true;
+            }
+
+            buffer.compact();
+            try {
+                while (buffer.position() < bytes) {
+                    if (channel.read(buffer) == -1) {
+                        return false;
+                    }
+                }
+            } finally {
+                buffer.flip();
+            }
+            return true;
+        }
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final long startNanos;
+    private final ScheduledFuture<?> flushFuture;
+
+    private boolean closed;
+    private IOException error;
+
+    /**
+     * Starts a new capture, replacing the file if it exists
+     */
+    public TrafficRecorder(File file) throws IOException {
+        channel = new FileOutputStream(file).getChannel();
+
+        startNanos = System.nanoTime();
+
+        buffer.putInt(FILE_MAGIC);
+        buffer.putInt(FILE_VERSION);
+        buffer.putLong(System.currentTimeMillis());
+
+        flushFuture = FLUSH_SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records bytes received from the module
+     */
+    public void recordIn(byte[] data) {
+        record(DIRECTION_IN, data, 0, data.length);
+    }
+
+    /**
+     * Records bytes written to the module
+     */
+    public void recordOut(byte[] data) {
+        record(DIRECTION_OUT, data, 0, data.length);
+    }
+
+    public synchronized void record(int direction, byte[] data, int offset, int length) {
+        if (closed) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        try {
+            if (buffer.remaining() < CHUNK_HEADER_SIZE + length) {
+                writeBuffer();
+            }
+
+            buffer.put((byte) direction);
+            buffer.putLong(now - startNanos);
+            buffer.putInt(length);
+
+            if (buffer.remaining() >= length) {
+                buffer.put(data, offset, length);
+            } else {
+                // Larger than the buffer, so write it straight to the file
+                writeBuffer();
+                ByteBuffer large = ByteBuffer.wrap(data, offset, length);
+                while (large.hasRemaining()) {
+                    channel.write(large);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes every buffered chunk to the file
+     */
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+
+        try {
+            writeBuffer();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @return why recording stopped early, or null
+     */
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        flushFuture.cancel(false);
+        flush();
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void fail(IOException e) {
+        flushFuture.cancel(false);
+        error = e;
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,31 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.IOException;
+
+/**
+ * The link to the Melody Audio module, such as a USB serial connection, a TCP serial
+ * bridge, a serial device or pty, or an in memory loopback.
+ */
+public interface Transport {
+    interface Receiver {
+        /**
+         * Called from the transport's read thread with newly received bytes
+         */
+        void onDataReceived(byte[] data);
+    }
+
+    /**
+     * Opens the link, data is delivered to the receiver until it is closed
+     */
+    void open() throws IOException;
+
+    void close();
+
+    void setReceiver(Receiver receiver);
+
+    /**
+     * @return false if the data could not be written, such as when the link is closed
+     * or its write queue stayed full
+     */
+    boolean write(byte[] data);
+}
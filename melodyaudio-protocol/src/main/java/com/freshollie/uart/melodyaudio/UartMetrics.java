@@ -0,0 +1,261 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and latency histograms for the UART stack, see
+ * {@link MelodyAudioUartInterface#getMetrics()}.
+ *
+ * Recording never allocates or locks, every value lives in a preallocated
+ * {@link AtomicLongArray}, so it is cheap enough for the receive path. Values are read
+ * by taking a {@link #snapshot()}, and rates come from the difference between two.
+ *
+ * Histograms have a bucket for every power of 2 nanoseconds, so percentiles are
+ * accurate to within a factor of 2.
+ */
+public class UartMetrics {
+    public static final int COUNTER_BYTES_IN = 0;
+    public static final int COUNTER_BYTES_OUT = 1;
+    public static final int COUNTER_LINES_IN = 2;
+    // Lines which didn't match any known response
+    public static final int COUNTER_LINES_UNMATCHED = 3;
+    // Lines which were discarded because nothing was subscribed to their event
+    public static final int COUNTER_LINES_UNDISPATCHED = 4;
+    // Lines routed to a registered response handler
+    public static final int COUNTER_LINES_CUSTOM = 5;
+    public static final int COUNTER_COMMANDS_SENT = 6;
+    public static final int COUNTER_COMMANDS_TIMED_OUT = 7;
+    // Writes rejected because the transport's write queue was full
+    public static final int COUNTER_WRITES_DROPPED = 8;
+    public static final int COUNTER_RECONNECTS = 9;
+    public static final int COUNTER_CONNECT_FAILURES = 10;
+    // Lines which threw while being parsed or dispatched, and were skipped
+    public static final int COUNTER_LINES_FAILED = 11;
+    // Lines discarded by the framer for being longer than any response
+    public static final int COUNTER_LINES_TOO_LONG = 12;
+    static final int COUNTER_COUNT = 13;
+
+    // The time to classify, parse and dispatch a received line
+    public static final int HISTOGRAM_LINE_ROUTING = 0;
+    // The time from a command being sent to its response
+    public static final int HISTOGRAM_ROUND_TRIP = 1;
+    // The time from the link being lost to it being reconnected
+    public static final int HISTOGRAM_RECONNECT = 2;
+    static final int HISTOGRAM_COUNT = 3;
+
+    // Lines framed but not yet routed, when the dispatch thread last started draining
+    public static final int GAUGE_DISPATCH_QUEUE_DEPTH = 0;
+    public static final int GAUGE_MAX_DISPATCH_QUEUE_DEPTH = 1;
+    static final int GAUGE_COUNT = 2;
+
+    private static final int BUCKET_COUNT = 64;
+
+    // Every histogram is a count, sum and max, followed by its buckets
+    private static final int HISTOGRAM_COUNT_OFFSET = 0;
+    private static final int HISTOGRAM_SUM_OFFSET = 1;
+    private static final int HISTOGRAM_MAX_OFFSET = 2;
+    private static final int HISTOGRAM_BUCKETS_OFFSET = 3;
+    private static final int HISTOGRAM_STRIDE = HISTOGRAM_BUCKETS_OFFSET + BUCKET_COUNT;
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+    // Indexed by event type
+    private final AtomicLongArray lines = new AtomicLongArray(MelodyAudioEvent.TYPE_COUNT);
+    private final AtomicLongArray histograms = new AtomicLongArray(HISTOGRAM_COUNT * HISTOGRAM_STRIDE);
+    private final AtomicLongArray gauges = new AtomicLongArray(GAUGE_COUNT);
+
+    public void increment(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    public void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    /**
+     * Counts a received line as the event type it was routed as
+     */
+    void incrementLines(int eventType) {
+        lines.incrementAndGet(eventType);
+    }
+
+    public void record(int histogram, long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        int base = histogram * HISTOGRAM_STRIDE;
+        histograms.incrementAndGet(base + HISTOGRAM_COUNT_OFFSET);
+        histograms.addAndGet(base + HISTOGRAM_SUM_OFFSET, nanos);
+        histograms.incrementAndGet(base + HISTOGRAM_BUCKETS_OFFSET + bucketOf(nanos));
+        updateMax(histograms, base + HISTOGRAM_MAX_OFFSET, nanos);
+    }
+
+    /**
+     * Sets the gauge, and the max gauge that tracks it if there is one
+     */
+    public void setGauge(int gauge, long value) {
+        gauges.set(gauge, value);
+        if (gauge == GAUGE_DISPATCH_QUEUE_DEPTH) {
+            updateMax(gauges, GAUGE_MAX_DISPATCH_QUEUE_DEPTH, value);
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Bucket i holds values below 2^i nanoseconds, and at least 2^(i - 1)
+     */
+    private static int bucketOf(long nanos) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    private static void updateMax(AtomicLongArray array, int index, long value) {
+        long max;
+        while (value > (max = array.get(index))) {
+            if (array.compareAndSet(index, max, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The metrics at one moment. Each value is read atomically, but not all together,
+     * so a snapshot taken while recording may be off by the values being recorded.
+     */
+    public static final class Snapshot {
+        private final long timeNanos;
+        private final long[] counters;
+        private final long[] lines;
+        private final HistogramSnapshot[] histograms;
+        private final long[] gauges;
+
+        private Snapshot(UartMetrics metrics) {
+            timeNanos = System.nanoTime();
+            counters = toArray(metrics.counters);
+            lines = toArray(metrics.lines);
+            gauges = toArray(metrics.gauges);
+
+            histograms = new HistogramSnapshot[HISTOGRAM_COUNT];
+            for (int i = 0; i < HISTOGRAM_COUNT; i++) {
+                histograms[i] = new HistogramSnapshot(metrics.histograms, i * HISTOGRAM_STRIDE);
+            }
+        }
+
+        /**
+         * @return when the snapshot was taken, from {@link System#nanoTime()}
+         */
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        public long getCounter(int counter) {
+            return counters[counter];
+        }
+
+        /**
+         * @return the number of lines received as the event class
+         */
+        public long getLines(Class<? extends MelodyAudioEvent> eventClass) {
+            return lines[typeOf(eventClass)];
+        }
+
+        public long getGauge(int gauge) {
+            return gauges[gauge];
+        }
+
+        public HistogramSnapshot getHistogram(int histogram) {
+            return histograms[histogram];
+        }
+
+        /**
+         * @return how many times per second the counter increased since the earlier snapshot
+         */
+        public double getRate(Snapshot earlier, int counter) {
+            return perSecond(counters[counter] - earlier.counters[counter], earlier);
+        }
+
+        /**
+         * @return the lines per second received as the event class since the earlier snapshot
+         */
+        public double getLineRate(Snapshot earlier, Class<? extends MelodyAudioEvent> eventClass) {
+            int type = typeOf(eventClass);
+            return perSecond(lines[type] - earlier.lines[type], earlier);
+        }
+
+        private double perSecond(long delta, Snapshot earlier) {
+            long elapsedNanos = timeNanos - earlier.timeNanos;
+            return elapsedNanos <= 0 ? 0 : delta * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        private static int typeOf(Class<? extends MelodyAudioEvent> eventClass) {
+            int type = MelodyAudioEvent.typeOf(eventClass);
+            if (type == -1) {
+                throw new IllegalArgumentException("Not a line event " + eventClass);
+            }
+            return type;
+        }
+
+        private static long[] toArray(AtomicLongArray array) {
+            long[] values = new long[array.length()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = array.get(i);
+            }
+            return values;
+        }
+    }
+
+    public static final class HistogramSnapshot {
+        private final long count;
+        private final long sumNanos;
+        private final long maxNanos;
+        private final long[] buckets = new long[BUCKET_COUNT];
+
+        private HistogramSnapshot(AtomicLongArray histograms, int base) {
+            count = histograms.get(base + HISTOGRAM_COUNT_OFFSET);
+            sumNanos = histograms.get(base + HISTOGRAM_SUM_OFFSET);
+            maxNanos = histograms.get(base + HISTOGRAM_MAX_OFFSET);
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = histograms.get(base + HISTOGRAM_BUCKETS_OFFSET + i);
+            }
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : sumNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * @param percentile 0 to 100
+         * @return the upper bound of the bucket the percentile falls in, at most the max
+         */
+        public long getPercentileNanos(double percentile) {
+            long total = 0;
+            for (long bucket: buckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == BUCKET_COUNT - 1 ? maxNanos : Math.min(maxNanos, (1L << i) - 1);
+                }
+            }
+            return maxNanos;
+        }
+    }
+}
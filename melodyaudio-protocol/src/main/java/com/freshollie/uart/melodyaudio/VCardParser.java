@@ -0,0 +1,245 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Parses the vCards of a phonebook pull a line at a time, as the lines arrive.
+ *
+ * Only the N, FN and TEL properties are kept. Values may be quoted printable, with soft
+ * line breaks, and are decoded as UTF-8. The framer trims lines, so a folded line can't be
+ * told apart by its leading space, and is instead recognised by having no ':'.
+ *
+ * Not thread safe.
+ */
+class VCardParser {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String BEGIN = "BEGIN:VCARD";
+    private static final String END = "END:VCARD";
+
+    private static final String QUOTED_PRINTABLE = "QUOTED-PRINTABLE";
+    private static final String TYPE_PREFIX = "TYPE=";
+
+    private boolean inCard;
+
+    // The property being read, which may continue over several lines
+    private byte[] property = new byte[256];
+    private int propertyLength;
+    private int valueStart;
+    private boolean quotedPrintable;
+    private boolean softLineBreak;
+
+    private String formattedName;
+    private String familyName;
+    private String givenName;
+    private final ArrayList<String> numbers = new ArrayList<>();
+    private final ArrayList<String> numberTypes = new ArrayList<>();
+
+    /**
+     * @return the contact, if the line completed a vCard, otherwise null
+     */
+    PhonebookContact onLine(ResponseLine line) {
+        if (!inCard) {
+            if (line.contentEquals(BEGIN)) {
+                inCard = true;
+                clearCard();
+            }
+            return null;
+        }
+
+        if (softLineBreak || (propertyLength > 0 && line.indexOf(':') == -1)) {
+            appendLine(line);
+            return null;
+        }
+
+        finishProperty();
+
+        if (line.contentEquals(END)) {
+            inCard = false;
+            PhonebookContact contact = new PhonebookContact(
+                    formattedName,
+                    familyName,
+                    givenName,
+                    numbers.toArray(new String[numbers.size()]),
+                    numberTypes.toArray(new String[numberTypes.size()])
+            );
+            clearCard();
+            return contact;
+        }
+
+        if (line.contentEquals(BEGIN)) {
+            // The previous card was never ended
+            clearCard();
+            return null;
+        }
+
+        valueStart = line.indexOf(':') + 1;
+        quotedPrintable = regionContains(line, valueStart - 1, QUOTED_PRINTABLE);
+        appendLine(line);
+        return null;
+    }
+
+    /**
+     * Drops any partly read vCard
+     */
+    void reset() {
+        inCard = false;
+        clearCard();
+    }
+
+    private void clearCard() {
+        propertyLength = 0;
+        softLineBreak = false;
+        formattedName = null;
+        familyName = null;
+        givenName = null;
+        numbers.clear();
+        numberTypes.clear();
+    }
+
+    private void appendLine(ResponseLine line) {
+        int length = line.length();
+        softLineBreak = quotedPrintable && length > 0 && line.byteAt(length - 1) == '=';
+        if (softLineBreak) {
+            length--;
+        }
+
+        if (propertyLength + length > property.length) {
+            byte[] grown = new byte[Math.max(property.length * 2, propertyLength + length)];
+            System.arraycopy(property, 0, grown, 0, propertyLength);
+            property = grown;
+        }
+
+        for (int i = 0; i < length; i++) {
+            property[propertyLength++] = line.byteAt(i);
+        }
+    }
+
+    private void finishProperty() {
+        if (propertyLength == 0) {
+            return;
+        }
+
+        int nameEnd = 0;
+        while (nameEnd < propertyLength && property[nameEnd] != ';' && property[nameEnd] != ':') {
+            nameEnd++;
+        }
+
+        if (nameEquals(nameEnd, "FN")) {
+            formattedName = decodeValue();
+        } else if (nameEquals(nameEnd, "N")) {
+            // Family;Given;Middle;Prefix;Suffix
+            String[] parts = splitUnescaped(decodeValue());
+            familyName = parts.length > 0 ? parts[0] : null;
+            givenName = parts.length > 1 ? parts[1] : null;
+        } else if (nameEquals(nameEnd, "TEL")) {
+            numbers.add(decodeValue());
+            numberTypes.add(firstType(nameEnd));
+        }
+
+        propertyLength = 0;
+        softLineBreak = false;
+    }
+
+    private boolean nameEquals(int nameEnd, String name) {
+        if (nameEnd != name.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < nameEnd; i++) {
+            if (Character.toUpperCase(property[i]) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decodeValue() {
+        int start = Math.min(valueStart, propertyLength);
+        if (!quotedPrintable) {
+            return new String(property, start, propertyLength - start, UTF_8);
+        }
+
+        // Decoded in place, the output is never longer than the input
+        int out = start;
+        for (int i = start; i < propertyLength; i++) {
+            byte b = property[i];
+            if (b == '=' && i + 2 < propertyLength) {
+                int high = Character.digit(property[i + 1], 16);
+                int low = Character.digit(property[i + 2], 16);
+                if (high != -1 && low != -1) {
+                    property[out++] = (byte) (high << 4 | low);
+                    i += 2;
+                    continue;
+                }
+            }
+            property[out++] = b;
+        }
+        return new String(property, start, out - start, UTF_8);
+    }
+
+    /**
+     * @return the first TYPE parameter, or bare parameter, such as CELL in TEL;CELL:
+     */
+    private String firstType(int nameEnd) {
+        int paramsEnd = Math.max(valueStart - 1, nameEnd);
+        int start = nameEnd + 1;
+
+        while (start < paramsEnd) {
+            int end = start;
+            while (end < paramsEnd && property[end] != ';' && property[end] != ',') {
+                end++;
+            }
+
+            String param = new String(property, start, end - start, UTF_8);
+            if (param.regionMatches(true, 0, TYPE_PREFIX, 0, TYPE_PREFIX.length())) {
+                param = param.substring(TYPE_PREFIX.length());
+            }
+            if (!param.isEmpty() && param.indexOf('=') == -1 &&
+                    !param.equalsIgnoreCase(QUOTED_PRINTABLE) && !param.equalsIgnoreCase("PREF")) {
+                return param.toUpperCase();
+            }
+
+            start = end + 1;
+        }
+
+        return null;
+    }
+
+    private static boolean regionContains(ResponseLine line, int end, String value) {
+        for (int start = 0; start + value.length() <= end; start++) {
+            int i = 0;
+            while (i < value.length() && Character.toUpperCase(line.byteAt(start + i)) == value.charAt(i)) {
+                i++;
+            }
+            if (i == value.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a structured value on ';', except where it is escaped
+     */
+    private static String[] splitUnescaped(String value) {
+        ArrayList<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                part.append(value.charAt(++i));
+            } else if (c == ';') {
+                parts.add(part.toString());
+                part.setLength(0);
+            } else {
+                part.append(c);
+            }
+        }
+        parts.add(part.toString());
+
+        return parts.toArray(new String[parts.size()]);
+    }
+}
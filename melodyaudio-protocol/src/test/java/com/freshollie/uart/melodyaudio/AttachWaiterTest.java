@@ -0,0 +1,123 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AttachWaiterTest {
+    // Allowed lateness of a poll, for a busy machine
+    private static final long SLACK_MS = 250;
+
+    /**
+     * Attaches the device once {@link #attach()} is called, and records when it was looked for
+     */
+    private static class FakeDeviceProvider implements AttachWaiter.DeviceProvider<Object> {
+        final Object device = new Object();
+        final ArrayList<Long> pollNanos = new ArrayList<>();
+        private volatile boolean attached;
+        private int attachAfterPolls = -1;
+
+        void attach() {
+            attached = true;
+        }
+
+        @Override
+        public synchronized Object findDevice() {
+            pollNanos.add(System.nanoTime());
+            if (attachAfterPolls != -1 && pollNanos.size() > attachAfterPolls) {
+                attached = true;
+            }
+            return attached ? device : null;
+        }
+
+        synchronized long gapMs(int poll) {
+            return TimeUnit.NANOSECONDS.toMillis(pollNanos.get(poll) - pollNanos.get(poll - 1));
+        }
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxIntervalBelowInitial() {
+        new AttachWaiter<>(new FakeDeviceProvider(), 100, 50);
+    }
+
+    @Test
+    public void returnsAttachedDeviceWithoutWaiting() throws Exception {
+        FakeDeviceProvider provider = new FakeDeviceProvider();
+        provider.attach();
+
+        long start = System.nanoTime();
+        assertSame(provider.device, new AttachWaiter<>(provider).await(5000));
+        assertEquals(1, provider.pollNanos.size());
+        assertTrue(millisSince(start) < SLACK_MS);
+    }
+
+    @Test
+    public void pollIntervalDoublesUpToMax() throws Exception {
+        FakeDeviceProvider provider = new FakeDeviceProvider();
+        AttachWaiter<Object> waiter = new AttachWaiter<>(provider);
+
+        long start = System.nanoTime();
+        assertNull(waiter.await(3600));
+        // Gives up once less than a millisecond is left
+        assertTrue(millisSince(start) >= 3599);
+
+        long[] expectedGapsMs = {50, 100, 200, 400, 800, 1000, 1000};
+        assertTrue(provider.pollNanos.size() > expectedGapsMs.length);
+        for (int i = 0; i < expectedGapsMs.length; i++) {
+            long gapMs = provider.gapMs(i + 1);
+            assertTrue("Poll " + (i + 1) + " after " + gapMs + " ms", gapMs >= expectedGapsMs[i] - 1);
+            assertTrue("Poll " + (i + 1) + " after " + gapMs + " ms", gapMs <= expectedGapsMs[i] + SLACK_MS);
+        }
+    }
+
+    @Test
+    public void attachWakesWaiterBeforeNextPoll() throws Exception {
+        final FakeDeviceProvider provider = new FakeDeviceProvider();
+        final AttachWaiter<Object> waiter = new AttachWaiter<>(provider, 10000, 10000);
+
+        Thread attacher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                provider.attach();
+                waiter.onDeviceAttached();
+            }
+        });
+
+        long start = System.nanoTime();
+        attacher.start();
+        assertSame(provider.device, waiter.await(20000));
+        assertTrue(millisSince(start) < 100 + SLACK_MS * 4);
+        assertEquals(2, provider.pollNanos.size());
+        attacher.join();
+    }
+
+    @Test
+    public void attachSignalledBeforeWaitingIsNotLost() throws Exception {
+        FakeDeviceProvider provider = new FakeDeviceProvider();
+        provider.attachAfterPolls = 1;
+        AttachWaiter<Object> waiter = new AttachWaiter<>(provider, 10000, 10000);
+
+        // The broadcast arrives between the first look and the wait
+        waiter.onDeviceAttached();
+
+        long start = System.nanoTime();
+        assertSame(provider.device, waiter.await(20000));
+        assertTrue(millisSince(start) < SLACK_MS);
+        assertEquals(2, provider.pollNanos.size());
+    }
+}
@@ -0,0 +1,200 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CallerIdIndexTest {
+    // The size of a new index's table, which holds up to 8 numbers before it grows
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static String number(int i) {
+        return String.format(Locale.US, "07700 9%05d", i);
+    }
+
+    private static int homeSlot(String number) {
+        return CallerIdIndex.mix(CallerIdIndex.keyOf(number)) & (INITIAL_CAPACITY - 1);
+    }
+
+    /**
+     * @return numbers which all hash to the slot in a new index
+     */
+    private static ArrayList<String> numbersInSlot(int slot, int count) {
+        ArrayList<String> numbers = new ArrayList<>();
+        for (int i = 0; numbers.size() < count; i++) {
+            if (homeSlot(number(i)) == slot) {
+                numbers.add(number(i));
+            }
+        }
+        return numbers;
+    }
+
+    @Test
+    public void keysTheLastNineDigitsAndTheDigitCount() {
+        assertEquals(CallerIdIndex.keyOf("+44 7700 900123"), CallerIdIndex.keyOf("07700 900123"));
+        assertEquals(CallerIdIndex.keyOf("0044-7700-900123"), CallerIdIndex.keyOf("(07700) 900 123"));
+        assertEquals(CallerIdIndex.keyOf("+33 1 23 45 67 89"), CallerIdIndex.keyOf("01 23 45 67 89"));
+
+        // Short numbers keep their length, so leading zeros still count
+        assertNotEquals(CallerIdIndex.keyOf("123"), CallerIdIndex.keyOf("000000123"));
+        assertNotEquals(CallerIdIndex.keyOf("123"), CallerIdIndex.keyOf("0123"));
+        assertNotEquals(CallerIdIndex.keyOf("07700 900123"), CallerIdIndex.keyOf("07700 900124"));
+
+        assertEquals(0, CallerIdIndex.keyOf(""));
+        assertEquals(0, CallerIdIndex.keyOf("+() -"));
+    }
+
+    @Test
+    public void matchesNationalAndInternationalForms() {
+        CallerIdIndex<String> index = new CallerIdIndex<>();
+        assertTrue(index.put("07700 900123", "Alex"));
+
+        assertEquals("Alex", index.get("+447700900123"));
+        assertNull(index.get("07700 900124"));
+        assertFalse(index.put("Unknown", "Nobody"));
+        assertNull(index.get("Unknown"));
+    }
+
+    @Test
+    public void collidingNumbersAreAllFound() {
+        CallerIdIndex<String> index = new CallerIdIndex<>();
+        ArrayList<String> numbers = numbersInSlot(3, 5);
+
+        for (String number: numbers) {
+            assertTrue(index.put(number, number));
+        }
+
+        assertEquals(5, index.size());
+        for (String number: numbers) {
+            assertEquals(number, index.get(number));
+        }
+    }
+
+    @Test
+    public void removingFromTheMiddleOfAProbeChainKeepsTheRestReachable() {
+        CallerIdIndex<String> index = new CallerIdIndex<>();
+        ArrayList<String> numbers = numbersInSlot(3, 5);
+        for (String number: numbers) {
+            index.put(number, number);
+        }
+
+        assertTrue(index.remove(numbers.get(2), numbers.get(2)));
+
+        assertEquals(4, index.size());
+        assertNull(index.get(numbers.get(2)));
+        for (int i = 0; i < numbers.size(); i++) {
+            if (i != 2) {
+                assertEquals(numbers.get(i), index.get(numbers.get(i)));
+            }
+        }
+
+        assertTrue(index.put(numbers.get(2), "Again"));
+        assertEquals("Again", index.get(numbers.get(2)));
+    }
+
+    @Test
+    public void removingFromAChainWhichWrapsAroundTheTable() {
+        CallerIdIndex<String> index = new CallerIdIndex<>();
+        // Three in the last slot, which wrap into slots 0 and 1, then one whose home is slot 0
+        ArrayList<String> numbers = numbersInSlot(INITIAL_CAPACITY - 1, 3);
+        numbers.addAll(numbersInSlot(0, 1));
+        for (String number: numbers) {
+            index.put(number, number);
+        }
+
+        assertTrue(index.remove(numbers.get(0), numbers.get(0)));
+
+        assertNull(index.get(numbers.get(0)));
+        for (int i = 1; i < numbers.size(); i++) {
+            assertEquals(numbers.get(i), index.get(numbers.get(i)));
+        }
+    }
+
+    @Test
+    public void onlyRemovesTheNumbersValue() {
+        CallerIdIndex<String> index = new CallerIdIndex<>();
+        index.put("07700 900123", "Alex");
+        index.put("07700 900123", "Sam");
+
+        assertEquals(1, index.size());
+        assertFalse(index.remove("07700 900123", "Alex"));
+        assertFalse(index.remove("07700 900999", "Sam"));
+        assertTrue(index.remove("+44 7700 900123", "Sam"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void growsAndKeepsEveryNumber() {
+        CallerIdIndex<String> index = new CallerIdIndex<>();
+        String[] numbers = new String[5000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = number(i);
+            assertTrue(index.put(numbers[i], numbers[i]));
+        }
+
+        assertEquals(numbers.length, index.size());
+        for (String number: numbers) {
+            assertEquals(number, index.get(number));
+        }
+
+        // Values are removed by identity
+        for (int i = 0; i < numbers.length; i += 2) {
+            assertTrue(index.remove(numbers[i], numbers[i]));
+        }
+        for (int i = 0; i < numbers.length; i++) {
+            assertEquals(i % 2 == 0 ? null : numbers[i], index.get(numbers[i]));
+        }
+    }
+
+    @Test
+    public void ignoresNumbersBeyondTheMaximum() {
+        CallerIdIndex<Integer> index = new CallerIdIndex<>(3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(index.put(number(i), i));
+        }
+
+        assertFalse(index.put(number(3), 3));
+        // Replacing a number's value doesn't need room
+        assertTrue(index.put(number(0), 10));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void agreesWithAHashMap() {
+        CallerIdIndex<Integer> index = new CallerIdIndex<>();
+        HashMap<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(19);
+
+        for (int i = 0; i < 20000; i++) {
+            String number = number(random.nextInt(300));
+            Long key = CallerIdIndex.keyOf(number);
+
+            if (random.nextInt(3) == 0) {
+                Integer value = expected.get(key);
+                assertEquals(value != null, index.remove(number, value));
+                expected.remove(key);
+            } else {
+                // Boxed once, as values are removed by identity
+                Integer value = i;
+                index.put(number, value);
+                expected.put(key, value);
+            }
+
+            assertEquals(expected.size(), index.size());
+            assertEquals(expected.get(key), index.get(number));
+        }
+
+        for (int i = 0; i < 300; i++) {
+            assertEquals(expected.get(CallerIdIndex.keyOf(number(i))), index.get(number(i)));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelTransportTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    /**
+     * A channel whose reads are fed by the test, and whose writes can be made to fail
+     */
+    private static class FakeChannel implements ByteChannel {
+        private final LinkedBlockingQueue<byte[]> reads = new LinkedBlockingQueue<>();
+        private final LinkedBlockingQueue<String> writes = new LinkedBlockingQueue<>();
+
+        private volatile IOException readFailure;
+        private volatile IOException writeFailure;
+        private volatile boolean open = true;
+
+        void receive(String data) {
+            reads.add(data.getBytes(UTF_8));
+        }
+
+        void failRead(IOException e) {
+            readFailure = e;
+            reads.add(END_OF_STREAM);
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            byte[] data;
+            try {
+                data = reads.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClosedByInterruptException();
+            }
+
+            if (readFailure != null) {
+                throw readFailure;
+            }
+            if (data == END_OF_STREAM) {
+                return -1;
+            }
+
+            buffer.put(data);
+            return data.length;
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            writes.add(new String(data, UTF_8));
+            return data.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    private static class FakeTransport extends ChannelTransport {
+        private final FakeChannel channel = new FakeChannel();
+        private final CountDownLatch failed = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile IOException closedBy;
+
+        @Override
+        protected ByteChannel openChannel() {
+            return channel;
+        }
+
+        @Override
+        protected void onChannelClosed(IOException e) {
+            closedBy = e;
+            failed.countDown();
+        }
+
+        @Override
+        public synchronized void close() {
+            super.close();
+            closed.countDown();
+        }
+    }
+
+    private FakeTransport transport;
+    private final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+    @Before
+    public void openTransport() throws IOException {
+        transport = new FakeTransport();
+        transport.setReceiver(new Transport.Receiver() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                received.add(new String(data, UTF_8));
+            }
+        });
+        transport.open();
+    }
+
+    @After
+    public void closeTransport() {
+        transport.close();
+    }
+
+    @Test
+    public void roundTrip() throws InterruptedException {
+        assertTrue(transport.write("STATUS\r".getBytes(UTF_8)));
+        assertEquals("STATUS\r", transport.channel.writes.poll(5, TimeUnit.SECONDS));
+
+        transport.channel.receive("OK\r\n");
+        assertEquals("OK\r\n", received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void readFailureClosesTheTransport() throws InterruptedException {
+        IOException failure = new IOException("Unplugged");
+        transport.channel.failRead(failure);
+
+        assertTrue(transport.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, transport.failed.getCount());
+        assertSame(failure, transport.closedBy);
+        assertFalse(transport.isOpen());
+        assertFalse(transport.channel.isOpen());
+        assertFalse(transport.write("STATUS\r".getBytes(UTF_8)));
+    }
+
+    @Test
+    public void endOfStreamClosesTheTransport() throws InterruptedException {
+        transport.channel.reads.add(END_OF_STREAM);
+
+        assertTrue(transport.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, transport.failed.getCount());
+        assertNull(transport.closedBy);
+        assertFalse(transport.isOpen());
+    }
+
+    @Test
+    public void writeFailureClosesTheTransport() throws InterruptedException {
+        IOException failure = new IOException("Unplugged");
+        transport.channel.writeFailure = failure;
+
+        assertFalse(transport.write("STATUS\r".getBytes(UTF_8)));
+
+        assertTrue(transport.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, transport.failed.getCount());
+        assertSame(failure, transport.closedBy);
+        assertFalse(transport.isOpen());
+    }
+
+    @Test
+    public void writeAfterCloseIsRejected() throws InterruptedException {
+        transport.close();
+
+        assertFalse(transport.isOpen());
+        assertFalse(transport.write("STATUS\r".getBytes(UTF_8)));
+        assertNull(transport.channel.writes.poll(100, TimeUnit.MILLISECONDS));
+        // Closing isn't a failure
+        assertEquals(1, transport.failed.getCount());
+    }
+}
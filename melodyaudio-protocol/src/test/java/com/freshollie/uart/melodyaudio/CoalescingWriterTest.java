@@ -0,0 +1,125 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingWriterTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final LinkedBlockingQueue<String> written = new LinkedBlockingQueue<>();
+    private CoalescingWriter writer;
+
+    @After
+    public void stopWriter() {
+        if (writer != null) {
+            writer.stop();
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+
+    @Test
+    public void writesALoneCommandWithoutWaitingForMore() throws InterruptedException {
+        writer = new CoalescingWriter(new CoalescingWriter.Sink() {
+            @Override
+            public void write(byte[] data) {
+                written.add(new String(data, UTF_8));
+            }
+        }, 512, 10000, 16, 100);
+        writer.start();
+
+        assertTrue(writer.write(bytes("STATUS\r")));
+
+        // Well within the 10 s latency budget
+        assertEquals("STATUS\r", written.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void coalescesCommandsQueuedBehindAWrite() throws InterruptedException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        writer = new CoalescingWriter(new CoalescingWriter.Sink() {
+            @Override
+            public void write(byte[] data) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                written.add(new String(data, UTF_8));
+            }
+        }, 16, 50, 16, 100);
+        writer.start();
+
+        writer.write(bytes("STATUS\r"));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        writer.write(bytes("NAME 10\r"));
+        writer.write(bytes("NAME 11\r"));
+        writer.write(bytes("PLAY 11\r"));
+        release.countDown();
+
+        assertEquals("STATUS\r", written.poll(5, TimeUnit.SECONDS));
+        // Only two fit in a batch, the third goes in the next one
+        assertEquals("NAME 10\rNAME 11\r", written.poll(5, TimeUnit.SECONDS));
+        assertEquals("PLAY 11\r", written.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void oversizedCommandsAreWrittenAlone() throws InterruptedException {
+        writer = new CoalescingWriter(new CoalescingWriter.Sink() {
+            @Override
+            public void write(byte[] data) {
+                written.add(new String(data, UTF_8));
+            }
+        }, 8, 2, 16, 100);
+        writer.start();
+
+        writer.write(bytes("MUSIC 10 PLAY\r"));
+
+        assertEquals("MUSIC 10 PLAY\r", written.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void nothingIsWrittenOnceStopped() throws InterruptedException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        writer = new CoalescingWriter(new CoalescingWriter.Sink() {
+            @Override
+            public void write(byte[] data) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Stopped
+                }
+                written.add(new String(data, UTF_8));
+            }
+        }, 8, 2, 16, 100);
+        writer.start();
+
+        writer.write(bytes("STATUS\r"));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        writer.write(bytes("MUSIC 10 PLAY\r"));
+        writer.stop();
+        release.countDown();
+
+        assertNotNull(written.poll(5, TimeUnit.SECONDS));
+        assertNull(written.poll(100, TimeUnit.MILLISECONDS));
+        assertFalse(writer.write(bytes("STATUS\r")));
+    }
+}
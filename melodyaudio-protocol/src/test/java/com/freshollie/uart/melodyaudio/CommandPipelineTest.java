@@ -0,0 +1,343 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CommandPipelineTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /**
+     * Records what the pipeline writes, and can be made to reject writes
+     */
+    private static class FakeTransport implements Transport {
+        private final LinkedBlockingQueue<String> written = new LinkedBlockingQueue<>();
+        private volatile boolean rejectWrites;
+
+        @Override
+        public void open() {}
+
+        @Override
+        public void close() {}
+
+        @Override
+        public void setReceiver(Receiver receiver) {}
+
+        @Override
+        public boolean write(byte[] data) {
+            if (rejectWrites) {
+                return false;
+            }
+            written.add(new String(data, UTF_8));
+            return true;
+        }
+
+        /**
+         * @return the commands written so far
+         */
+        ArrayList<String> takeWritten() {
+            ArrayList<String> commands = new ArrayList<>();
+            written.drainTo(commands);
+            return commands;
+        }
+    }
+
+    private FakeTransport transport;
+    private UartMetrics metrics;
+    private CommandPipeline pipeline;
+
+    @Before
+    public void createPipeline() {
+        transport = new FakeTransport();
+        metrics = new UartMetrics();
+        pipeline = new CommandPipeline(transport, DIRECT, metrics);
+    }
+
+    @After
+    public void resetPipeline() {
+        // Stops any timeout check still scheduled from resolving anything
+        pipeline.reset();
+    }
+
+    private PendingCommand send(String command, int priority) {
+        return pipeline.send(command, (command + "\r").getBytes(UTF_8), priority, null);
+    }
+
+    private PendingCommand send(String command) {
+        return send(command, CommandScheduler.PRIORITY_MEDIA_TRANSPORT);
+    }
+
+    private static void assertStatus(int status, PendingCommand command) throws Exception {
+        assertEquals(command.getCommand(), status, command.get(5, TimeUnit.SECONDS).getStatus());
+    }
+
+    @Test
+    public void responsesResolveInFlightCommandsInOrder() throws Exception {
+        PendingCommand first = send("MUSIC 10 PLAY");
+        PendingCommand second = send("MUSIC 11 PLAY");
+        PendingCommand third = send("MEDIA 10");
+
+        assertEquals(Arrays.asList("MUSIC 10 PLAY\r", "MUSIC 11 PLAY\r", "MEDIA 10\r"), transport.takeWritten());
+        assertEquals(3, pipeline.getInFlightCount());
+
+        pipeline.onResponseData("FIRST");
+        pipeline.onOkReceived();
+        pipeline.onErrorReceived(5);
+        pipeline.onResponseData("THIRD");
+        pipeline.onOkReceived();
+
+        assertStatus(CommandResult.STATUS_OK, first);
+        assertEquals(Arrays.asList("FIRST"), first.get().getResponses());
+        assertStatus(CommandResult.STATUS_ERROR, second);
+        assertEquals(5, second.get().getErrorCode());
+        assertTrue(second.get().getResponses().isEmpty());
+        assertStatus(CommandResult.STATUS_OK, third);
+        assertEquals(Arrays.asList("THIRD"), third.get().getResponses());
+
+        assertEquals(0, pipeline.getInFlightCount());
+        assertEquals(3, pipeline.getLatencyStats(CommandScheduler.PRIORITY_MEDIA_TRANSPORT).getCount());
+        assertEquals(3, metrics.snapshot().getCounter(UartMetrics.COUNTER_COMMANDS_SENT));
+    }
+
+    @Test
+    public void commandsBeyondTheDepthWaitForAFreeSlot() throws Exception {
+        pipeline.setDepth(2);
+        PendingCommand first = send("MUSIC 10 PLAY");
+        send("MUSIC 11 PLAY");
+        send("MEDIA 10");
+
+        assertEquals(2, transport.takeWritten().size());
+        assertEquals(1, pipeline.getWaitingCount());
+
+        pipeline.onOkReceived();
+        assertStatus(CommandResult.STATUS_OK, first);
+        assertEquals(Arrays.asList("MEDIA 10\r"), transport.takeWritten());
+        assertEquals(0, pipeline.getWaitingCount());
+    }
+
+    @Test
+    public void waitingCommandsAreSentInPriorityOrder() throws Exception {
+        pipeline.setDepth(2);
+        send("MUSIC 10 PLAY");
+        send("MUSIC 11 PLAY");
+        send("NAME 10", CommandScheduler.PRIORITY_QUERY);
+        send("VOLUME 10 5", CommandScheduler.PRIORITY_VOLUME);
+        send("ANSWER 10", CommandScheduler.PRIORITY_CALL_CONTROL);
+        transport.takeWritten();
+
+        pipeline.onOkReceived();
+        assertEquals(Arrays.asList("ANSWER 10\r"), transport.takeWritten());
+        pipeline.onOkReceived();
+        assertEquals(Arrays.asList("VOLUME 10 5\r"), transport.takeWritten());
+
+        // The query can't take the last slot until the other is free
+        pipeline.onOkReceived();
+        assertTrue(transport.takeWritten().isEmpty());
+        pipeline.onOkReceived();
+        assertEquals(Arrays.asList("NAME 10\r"), transport.takeWritten());
+    }
+
+    @Test
+    public void timedOutCommandsResyncAndLateResponsesAreDiscarded() throws Exception {
+        pipeline.setTimeout(50);
+        PendingCommand first = send("MUSIC 10 PLAY");
+        PendingCommand second = send("MUSIC 11 PLAY");
+
+        // Both are timed out, as the answer to the first can't be told apart from the second's
+        assertStatus(CommandResult.STATUS_TIMEOUT, first);
+        assertStatus(CommandResult.STATUS_TIMEOUT, second);
+        assertEquals(2, metrics.snapshot().getCounter(UartMetrics.COUNTER_COMMANDS_TIMED_OUT));
+
+        pipeline.setTimeout(CommandPipeline.DEFAULT_TIMEOUT_MS);
+        transport.takeWritten();
+        PendingCommand third = send("MEDIA 10");
+
+        // Nothing is sent until the responses owed have arrived
+        assertTrue(transport.takeWritten().isEmpty());
+        pipeline.onResponseData("LATE");
+        pipeline.onOkReceived();
+        assertTrue(transport.takeWritten().isEmpty());
+        pipeline.onErrorReceived(1);
+
+        assertEquals(Arrays.asList("MEDIA 10\r"), transport.takeWritten());
+        assertFalse(third.isDone());
+        pipeline.onOkReceived();
+        assertStatus(CommandResult.STATUS_OK, third);
+        // The late reply line belongs to no command
+        assertTrue(first.get().getResponses().isEmpty());
+        assertTrue(third.get().getResponses().isEmpty());
+    }
+
+    @Test
+    public void resyncEndsWhenTheLateResponsesNeverArrive() throws Exception {
+        pipeline.setTimeout(50);
+        PendingCommand first = send("MUSIC 10 PLAY");
+        assertStatus(CommandResult.STATUS_TIMEOUT, first);
+
+        pipeline.setTimeout(CommandPipeline.DEFAULT_TIMEOUT_MS);
+        transport.takeWritten();
+        send("MEDIA 10");
+        assertTrue(transport.takeWritten().isEmpty());
+
+        assertEquals("MEDIA 10\r", transport.written.poll(CommandPipeline.RESYNC_QUIET_MS + 5000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void rejectedWritesResolveAsNotSent() throws Exception {
+        transport.rejectWrites = true;
+        PendingCommand first = send("MUSIC 10 PLAY");
+
+        assertStatus(CommandResult.STATUS_NOT_SENT, first);
+        assertEquals(0, pipeline.getInFlightCount());
+
+        // No response is owed for it
+        transport.rejectWrites = false;
+        PendingCommand second = send("MUSIC 11 PLAY");
+        pipeline.onOkReceived();
+        assertStatus(CommandResult.STATUS_OK, second);
+    }
+
+    @Test
+    public void resetCancelsInFlightAndWaitingCommands() throws Exception {
+        pipeline.setDepth(1);
+        PendingCommand first = send("MUSIC 10 PLAY");
+        PendingCommand second = send("MUSIC 11 PLAY");
+
+        pipeline.reset();
+
+        assertStatus(CommandResult.STATUS_CANCELLED, first);
+        assertStatus(CommandResult.STATUS_CANCELLED, second);
+        assertEquals(0, pipeline.getInFlightCount());
+        assertEquals(0, pipeline.getWaitingCount());
+
+        transport.takeWritten();
+        PendingCommand third = send("MEDIA 10");
+        assertEquals(Arrays.asList("MEDIA 10\r"), transport.takeWritten());
+        pipeline.onOkReceived();
+        assertStatus(CommandResult.STATUS_OK, third);
+    }
+
+    @Test
+    public void onlyWaitingCommandsCanBeCancelled() throws Exception {
+        pipeline.setDepth(1);
+        PendingCommand first = send("MUSIC 10 PLAY");
+        PendingCommand second = send("MUSIC 11 PLAY");
+
+        assertFalse(first.cancel(true));
+        assertTrue(second.cancel(true));
+        assertTrue(second.isCancelled());
+
+        pipeline.onOkReceived();
+        assertStatus(CommandResult.STATUS_OK, first);
+        assertEquals(Arrays.asList("MUSIC 10 PLAY\r"), transport.takeWritten());
+    }
+
+    @Test
+    public void cancelQueuedCancelsTheWaitingClass() throws Exception {
+        pipeline.setDepth(1);
+        send("MUSIC 10 PLAY");
+        PendingCommand firstName = send("NAME 10", CommandScheduler.PRIORITY_QUERY);
+        PendingCommand secondName = send("NAME 11", CommandScheduler.PRIORITY_QUERY);
+        send("VOLUME 10 5", CommandScheduler.PRIORITY_VOLUME);
+        transport.takeWritten();
+
+        pipeline.cancelQueued(CommandScheduler.PRIORITY_QUERY);
+
+        assertStatus(CommandResult.STATUS_CANCELLED, firstName);
+        assertStatus(CommandResult.STATUS_CANCELLED, secondName);
+        pipeline.onOkReceived();
+        assertEquals(Arrays.asList("VOLUME 10 5\r"), transport.takeWritten());
+        pipeline.onOkReceived();
+        assertTrue(transport.takeWritten().isEmpty());
+    }
+
+    @Test
+    public void callbacksArePostedToTheCallbackExecutor() throws Exception {
+        final ArrayList<Runnable> posted = new ArrayList<>();
+        pipeline = new CommandPipeline(transport, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                posted.add(runnable);
+            }
+        }, metrics);
+
+        final CommandResult[] results = new CommandResult[1];
+        PendingCommand command = pipeline.send("STATUS", "STATUS\r".getBytes(UTF_8), CommandScheduler.PRIORITY_QUERY,
+                new PendingCommand.CommandCallback() {
+                    @Override
+                    public void onCommandResult(CommandResult result) {
+                        results[0] = result;
+                    }
+                });
+        pipeline.onOkReceived();
+
+        assertTrue(command.isDone());
+        assertNull(results[0]);
+        assertEquals(1, posted.size());
+        posted.get(0).run();
+        assertEquals(CommandResult.STATUS_OK, results[0].getStatus());
+    }
+
+    @Test
+    public void roundTripOverALoopback() throws Exception {
+        LoopbackTransport host = new LoopbackTransport();
+        LoopbackTransport module = new LoopbackTransport();
+        LoopbackTransport.connect(host, module);
+
+        final CommandPipeline loopbackPipeline = new CommandPipeline(host, DIRECT, metrics);
+        final LoopbackTransport moduleEnd = module;
+        module.setReceiver(new Transport.Receiver() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                // The module answers every command, a reply line then OK
+                moduleEnd.write(data);
+            }
+        });
+        host.setReceiver(new Transport.Receiver() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                loopbackPipeline.onResponseData(new String(data, UTF_8).trim());
+                loopbackPipeline.onOkReceived();
+            }
+        });
+        host.open();
+        module.open();
+
+        try {
+            PendingCommand[] commands = new PendingCommand[10];
+            for (int i = 0; i < commands.length; i++) {
+                String command = "NAME " + i;
+                commands[i] = loopbackPipeline.send(command, (command + "\r").getBytes(UTF_8),
+                        CommandScheduler.PRIORITY_QUERY, null);
+            }
+
+            for (PendingCommand command: commands) {
+                assertStatus(CommandResult.STATUS_OK, command);
+                assertEquals(Arrays.asList(command.getCommand()), command.get().getResponses());
+            }
+        } finally {
+            host.close();
+            module.close();
+            loopbackPipeline.reset();
+        }
+    }
+}
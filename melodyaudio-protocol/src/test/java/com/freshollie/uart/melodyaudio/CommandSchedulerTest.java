@@ -0,0 +1,117 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CommandSchedulerTest {
+    private final CommandScheduler scheduler = new CommandScheduler();
+
+    private PendingCommand add(String command, int priority) {
+        PendingCommand pendingCommand = new PendingCommand(null, command, null, priority, null, null);
+        scheduler.add(pendingCommand);
+        return pendingCommand;
+    }
+
+    @Test
+    public void takesTheHighestPriorityFirstAndFifoWithinAClass() {
+        PendingCommand name = add("NAME 10", CommandScheduler.PRIORITY_QUERY);
+        PendingCommand volume = add("VOLUME 10 5", CommandScheduler.PRIORITY_VOLUME);
+        PendingCommand play = add("MUSIC 10 PLAY", CommandScheduler.PRIORITY_MEDIA_TRANSPORT);
+        PendingCommand pause = add("MUSIC 10 PAUSE", CommandScheduler.PRIORITY_MEDIA_TRANSPORT);
+        PendingCommand answer = add("ANSWER 10", CommandScheduler.PRIORITY_CALL_CONTROL);
+
+        assertEquals(5, scheduler.size());
+        assertSame(answer, scheduler.poll(4, 4));
+        assertSame(play, scheduler.poll(4, 4));
+        assertSame(pause, scheduler.poll(4, 4));
+        assertSame(volume, scheduler.poll(4, 4));
+        assertSame(name, scheduler.poll(4, 4));
+        assertNull(scheduler.poll(4, 4));
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void queriesNeverTakeTheLastSlot() {
+        PendingCommand name = add("NAME 10", CommandScheduler.PRIORITY_QUERY);
+
+        assertNull(scheduler.poll(1, 4));
+        assertSame(name, scheduler.poll(2, 4));
+
+        // Other classes can
+        PendingCommand volume = add("VOLUME 10 5", CommandScheduler.PRIORITY_VOLUME);
+        add("NAME 11", CommandScheduler.PRIORITY_QUERY);
+        assertSame(volume, scheduler.poll(1, 4));
+        assertNull(scheduler.poll(1, 4));
+    }
+
+    @Test
+    public void queriesTakeTheOnlySlot() {
+        PendingCommand name = add("NAME 10", CommandScheduler.PRIORITY_QUERY);
+
+        assertSame(name, scheduler.poll(1, 1));
+    }
+
+    @Test
+    public void cancelQueuedOnlyRemovesTheClass() {
+        PendingCommand first = add("NAME 10", CommandScheduler.PRIORITY_QUERY);
+        PendingCommand volume = add("VOLUME 10 5", CommandScheduler.PRIORITY_VOLUME);
+        PendingCommand second = add("NAME 11", CommandScheduler.PRIORITY_QUERY);
+
+        ArrayList<PendingCommand> cancelled = scheduler.cancelQueued(CommandScheduler.PRIORITY_QUERY);
+
+        assertEquals(2, cancelled.size());
+        assertSame(first, cancelled.get(0));
+        assertSame(second, cancelled.get(1));
+        assertEquals(1, scheduler.size());
+        assertSame(volume, scheduler.poll(4, 4));
+    }
+
+    @Test
+    public void removeAndClear() {
+        PendingCommand name = add("NAME 10", CommandScheduler.PRIORITY_QUERY);
+        PendingCommand play = add("MUSIC 10 PLAY", CommandScheduler.PRIORITY_MEDIA_TRANSPORT);
+
+        assertTrue(scheduler.remove(name));
+        assertFalse(scheduler.remove(name));
+
+        add("ANSWER 10", CommandScheduler.PRIORITY_CALL_CONTROL);
+        ArrayList<PendingCommand> cleared = scheduler.clear();
+        assertEquals(2, cleared.size());
+        assertTrue(cleared.contains(play));
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void latencyIsRecordedPerClass() {
+        PendingCommand play = add("MUSIC 10 PLAY", CommandScheduler.PRIORITY_MEDIA_TRANSPORT);
+        scheduler.poll(4, 4);
+        play.onSent(play.getQueuedNanos() + 1000);
+        scheduler.recordLatency(play, play.getSentNanos() + 5000);
+
+        CommandScheduler.LatencyStats stats = scheduler.getLatencyStats(CommandScheduler.PRIORITY_MEDIA_TRANSPORT);
+        assertEquals(1, stats.getCount());
+        assertEquals(1000, stats.getMeanQueueNanos());
+        assertEquals(5000, stats.getMaxRoundTripNanos());
+        assertEquals(0, scheduler.getLatencyStats(CommandScheduler.PRIORITY_QUERY).getCount());
+    }
+
+    @Test
+    public void commandsHaveADefaultClass() {
+        assertEquals(CommandScheduler.PRIORITY_CALL_CONTROL, CommandScheduler.priorityOf("ANSWER"));
+        assertEquals(CommandScheduler.PRIORITY_MEDIA_TRANSPORT, CommandScheduler.priorityOf("MUSIC"));
+        assertEquals(CommandScheduler.PRIORITY_VOLUME, CommandScheduler.priorityOf("VOLUME"));
+        assertEquals(CommandScheduler.PRIORITY_QUERY, CommandScheduler.priorityOf("NAME"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownClasses() {
+        CommandScheduler.checkPriority(CommandScheduler.PRIORITY_COUNT);
+    }
+}
@@ -0,0 +1,230 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateMachineTest {
+    // Allowed lateness of an attempt, for a busy machine
+    private static final long SLACK_MS = 150;
+
+    /**
+     * Fails the next {@link #failures} attempts then connects, and records every attempt
+     */
+    private static class FakeConnector implements ConnectionStateMachine.Connector {
+        private final ArrayList<Long> attemptNanos = new ArrayList<>();
+        private final ArrayList<Boolean> resumes = new ArrayList<>();
+        private int failures;
+
+        FakeConnector(int failures) {
+            this.failures = failures;
+        }
+
+        synchronized void failNext(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public synchronized boolean connect(boolean resume) {
+            attemptNanos.add(System.nanoTime());
+            resumes.add(resume);
+            if (failures > 0) {
+                failures--;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void disconnect() {}
+
+        synchronized int getAttempts() {
+            return attemptNanos.size();
+        }
+
+        synchronized boolean wasResume(int attempt) {
+            return resumes.get(attempt);
+        }
+
+        synchronized long gapMs(int attempt) {
+            return TimeUnit.NANOSECONDS.toMillis(attemptNanos.get(attempt) - attemptNanos.get(attempt - 1));
+        }
+    }
+
+    /**
+     * Always gives the same value, to put the jitter at one end of its range
+     */
+    private static class FixedRandom extends Random {
+        private static final long serialVersionUID = 1L;
+
+        private final double value;
+
+        FixedRandom(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+    private ConnectionStateMachine machine;
+
+    @After
+    public void stopMachine() {
+        if (machine != null) {
+            machine.stop();
+        }
+    }
+
+    private static void awaitState(ConnectionStateMachine machine, int state) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (machine.getState() != state) {
+            assertTrue("Still in state " + machine.getState(), System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void assertGap(FakeConnector connector, int attempt, long expectedMs) {
+        long gapMs = connector.gapMs(attempt);
+        assertTrue("Attempt " + attempt + " after " + gapMs + " ms", gapMs >= expectedMs - 1);
+        assertTrue("Attempt " + attempt + " after " + gapMs + " ms", gapMs <= expectedMs + SLACK_MS);
+    }
+
+    @Test
+    public void backoffGrowsUpToMax() throws Exception {
+        FakeConnector connector = new FakeConnector(5);
+        machine = new ConnectionStateMachine(connector);
+        machine.setBackoff(40, 200, 2, 0);
+
+        machine.start();
+        awaitState(machine, ConnectionStateMachine.STATE_CONNECTED);
+
+        assertEquals(6, connector.getAttempts());
+        long[] expectedGapsMs = {40, 80, 160, 200, 200};
+        for (int i = 0; i < expectedGapsMs.length; i++) {
+            assertGap(connector, i + 1, expectedGapsMs[i]);
+        }
+    }
+
+    @Test
+    public void jitterVariesDelayWithinBounds() throws Exception {
+        FakeConnector lowConnector = new FakeConnector(3);
+        machine = new ConnectionStateMachine(lowConnector, new FixedRandom(0));
+        machine.setBackoff(200, 200, 1, 0.5);
+        machine.start();
+        awaitState(machine, ConnectionStateMachine.STATE_CONNECTED);
+        machine.stop();
+
+        FakeConnector highConnector = new FakeConnector(3);
+        machine = new ConnectionStateMachine(highConnector, new FixedRandom(Math.nextAfter(1.0, 0)));
+        machine.setBackoff(200, 200, 1, 0.5);
+        machine.start();
+        awaitState(machine, ConnectionStateMachine.STATE_CONNECTED);
+
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            // 200 ms varied by half either way
+            assertGap(lowConnector, attempt, 100);
+            assertGap(highConnector, attempt, 299);
+        }
+    }
+
+    @Test
+    public void jitteredDelaysStayInRange() throws Exception {
+        FakeConnector connector = new FakeConnector(8);
+        machine = new ConnectionStateMachine(connector, new Random(1));
+        machine.setBackoff(100, 100, 1, 0.2);
+
+        machine.start();
+        awaitState(machine, ConnectionStateMachine.STATE_CONNECTED);
+
+        for (int attempt = 1; attempt < connector.getAttempts(); attempt++) {
+            long gapMs = connector.gapMs(attempt);
+            assertTrue("Attempt " + attempt + " after " + gapMs + " ms", gapMs >= 79);
+            assertTrue("Attempt " + attempt + " after " + gapMs + " ms", gapMs <= 120 + SLACK_MS);
+        }
+    }
+
+    @Test
+    public void zeroMaxAttemptsRetriesUntilConnected() throws Exception {
+        FakeConnector connector = new FakeConnector(30);
+        machine = new ConnectionStateMachine(connector);
+        machine.setBackoff(1, 1, 1, 0);
+        machine.setMaxAttempts(0);
+
+        machine.start();
+        awaitState(machine, ConnectionStateMachine.STATE_CONNECTED);
+
+        assertEquals(31, connector.getAttempts());
+        assertEquals(30, machine.getReconnectStats().getFailedAttempts());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        FakeConnector connector = new FakeConnector(Integer.MAX_VALUE);
+        final ArrayList<Integer> states = new ArrayList<>();
+        machine = new ConnectionStateMachine(connector);
+        machine.registerStateListener(new ConnectionStateMachine.StateListener() {
+            @Override
+            public void onStateChange(int newState) {
+                synchronized (states) {
+                    states.add(newState);
+                }
+            }
+        });
+        machine.setBackoff(1, 1, 1, 0);
+        machine.setMaxAttempts(3);
+
+        machine.start();
+        awaitState(machine, ConnectionStateMachine.STATE_DISCONNECTED);
+
+        assertEquals(3, connector.getAttempts());
+        synchronized (states) {
+            assertEquals(ConnectionStateMachine.STATE_DISCONNECTED, (int) states.get(states.size() - 1));
+            assertTrue(states.contains(ConnectionStateMachine.STATE_BACKOFF));
+        }
+    }
+
+    @Test
+    public void reconnectStatsRecordLostLinks() throws Exception {
+        FakeConnector connector = new FakeConnector(0);
+        UartMetrics metrics = new UartMetrics();
+        machine = new ConnectionStateMachine(connector);
+        machine.setMetrics(metrics);
+        machine.setBackoff(50, 50, 1, 0);
+
+        machine.start();
+        awaitState(machine, ConnectionStateMachine.STATE_CONNECTED);
+        assertEquals(0, machine.getReconnectStats().getCount());
+
+        connector.failNext(2);
+        machine.onConnectionLost();
+        awaitState(machine, ConnectionStateMachine.STATE_CONNECTED);
+
+        ConnectionStateMachine.ReconnectStats stats = machine.getReconnectStats();
+        assertEquals(1, stats.getCount());
+        assertEquals(2, stats.getFailedAttempts());
+        // Two backoffs of 50 ms between the three attempts
+        assertTrue(stats.getLastNanos() >= TimeUnit.MILLISECONDS.toNanos(99));
+        assertEquals(stats.getLastNanos(), stats.getMaxNanos());
+        assertEquals(stats.getLastNanos(), stats.getMeanNanos());
+
+        // Only the first attempt after the link was lost is a resume
+        assertFalse(connector.wasResume(0));
+        assertTrue(connector.wasResume(1));
+        assertFalse(connector.wasResume(2));
+        assertFalse(connector.wasResume(3));
+
+        UartMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getCounter(UartMetrics.COUNTER_RECONNECTS));
+        assertEquals(2, snapshot.getCounter(UartMetrics.COUNTER_CONNECT_FAILURES));
+    }
+}
@@ -0,0 +1,137 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+public class DeviceRegistryTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /**
+     * Holds saves until the test runs them
+     */
+    private static class HeldExecutor implements Executor {
+        private final ArrayList<Runnable> held = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            held.add(runnable);
+        }
+
+        int runAll() {
+            int ran = held.size();
+            ArrayList<Runnable> running = new ArrayList<>(held);
+            held.clear();
+            for (Runnable runnable: running) {
+                runnable.run();
+            }
+            return ran;
+        }
+    }
+
+    private static class FakeTransport implements Transport {
+        private Receiver receiver;
+
+        @Override
+        public void open() {}
+
+        @Override
+        public void close() {}
+
+        @Override
+        public void setReceiver(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public boolean write(byte[] data) {
+            return true;
+        }
+
+        void receive(String lines) {
+            receiver.onDataReceived(lines.getBytes(UTF_8));
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private FakeTransport transport;
+    private HeldExecutor storageExecutor;
+    private DeviceRegistry registry;
+
+    @Before
+    public void createRegistry() {
+        file = new File(folder.getRoot(), "devices");
+        transport = new FakeTransport();
+        storageExecutor = new HeldExecutor();
+
+        registry = new DeviceRegistry(file, storageExecutor);
+        registry.attach(new MelodyAudioUartInterface(transport, DIRECT));
+    }
+
+    @Test
+    public void listIsSavedOnceWhenFinished() throws Exception {
+        registry.refresh();
+        transport.receive(
+                "LIST 001122334455 A2DP AVRCP\r\n" +
+                "LIST 66778899AABB HFP\r\n" +
+                "LIST CCDDEEFF0011 A2DP\r\n"
+        );
+
+        assertEquals(3, registry.getDevices().size());
+        assertEquals(0, storageExecutor.runAll());
+        assertFalse(file.exists());
+
+        transport.receive("OK\r\n");
+
+        assertEquals(1, storageExecutor.runAll());
+
+        DeviceRegistry reloaded = new DeviceRegistry(file, DIRECT);
+        reloaded.load();
+        assertEquals(3, reloaded.getDevices().size());
+        assertNotNull(reloaded.getDevice("66778899AABB"));
+    }
+
+    @Test
+    public void unchangedListIsNotSaved() {
+        registry.refresh();
+        transport.receive("LIST 001122334455 A2DP\r\nOK\r\n");
+        assertEquals(1, storageExecutor.runAll());
+
+        registry.refresh();
+        transport.receive("LIST 001122334455 A2DP\r\nOK\r\n");
+        assertEquals(0, storageExecutor.runAll());
+    }
+
+    @Test
+    public void pendingSavesAreCoalesced() throws Exception {
+        // Listed outside of a refresh, such as after pairing
+        transport.receive("LIST 001122334455 A2DP\r\n");
+        transport.receive("LIST 66778899AABB HFP\r\n");
+
+        assertEquals(1, storageExecutor.runAll());
+
+        DeviceRegistry reloaded = new DeviceRegistry(file, DIRECT);
+        reloaded.load();
+        assertEquals(2, reloaded.getDevices().size());
+    }
+}
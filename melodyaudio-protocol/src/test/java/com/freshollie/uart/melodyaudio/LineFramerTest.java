@@ -0,0 +1,94 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LineFramerTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static ArrayList<String> drain(LineFramer framer) {
+        final ArrayList<String> lines = new ArrayList<>();
+        framer.drain(new LineFramer.LineListener() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                lines.add(new String(buffer, offset, length, UTF_8));
+            }
+        });
+        return lines;
+    }
+
+    @Test
+    public void framesTrimmedLinesAcrossWrites() {
+        LineFramer framer = new LineFramer((byte) '\n', 16);
+
+        assertFalse(framer.write("  O".getBytes(UTF_8)));
+        assertTrue(framer.write("K\r\nSTATE 1\r\n\r\n".getBytes(UTF_8)));
+        assertEquals(3, framer.getLineCount());
+
+        ArrayList<String> lines = drain(framer);
+        assertEquals(2, lines.size());
+        assertEquals("OK", lines.get(0));
+        assertEquals("STATE 1", lines.get(1));
+        assertFalse(framer.hasLine());
+    }
+
+    @Test
+    public void keepsUtf8Bytes() {
+        LineFramer framer = new LineFramer((byte) '\n', 16);
+        String line = "FN:Jos\u00e9 M\u00fcller \ud83d\ude00";
+
+        // Split in the middle of a multi byte sequence
+        byte[] bytes = (line + "\r\n").getBytes(UTF_8);
+        framer.write(bytes, 0, 5);
+        framer.write(bytes, 5, bytes.length - 5);
+
+        ArrayList<String> lines = drain(framer);
+        assertEquals(1, lines.size());
+        assertEquals(line, lines.get(0));
+    }
+
+    @Test
+    public void doesNotTrimUtf8Bytes() {
+        LineFramer framer = new LineFramer((byte) '\n');
+        framer.write(" \u00e9 \n".getBytes(UTF_8));
+
+        assertEquals("\u00e9", drain(framer).get(0));
+    }
+
+    @Test
+    public void discardsLinesLongerThanTheMaximum() {
+        LineFramer framer = new LineFramer((byte) '\n', 16, 8);
+        UartMetrics metrics = new UartMetrics();
+        framer.setMetrics(metrics);
+
+        // The too long line arrives over several writes, the line after it is kept
+        assertTrue(framer.write("12345678\nOK\n0123".getBytes(UTF_8)));
+        assertTrue(framer.write("456789".getBytes(UTF_8)));
+        assertTrue(framer.write("ABCDEFGHIJKLMNOPQRSTUVWXYZ".getBytes(UTF_8)));
+        assertTrue(framer.write("\nSTATE 1\n".getBytes(UTF_8)));
+
+        ArrayList<String> lines = drain(framer);
+        assertEquals(3, lines.size());
+        assertEquals("12345678", lines.get(0));
+        assertEquals("OK", lines.get(1));
+        assertEquals("STATE 1", lines.get(2));
+        assertEquals(1, metrics.snapshot().getCounter(UartMetrics.COUNTER_LINES_TOO_LONG));
+    }
+
+    @Test
+    public void resetStopsDiscarding() {
+        LineFramer framer = new LineFramer((byte) '\n', 16, 8);
+        framer.write("0123456789".getBytes(UTF_8));
+
+        framer.reset();
+        framer.write("OK\n".getBytes(UTF_8));
+
+        assertEquals("OK", drain(framer).get(0));
+    }
+}
@@ -0,0 +1,170 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ListenerRegistryTest {
+    private static class CountingListener {
+        final AtomicInteger calls = new AtomicInteger();
+
+        void onEvent() {
+            calls.incrementAndGet();
+        }
+    }
+
+    private static class Wrapper extends CountingListener implements ListenerRegistry.Wrapper {
+        private final Object delegate;
+
+        Wrapper(Object delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object getDelegate() {
+            return delegate;
+        }
+    }
+
+    private static void dispatch(ListenerRegistry<CountingListener> registry) {
+        for (CountingListener listener: registry.getListeners()) {
+            listener.onEvent();
+        }
+    }
+
+    @Test
+    public void addIgnoresDuplicates() {
+        ListenerRegistry<CountingListener> registry = new ListenerRegistry<>(new CountingListener[0]);
+        CountingListener listener = new CountingListener();
+
+        registry.add(listener);
+        registry.add(listener);
+
+        assertEquals(1, registry.getListeners().length);
+    }
+
+    @Test
+    public void removeFindsWrappedListener() {
+        ListenerRegistry<CountingListener> registry = new ListenerRegistry<>(new CountingListener[0]);
+        Object inner = new Object();
+        CountingListener other = new CountingListener();
+        registry.add(other);
+        registry.add(new Wrapper(new Wrapper(inner)));
+
+        assertTrue(registry.remove(inner));
+        assertFalse(registry.remove(inner));
+        assertArrayEquals(new CountingListener[] {other}, registry.getListeners());
+    }
+
+    @Test
+    public void changesDuringDispatchApplyToTheNextDispatch() {
+        final ListenerRegistry<CountingListener> registry = new ListenerRegistry<>(new CountingListener[0]);
+        final CountingListener first = new CountingListener();
+        final CountingListener removed = new CountingListener();
+        final CountingListener added = new CountingListener();
+
+        // Removes the listener after it, and adds a new one, on its first call
+        CountingListener mutating = new CountingListener() {
+            @Override
+            void onEvent() {
+                if (calls.getAndIncrement() == 0) {
+                    registry.remove(removed);
+                    registry.remove(this);
+                    registry.add(added);
+                }
+            }
+        };
+
+        registry.add(first);
+        registry.add(mutating);
+        registry.add(removed);
+
+        dispatch(registry);
+
+        // The dispatch walked the snapshot it started with
+        assertEquals(1, first.calls.get());
+        assertEquals(1, mutating.calls.get());
+        assertEquals(1, removed.calls.get());
+        assertEquals(0, added.calls.get());
+
+        dispatch(registry);
+
+        assertEquals(2, first.calls.get());
+        assertEquals(1, mutating.calls.get());
+        assertEquals(1, removed.calls.get());
+        assertEquals(1, added.calls.get());
+    }
+
+    @Test
+    public void concurrentChangesNeverLoseRegisteredListeners() throws Exception {
+        final ListenerRegistry<CountingListener> registry = new ListenerRegistry<>(new CountingListener[0]);
+        final CountingListener[] stable = new CountingListener[8];
+        for (int i = 0; i < stable.length; i++) {
+            stable[i] = new CountingListener();
+            registry.add(stable[i]);
+        }
+
+        final int dispatches = 20000;
+        final AtomicBoolean dispatching = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch started = new CountDownLatch(1);
+
+        ArrayList<Thread> mutators = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        started.await();
+                        while (dispatching.get()) {
+                            CountingListener churned = new CountingListener();
+                            registry.add(churned);
+                            registry.remove(churned);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            thread.start();
+            mutators.add(thread);
+        }
+
+        started.countDown();
+        try {
+            for (int i = 0; i < dispatches; i++) {
+                // Listeners also change the registry from inside the dispatch
+                for (CountingListener listener: registry.getListeners()) {
+                    listener.onEvent();
+                    if (listener == stable[0]) {
+                        CountingListener nested = new CountingListener();
+                        registry.add(nested);
+                        registry.remove(nested);
+                    }
+                }
+            }
+        } finally {
+            dispatching.set(false);
+            for (Thread thread: mutators) {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            }
+        }
+
+        assertNull(failure.get());
+        for (CountingListener listener: stable) {
+            assertEquals(dispatches, listener.calls.get());
+        }
+        assertEquals(stable.length, registry.getListeners().length);
+    }
+}
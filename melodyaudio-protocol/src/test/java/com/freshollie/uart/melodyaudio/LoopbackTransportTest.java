@@ -0,0 +1,159 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LoopbackTransportTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Collects what an end receives
+     */
+    private static class QueueReceiver implements Transport.Receiver {
+        private final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onDataReceived(byte[] data) {
+            received.add(new String(data, UTF_8));
+        }
+
+        String poll(long timeoutMs) throws InterruptedException {
+            return received.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private LoopbackTransport host;
+    private LoopbackTransport module;
+    private QueueReceiver hostReceived;
+    private QueueReceiver moduleReceived;
+
+    @Before
+    public void connect() {
+        host = new LoopbackTransport();
+        module = new LoopbackTransport();
+        LoopbackTransport.connect(host, module);
+
+        hostReceived = new QueueReceiver();
+        moduleReceived = new QueueReceiver();
+        host.setReceiver(hostReceived);
+        module.setReceiver(moduleReceived);
+    }
+
+    @After
+    public void close() {
+        host.close();
+        module.close();
+    }
+
+    @Test
+    public void roundTrip() throws InterruptedException {
+        host.open();
+        module.open();
+
+        assertTrue(host.write("STATUS\r".getBytes(UTF_8)));
+        assertEquals("STATUS\r", moduleReceived.poll(5000));
+
+        assertTrue(module.write("OK\r\n".getBytes(UTF_8)));
+        assertEquals("OK\r\n", hostReceived.poll(5000));
+    }
+
+    @Test
+    public void writesAreCopied() throws InterruptedException {
+        host.open();
+        module.open();
+
+        byte[] data = "STATUS\r".getBytes(UTF_8);
+        host.write(data);
+        data[0] = 'X';
+
+        assertEquals("STATUS\r", moduleReceived.poll(5000));
+    }
+
+    @Test
+    public void writeToAClosedEndIsRejected() throws InterruptedException {
+        host.open();
+
+        assertFalse(host.write("STATUS\r".getBytes(UTF_8)));
+
+        module.open();
+        module.close();
+        assertFalse(host.write("STATUS\r".getBytes(UTF_8)));
+        assertNull(moduleReceived.poll(100));
+    }
+
+    @Test
+    public void writeAfterCloseIsRejected() {
+        host.open();
+        module.open();
+        host.close();
+
+        assertFalse(host.isOpen());
+        assertFalse(host.write("STATUS\r".getBytes(UTF_8)));
+    }
+
+    @Test
+    public void reopenedEndReceivesAgain() throws InterruptedException {
+        host.open();
+        module.open();
+        module.close();
+        module.open();
+
+        assertTrue(host.write("STATUS\r".getBytes(UTF_8)));
+        assertEquals("STATUS\r", moduleReceived.poll(5000));
+    }
+
+    @Test
+    public void fullQueueBlocksUntilDrained() throws InterruptedException {
+        final LoopbackTransport small = new LoopbackTransport(1);
+        LoopbackTransport.connect(host, small);
+        host.open();
+        small.open();
+
+        // The receiver holds the delivery thread, so the second write fills the queue
+        final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        small.setReceiver(new Transport.Receiver() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                received.add(new String(data, UTF_8));
+            }
+        });
+
+        host.write("1".getBytes(UTF_8));
+        host.write("2".getBytes(UTF_8));
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                host.write("3".getBytes(UTF_8));
+            }
+        });
+        writer.start();
+        writer.join(100);
+        assertTrue(writer.isAlive());
+
+        release.countDown();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertEquals("1", received.poll(5, TimeUnit.SECONDS));
+        assertEquals("2", received.poll(5, TimeUnit.SECONDS));
+        assertEquals("3", received.poll(5, TimeUnit.SECONDS));
+        small.close();
+    }
+}
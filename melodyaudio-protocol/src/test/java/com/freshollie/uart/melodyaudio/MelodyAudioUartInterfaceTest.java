@@ -0,0 +1,357 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MelodyAudioUartInterfaceTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    // Phonebook listeners can't share the callback executor
+    private static final Executor LISTENER_DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /**
+     * Hands the interface whatever the test receives from the module
+     */
+    private static class FakeTransport implements Transport {
+        private Receiver receiver;
+
+        @Override
+        public void open() {}
+
+        @Override
+        public void close() {}
+
+        @Override
+        public void setReceiver(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public boolean write(byte[] data) {
+            return true;
+        }
+
+        void receive(String lines) {
+            receiver.onDataReceived(lines.getBytes(UTF_8));
+        }
+    }
+
+    private FakeTransport transport;
+    private MelodyAudioUartInterface uartInterface;
+
+    @Before
+    public void createInterface() {
+        transport = new FakeTransport();
+        uartInterface = new MelodyAudioUartInterface(transport, DIRECT);
+    }
+
+    @Test
+    public void rawUtf8VCardKeepsNames() {
+        final ArrayList<PhonebookContact> contacts = new ArrayList<>();
+        final PhonebookPull[] finished = new PhonebookPull[1];
+
+        uartInterface.pullPhonebook(13, new PhonebookPull.PhonebookListener() {
+            @Override
+            public void onContacts(PhonebookPull pull, List<PhonebookContact> batch) {
+                contacts.addAll(batch);
+            }
+
+            @Override
+            public void onPullFinished(PhonebookPull pull) {
+                finished[0] = pull;
+            }
+        }, LISTENER_DIRECT);
+
+        transport.receive(
+                "OK\r\n" +
+                "PB_PULL_START 13\r\n" +
+                "BEGIN:VCARD\r\n" +
+                "VERSION:3.0\r\n" +
+                "N;CHARSET=UTF-8:M\u00fcller;Jos\u00e9;;;\r\n" +
+                "FN;CHARSET=UTF-8:Jos\u00e9 M\u00fcller\r\n" +
+                "TEL;TYPE=CELL:+44 7700 900123\r\n" +
+                "END:VCARD\r\n" +
+                "BEGIN:VCARD\r\n" +
+                "VERSION:3.0\r\n" +
+                "FN:Zo\u00eb \u00c5ngstr\u00f6m\r\n" +
+                "TEL;TYPE=HOME:01632 960001\r\n" +
+                "END:VCARD\r\n" +
+                "PB_PULL_END\r\n" +
+                "PB_PULL_OK 13\r\n"
+        );
+
+        assertNotNull(finished[0]);
+        assertEquals(PhonebookPull.STATE_COMPLETE, finished[0].getState());
+        assertEquals(2, contacts.size());
+
+        PhonebookContact jose = contacts.get(0);
+        assertEquals("Jos\u00e9 M\u00fcller", jose.getName());
+        assertEquals("M\u00fcller", jose.getFamilyName());
+        assertEquals("Jos\u00e9", jose.getGivenName());
+        assertArrayEquals(new String[] {"+44 7700 900123"}, jose.getNumbers());
+
+        assertEquals("Zo\u00eb \u00c5ngstr\u00f6m", contacts.get(1).getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void phonebookListenerCantUseTheCallbackExecutor() {
+        uartInterface.pullPhonebook(13, new PhonebookPull.PhonebookListener() {
+            @Override
+            public void onContacts(PhonebookPull pull, List<PhonebookContact> contacts) {}
+
+            @Override
+            public void onPullFinished(PhonebookPull pull) {}
+        }, DIRECT);
+    }
+
+    /**
+     * Records how a pull ended
+     */
+    private static class FinishListener implements PhonebookPull.PhonebookListener {
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile int contacts;
+
+        @Override
+        public void onContacts(PhonebookPull pull, List<PhonebookContact> batch) {
+            contacts += batch.size();
+        }
+
+        @Override
+        public void onPullFinished(PhonebookPull pull) {
+            finished.countDown();
+        }
+    }
+
+    @Test
+    public void pullWhichNeverStartsTimesOut() throws Exception {
+        uartInterface.setPhonebookPullTimeout(100);
+        FinishListener listener = new FinishListener();
+        PhonebookPull pull = uartInterface.pullPhonebook(13, listener, LISTENER_DIRECT);
+        transport.receive("OK\r\n");
+
+        assertTrue(listener.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(PhonebookPull.STATE_FAILED, pull.getState());
+
+        // Another pull can be made
+        assertNotNull(uartInterface.pullPhonebook(13, new FinishListener(), LISTENER_DIRECT));
+    }
+
+    @Test
+    public void stalledPullTimesOutAndLinesAreRoutedAgain() throws Exception {
+        uartInterface.setPhonebookPullTimeout(100);
+        FinishListener listener = new FinishListener();
+        PhonebookPull pull = uartInterface.pullPhonebook(13, listener, LISTENER_DIRECT);
+        transport.receive(
+                "OK\r\n" +
+                "PB_PULL_START 13\r\n" +
+                "BEGIN:VCARD\r\n" +
+                "FN:Half\r\n"
+        );
+
+        assertTrue(listener.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(PhonebookPull.STATE_FAILED, pull.getState());
+
+        // The timeout runs on the timer thread, which may still be routing when the line arrives
+        final int[] volume = {-1};
+        final CountDownLatch received = new CountDownLatch(1);
+        uartInterface.subscribe(MelodyAudioEvent.AbsVolEvent.class, new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.AbsVolEvent>() {
+            @Override
+            public void onEvent(MelodyAudioEvent.AbsVolEvent event) {
+                volume[0] = event.getVolume();
+                received.countDown();
+            }
+        });
+        transport.receive("ABS_VOL 11 64\r\n");
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(64, volume[0]);
+    }
+
+    @Test
+    public void linkLossFailsPullFromThatDevice() throws Exception {
+        FinishListener listener = new FinishListener();
+        PhonebookPull pull = uartInterface.pullPhonebook(16, listener, LISTENER_DIRECT);
+        transport.receive(
+                "OK\r\n" +
+                "PB_PULL_START 16\r\n" +
+                "BEGIN:VCARD\r\n" +
+                "LINK_LOSS 10 1\r\n"
+        );
+
+        assertEquals(0, listener.finished.getCount());
+        assertEquals(PhonebookPull.STATE_FAILED, pull.getState());
+        assertNotNull(uartInterface.pullPhonebook(16, new FinishListener(), LISTENER_DIRECT));
+    }
+
+    @Test
+    public void linkLossOfAnotherDeviceOrRecoveryKeepsPull() {
+        FinishListener listener = new FinishListener();
+        PhonebookPull pull = uartInterface.pullPhonebook(16, listener, LISTENER_DIRECT);
+        transport.receive(
+                "OK\r\n" +
+                "LINK_LOSS 20 1\r\n" +
+                "LINK_LOSS 10 0\r\n" +
+                "PB_PULL_START 16\r\n" +
+                "BEGIN:VCARD\r\n" +
+                "FN:Kept\r\n" +
+                "TEL:01632 960001\r\n" +
+                "END:VCARD\r\n" +
+                "PB_PULL_END\r\n"
+        );
+
+        assertEquals(PhonebookPull.STATE_COMPLETE, pull.getState());
+        assertEquals(1, listener.contacts);
+    }
+
+    @Test
+    public void resetStopsPbDataBeforeTheNextLineIsRouted() {
+        final ArrayList<Runnable> held = new ArrayList<>();
+        uartInterface = new MelodyAudioUartInterface(transport, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                held.add(runnable);
+            }
+        });
+        final int[] volume = {-1};
+        uartInterface.subscribe(MelodyAudioEvent.AbsVolEvent.class, new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.AbsVolEvent>() {
+            @Override
+            public void onEvent(MelodyAudioEvent.AbsVolEvent event) {
+                volume[0] = event.getVolume();
+            }
+        });
+
+        transport.receive(
+                "PB_PULL_START 13\r\n" +
+                "BEGIN:VCARD\r\n"
+        );
+        while (!held.isEmpty()) {
+            held.remove(0).run();
+        }
+
+        // Reopened from another thread, the routing state is reset on the callback executor
+        uartInterface.reset();
+        transport.receive("ABS_VOL 11 64\r\n");
+        while (!held.isEmpty()) {
+            held.remove(0).run();
+        }
+
+        assertEquals(64, volume[0]);
+    }
+
+    private long counter(int counter) {
+        return uartInterface.getMetrics().snapshot().getCounter(counter);
+    }
+
+    @Test
+    public void malformedLineIsSkippedAndTheRestRouted() {
+        final ArrayList<Integer> volumes = new ArrayList<>();
+        uartInterface.subscribe(MelodyAudioEvent.AbsVolEvent.class, new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.AbsVolEvent>() {
+            @Override
+            public void onEvent(MelodyAudioEvent.AbsVolEvent event) {
+                volumes.add(event.getVolume());
+            }
+        });
+
+        transport.receive(
+                "ABS_VOL 11 loud\r\n" +
+                "ERROR 0xZZ\r\n" +
+                "ABS_VOL 11 64\r\n"
+        );
+
+        assertEquals(1, volumes.size());
+        assertEquals(64, (int) volumes.get(0));
+        assertEquals(2, counter(UartMetrics.COUNTER_LINES_FAILED));
+        assertEquals(3, counter(UartMetrics.COUNTER_LINES_IN));
+    }
+
+    @Test
+    public void linesAreOnlyDecodedWhenAsked() {
+        final int[] events = {0};
+        uartInterface.subscribe(MelodyAudioEvent.AbsVolEvent.class, new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.AbsVolEvent>() {
+            @Override
+            public void onEvent(MelodyAudioEvent.AbsVolEvent event) {
+                events[0]++;
+                assertEquals("ABS_VOL 11 loud", event.getLine().toString());
+            }
+        });
+
+        // Nothing reads the volume, so the bad value is never parsed
+        transport.receive("ABS_VOL 11 loud\r\n");
+
+        assertEquals(1, events[0]);
+        assertEquals(0, counter(UartMetrics.COUNTER_LINES_FAILED));
+    }
+
+    @Test
+    public void eventsAreRecycledAfterDispatchUnlessDetached() {
+        final ArrayList<MelodyAudioEvent.AbsVolEvent> dispatched = new ArrayList<>();
+        final ArrayList<MelodyAudioEvent.AbsVolEvent> detached = new ArrayList<>();
+        uartInterface.subscribe(MelodyAudioEvent.AbsVolEvent.class, new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.AbsVolEvent>() {
+            @Override
+            public void onEvent(MelodyAudioEvent.AbsVolEvent event) {
+                dispatched.add(event);
+                detached.add((MelodyAudioEvent.AbsVolEvent) event.detach());
+            }
+        });
+
+        transport.receive("ABS_VOL 11 64\r\n");
+        // The view is released back to the pool, its line no longer points into the framer
+        assertEquals(0, dispatched.get(0).getLine().length());
+
+        transport.receive("ABS_VOL 12 32\r\n");
+        assertSame(dispatched.get(0), dispatched.get(1));
+        assertNotSame(detached.get(0), detached.get(1));
+
+        assertEquals(11, detached.get(0).getLinkId());
+        assertEquals(64, detached.get(0).getVolume());
+        assertEquals(12, detached.get(1).getLinkId());
+        assertEquals(32, detached.get(1).getVolume());
+    }
+
+    @Test
+    public void linkLossEventsSayIfTheLinkRecovered() {
+        final ArrayList<String> losses = new ArrayList<>();
+        uartInterface.subscribe(MelodyAudioEvent.LinkLossEvent.class, new MelodyAudioUartInterface.EventListener<MelodyAudioEvent.LinkLossEvent>() {
+            @Override
+            public void onEvent(MelodyAudioEvent.LinkLossEvent event) {
+                losses.add(event.getLinkId() + " " + event.isLost());
+            }
+        });
+
+        transport.receive(
+                "LINK_LOSS 11 1\r\n" +
+                "LINK_LOSS 11 0\r\n" +
+                "LINK_LOSS 20\r\n"
+        );
+
+        assertEquals(3, losses.size());
+        assertEquals("11 true", losses.get(0));
+        assertEquals("11 false", losses.get(1));
+        assertEquals("20 true", losses.get(2));
+    }
+}
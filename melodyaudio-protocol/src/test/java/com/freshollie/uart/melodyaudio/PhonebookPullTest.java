@@ -0,0 +1,133 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PhonebookPullTest {
+    /**
+     * Holds the listener's work until the test runs it, like a listener which lags
+     */
+    private static class HeldExecutor implements Executor {
+        private final ArrayList<Runnable> held = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            held.add(runnable);
+        }
+
+        void runAll() {
+            while (!held.isEmpty()) {
+                held.remove(0).run();
+            }
+        }
+    }
+
+    private final ArrayList<String> delivered = new ArrayList<>();
+    private final PhonebookPull.PhonebookListener listener = new PhonebookPull.PhonebookListener() {
+        @Override
+        public void onContacts(PhonebookPull pull, List<PhonebookContact> contacts) {
+            for (PhonebookContact contact: contacts) {
+                delivered.add(contact.getName());
+            }
+        }
+
+        @Override
+        public void onPullFinished(PhonebookPull pull) {
+            delivered.add("finished " + pull.getState());
+        }
+    };
+
+    private HeldExecutor executor;
+
+    @Before
+    public void createExecutor() {
+        executor = new HeldExecutor();
+    }
+
+    private static PhonebookContact contact(String name) {
+        return new PhonebookContact(name, null, null, new String[] {"01632 960001"}, new String[] {"CELL"});
+    }
+
+    @Test
+    public void batchesAreDeliveredInOrderBeforeTheEnd() {
+        PhonebookPull pull = new PhonebookPull(16, listener, executor, 2, 4);
+        pull.onStarted();
+        pull.onContact(contact("A"));
+        pull.onContact(contact("B"));
+        pull.onContact(contact("C"));
+        pull.onComplete();
+
+        // Nothing waits for the listener
+        assertEquals(PhonebookPull.STATE_COMPLETE, pull.getState());
+        assertTrue(delivered.isEmpty());
+
+        executor.runAll();
+        assertEquals(
+                Arrays.asList("A", "B", "C", "finished " + PhonebookPull.STATE_COMPLETE),
+                delivered
+        );
+    }
+
+    @Test
+    public void laggingListenerOverrunsThePull() {
+        PhonebookPull pull = new PhonebookPull(16, listener, executor, 1, 2);
+        pull.onStarted();
+        pull.onContact(contact("A"));
+        pull.onContact(contact("B"));
+        assertEquals(PhonebookPull.STATE_RECEIVING, pull.getState());
+
+        // A third batch can't wait for the listener
+        pull.onContact(contact("C"));
+        assertEquals(PhonebookPull.STATE_OVERRUN, pull.getState());
+
+        // Ignored now the pull has ended
+        pull.onContact(contact("D"));
+        pull.onComplete();
+        assertEquals(PhonebookPull.STATE_OVERRUN, pull.getState());
+
+        executor.runAll();
+        assertEquals(
+                Arrays.asList("A", "B", "finished " + PhonebookPull.STATE_OVERRUN),
+                delivered
+        );
+    }
+
+    @Test
+    public void listenerKeepingUpNeverOverruns() {
+        PhonebookPull pull = new PhonebookPull(16, listener, executor, 1, 1);
+        pull.onStarted();
+        for (int i = 0; i < 10; i++) {
+            pull.onContact(contact(String.valueOf(i)));
+            executor.runAll();
+        }
+        pull.onComplete();
+        executor.runAll();
+
+        assertEquals(PhonebookPull.STATE_COMPLETE, pull.getState());
+        assertEquals(11, delivered.size());
+    }
+
+    @Test
+    public void cancelDropsWaitingBatches() {
+        PhonebookPull pull = new PhonebookPull(16, listener, executor, 1, 4);
+        pull.onStarted();
+        pull.onContact(contact("A"));
+        pull.onContact(contact("B"));
+        pull.cancel();
+
+        executor.runAll();
+        assertEquals(
+                Collections.singletonList("finished " + PhonebookPull.STATE_CANCELLED),
+                delivered
+        );
+    }
+}
@@ -0,0 +1,180 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PhonebookStoreTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String FILE_NAME = "001122334455.pb";
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private File file;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = folder.newFolder("phonebooks");
+        file = new File(directory, FILE_NAME);
+    }
+
+    private static PhonebookContact contact(String name, String number) {
+        return new PhonebookContact(name, null, null, new String[] {number}, new String[] {"CELL"});
+    }
+
+    private void sync(PhonebookContact... contacts) throws Exception {
+        PhonebookStore store = new PhonebookStore(directory);
+        PhonebookPull pull = new PhonebookPull(1, store.newSync(ADDRESS, null), DIRECT, 1, 1);
+        pull.onStarted();
+        for (PhonebookContact contact: contacts) {
+            pull.onContact(contact);
+        }
+        pull.onComplete();
+    }
+
+    private List<PhonebookContact> reload() throws IOException {
+        PhonebookStore store = new PhonebookStore(directory);
+        store.load(ADDRESS);
+        return store.getContacts(ADDRESS);
+    }
+
+    /**
+     * Overwrites the first occurrence of the text in the phonebook file
+     */
+    private void overwrite(String text, byte value) throws IOException {
+        byte[] target = text.getBytes(Charset.forName("UTF-8"));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+
+            for (int i = 0; i + target.length <= bytes.length; i++) {
+                boolean match = true;
+                for (int j = 0; j < target.length && match; j++) {
+                    match = bytes[i + j] == target[j];
+                }
+
+                if (match) {
+                    raf.seek(i);
+                    for (int j = 0; j < target.length; j++) {
+                        raf.write(value);
+                    }
+                    return;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        fail("No " + text + " in the phonebook");
+    }
+
+    @Test
+    public void reloadsSyncedContacts() throws Exception {
+        sync(contact("Ann", "07700900001"), contact("Bob", "07700900002"));
+
+        PhonebookStore store = new PhonebookStore(directory);
+        store.load(ADDRESS);
+
+        assertEquals(2, store.getContacts(ADDRESS).size());
+        assertEquals("Bob", store.lookup(ADDRESS, "+447700900002").getName());
+    }
+
+    @Test
+    public void onlyFinishedPullsAreComplete() throws Exception {
+        PhonebookStore store = new PhonebookStore(directory);
+
+        PhonebookStore.Sync completed = store.newSync(ADDRESS, null);
+        PhonebookPull pull = new PhonebookPull(1, completed, DIRECT, 1, 1);
+        pull.onStarted();
+        pull.onContact(contact("Ann", "07700900001"));
+        pull.onComplete();
+        assertTrue(completed.isComplete());
+
+        PhonebookStore.Sync failed = store.newSync(ADDRESS, null);
+        pull = new PhonebookPull(1, failed, DIRECT, 1, 1);
+        pull.onStarted();
+        pull.onContact(contact("Bob", "07700900002"));
+        pull.onFailed();
+        assertFalse(failed.isComplete());
+    }
+
+    @Test
+    public void corruptRecordKeepsContactsBeforeIt() throws Exception {
+        sync(contact("Ann", "07700900001"), contact("Bob", "07700900002"), contact("Cat", "07700900003"));
+        long length = file.length();
+
+        // Not valid modified UTF-8, so the record fails to read without reaching the end
+        overwrite("Cat", (byte) 0xff);
+
+        List<PhonebookContact> contacts = reload();
+        assertEquals(2, contacts.size());
+        assertEquals("Ann", contacts.get(0).getName());
+        assertEquals("Bob", contacts.get(1).getName());
+
+        // Rewritten without the damaged record
+        assertTrue(file.length() < length);
+        assertEquals(2, reload().size());
+    }
+
+    @Test
+    public void truncatedLogKeepsContactsBeforeIt() throws Exception {
+        sync(contact("Ann", "07700900001"), contact("Bob", "07700900002"));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(1, reload().size());
+    }
+
+    @Test
+    public void failedRepairIsNotLeftLoaded() throws Exception {
+        sync(contact("Ann", "07700900001"), contact("Bob", "07700900002"));
+        overwrite("Bob", (byte) 0xff);
+
+        // Stops the damaged phonebook being rewritten
+        File blocker = new File(file.getPath() + ".tmp");
+        assertTrue(blocker.mkdir());
+
+        PhonebookStore store = new PhonebookStore(directory);
+        try {
+            store.load(ADDRESS);
+            fail("Repaired into a directory");
+        } catch (IOException expected) {}
+
+        assertTrue(store.getContacts(ADDRESS).isEmpty());
+        assertNull(store.lookup(ADDRESS, "07700900001"));
+
+        // Read again from the start once it can be repaired
+        assertTrue(blocker.delete());
+        store.load(ADDRESS);
+        assertEquals(1, store.getContacts(ADDRESS).size());
+        assertEquals("Ann", store.lookup(ADDRESS, "07700900001").getName());
+    }
+}
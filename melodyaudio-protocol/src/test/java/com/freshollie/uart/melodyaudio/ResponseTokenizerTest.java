@@ -0,0 +1,151 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResponseTokenizerTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ResponseTokenizer tokenizer = new ResponseTokenizer();
+
+    private ResponseTokenizer tokenize(String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        ResponseLine line = new ResponseLine();
+        line.set(bytes, 0, bytes.length);
+        return tokenizer.reset(line);
+    }
+
+    @Test
+    public void splitsTokensOnRunsOfSpaces() {
+        Object[][] table = {
+                {"", new String[0]},
+                {"   ", new String[0]},
+                {"OK", new String[] {"OK"}},
+                {"  ABS_VOL   11 64  ", new String[] {"ABS_VOL", "11", "64"}},
+                {"NAME=Melody Audio", new String[] {"NAME=Melody", "Audio"}},
+                {"KEY= =VALUE", new String[] {"KEY=", "=VALUE"}},
+        };
+
+        for (Object[] row: table) {
+            assertArrayEquals((String) row[0], (String[]) row[1], tokenize((String) row[0]).remainingTokens());
+        }
+    }
+
+    @Test
+    public void numbers() {
+        ResponseTokenizer tokens = tokenize("ABS_VOL 11 -4 0x0019 1f 0X10");
+
+        assertTrue(tokens.peekEquals("ABS_VOL"));
+        assertTrue(tokens.peekEquals("ABS_VOL"));
+        assertFalse(tokens.peekEquals("ABS"));
+        tokens.skip();
+
+        assertEquals(11, tokens.nextInt());
+        assertEquals(-4, tokens.nextInt());
+        assertEquals(0x19, tokens.nextHexInt());
+        assertEquals(0x1f, tokens.nextHexInt());
+        assertEquals(0x10, tokens.nextHexInt());
+        assertFalse(tokens.hasMoreTokens());
+    }
+
+    @Test
+    public void badNumbersThrow() {
+        String[] lines = {"", "-", "1a", "0x"};
+
+        for (String line: lines) {
+            try {
+                if (line.startsWith("0x")) {
+                    tokenize(line).nextHexInt();
+                } else {
+                    tokenize(line).nextInt();
+                }
+                fail("Parsed " + line);
+            } catch (NumberFormatException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void knownTokensAreTheConstants() {
+        String[] keys = {"AVRCP_PLAY", "AVRCP_STOP"};
+        ResponseTokenizer tokens = tokenize("AVRCP_STOP AVRCP_STOPPED");
+
+        assertSame(keys[1], tokens.nextToken(keys));
+        assertEquals("AVRCP_STOPPED", tokens.nextToken(keys));
+    }
+
+    @Test
+    public void bracketValues() {
+        String[] values = {"ON", "OFF"};
+        ResponseTokenizer tokens = tokenize("STATE CONNECTABLE[ON] DISCOVERABLE[MAYBE] BLE[] LEVEL[12] NEXT");
+
+        tokens.skip();
+        assertSame(values[0], tokens.nextBracketValue(values));
+        assertEquals("MAYBE", tokens.nextBracketValue(values));
+        assertEquals("", tokens.nextBracketValue(values));
+        assertEquals(12, tokens.nextBracketInt());
+        assertEquals("NEXT", tokens.nextToken());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bracketValueMustBeInTheToken() {
+        tokenize("CONNECTABLE ON[1]").nextBracketValue(new String[0]);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void bracketIntMustBeInTheToken() {
+        tokenize("LEVEL 12").nextBracketInt();
+    }
+
+    @Test
+    public void quotedFieldsKeepTheirSpaces() {
+        ResponseTokenizer tokens = tokenize("NAME 10 \"My  Phone\" \"\" AFTER");
+
+        tokens.skip();
+        assertEquals(10, tokens.nextInt());
+        assertEquals("My  Phone", tokens.nextQuoted());
+        assertEquals("", tokens.nextQuoted());
+        assertEquals("AFTER", tokens.nextToken());
+        assertNull(tokens.nextQuoted());
+    }
+
+    @Test
+    public void unterminatedQuoteRunsToTheEnd() {
+        ResponseTokenizer tokens = tokenize("NAME 10 \"Half name");
+
+        tokens.skip().skip();
+        assertEquals("Half name", tokens.nextQuoted());
+        assertFalse(tokens.hasMoreTokens());
+    }
+
+    @Test
+    public void remainingIsTheRestOfTheLine() {
+        ResponseTokenizer tokens = tokenize("AVRCP_MEDIA TITLE: A  song = yes");
+
+        tokens.skip();
+        assertEquals("TITLE: A  song = yes", tokens.remaining());
+        assertFalse(tokens.hasMoreTokens());
+        assertEquals("", tokens.remaining());
+    }
+
+    @Test
+    public void resetStartsOverOnANewLine() {
+        ResponseTokenizer tokens = tokenize("LINK_LOSS 10 1");
+        tokens.skip().skip().skip();
+        assertFalse(tokens.hasMoreTokens());
+
+        tokens = tokenize(" OK");
+        assertTrue(tokens.hasMoreTokens());
+        assertEquals("OK", tokens.nextToken());
+    }
+}
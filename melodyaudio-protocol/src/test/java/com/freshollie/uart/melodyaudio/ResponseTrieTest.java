@@ -0,0 +1,142 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static com.freshollie.uart.melodyaudio.MelodyAudioUartInterface.*;
+import static org.junit.Assert.assertEquals;
+
+public class ResponseTrieTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Lines the module sends, and the response class each is routed as
+    private static final Object[][] RESPONSES = {
+            {"OK", RESPONSE_OK},
+            {"ERROR 0x0019", RESPONSE_ERROR},
+            {"PENDING", RESPONSE_PENDING},
+
+            {"NAME=Melody Audio", RESPONSE_PREFERENCE},
+            {"AUTOCONN=1", RESPONSE_PREFERENCE},
+            {"NAME 10 \"Pixel\"", RESPONSE_NAME},
+            {"NAME 10 A=B", RESPONSE_NAME},
+
+            {"AVRCP_MEDIA TITLE: Song", RESPONSE_AVRCP},
+            {"AVRCP_PLAY 11", RESPONSE_AVRCP},
+            {"AVRCP_STOP 11", RESPONSE_AVRCP},
+            {"AVRCP_PAUSE 11", RESPONSE_AVRCP},
+            {"AVRCP_FORWARD 11", RESPONSE_AVRCP},
+            {"AVRCP_BACKWARD 11", RESPONSE_AVRCP},
+            {"AVRCP_NEW_KEY 11", RESPONSE_AVRCP},
+            {"AVRCP", RESPONSE_AVRCP},
+            {"AVRC 11", ResponseTrie.NO_MATCH},
+            {"ABS_VOL 11 64", RESPONSE_ABS_VOL},
+
+            {"CALL_ACTIVE 13", RESPONSE_CALL},
+            {"CALL_DIAL 13", RESPONSE_CALL},
+            {"CALL_END 13", RESPONSE_CALL},
+            {"CALL_INCOMING 13", RESPONSE_CALL},
+            {"CALL_MEMORY 13", RESPONSE_CALL},
+            {"CALL_OUTGOING 13", RESPONSE_CALL},
+            {"CALL_REDIAL 13", RESPONSE_CALL},
+            {"CALLER_NUMBER 13 01632960001", RESPONSE_CALLER_NUMBER},
+            {"CALL_HOLD 13", ResponseTrie.NO_MATCH},
+            {"CALL", ResponseTrie.NO_MATCH},
+
+            {"A2DP_STREAM_START 10", RESPONSE_A2DP_STREAM},
+            {"A2DP_STREAM_SUSPEND 10", RESPONSE_A2DP_STREAM},
+
+            {"PB_PULL_START 16", RESPONSE_PB},
+            {"PB_PULL_END", RESPONSE_PB},
+            {"PB_PULL_OK 16", RESPONSE_PB},
+            {"PB_PULL", ResponseTrie.NO_MATCH},
+
+            {"LINK_LOSS 10 1", RESPONSE_LINK_LOSS},
+            {"LINK 10 CONNECTED A2DP 0123456789AB", RESPONSE_LINK},
+            {"LINK_", ResponseTrie.NO_MATCH},
+            {"LIST 0 0123456789AB", RESPONSE_LIST},
+            {"STATE CONNECTABLE[ON]", RESPONSE_STATE},
+            {"STATES", ResponseTrie.NO_MATCH},
+
+            {"O", ResponseTrie.NO_MATCH},
+            {"OKAY", ResponseTrie.NO_MATCH},
+            {"READY", ResponseTrie.NO_MATCH},
+            {"OPEN_OK 10", ResponseTrie.NO_MATCH},
+            {"", ResponseTrie.NO_MATCH},
+            {"OK\r", ResponseTrie.NO_MATCH},
+    };
+
+    private static ResponseLine line(String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        ResponseLine line = new ResponseLine();
+        line.set(bytes, 0, bytes.length);
+        return line;
+    }
+
+    @Test
+    public void classifiesEveryResponse() {
+        ResponseTrie trie = createResponseTrie();
+
+        for (Object[] response: RESPONSES) {
+            assertEquals((String) response[0], (int) (Integer) response[1], trie.classify(line((String) response[0])));
+        }
+    }
+
+    @Test
+    public void framedLinesLoseTheirCarriageReturn() {
+        final ResponseTrie trie = createResponseTrie();
+        final int[] classes = new int[2];
+        final int[] count = {0};
+
+        LineFramer framer = new LineFramer((byte) '\n');
+        framer.write("OK\r\n\r\nPENDING \r\n".getBytes(UTF_8));
+        framer.drain(new LineFramer.LineListener() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                ResponseLine line = new ResponseLine();
+                line.set(buffer, offset, length);
+                classes[count[0]++] = trie.classify(line);
+            }
+        });
+
+        assertEquals(2, count[0]);
+        assertEquals(RESPONSE_OK, classes[0]);
+        assertEquals(RESPONSE_PENDING, classes[1]);
+    }
+
+    @Test
+    public void exactKeysBeatTheLongestPrefix() {
+        ResponseTrie trie = new ResponseTrie();
+        trie.putPrefix("A", 1);
+        trie.put("AB", 2);
+        trie.putPrefix("ABC", 3);
+        trie.put("ABCD", 4);
+
+        Object[][] table = {
+                {"A", 1},
+                {"AX", 1},
+                {"AB", 2},
+                {"ABX", 1},
+                {"ABC", 3},
+                {"ABCX", 3},
+                {"ABCD", 4},
+                {"ABCDE", 3},
+                {"B", ResponseTrie.NO_MATCH},
+                {"AB=1", ResponseTrie.NO_MATCH},
+        };
+        for (Object[] row: table) {
+            assertEquals((String) row[0], (int) (Integer) row[1], trie.classify(line((String) row[0])));
+        }
+    }
+
+    @Test
+    public void onlyTheFirstTokenIsAnAssignment() {
+        ResponseTrie trie = new ResponseTrie();
+        trie.put("NAME", 1);
+        trie.putAssignment(2);
+
+        assertEquals(2, trie.classify(line("NAME=Melody")));
+        assertEquals(2, trie.classify(line("UNKNOWN=1")));
+        assertEquals(1, trie.classify(line("NAME 10 A=B")));
+    }
+}
@@ -0,0 +1,188 @@
+package com.freshollie.uart.melodyaudio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficRecorderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    // Recorded from a module with one phone connected and playing, with lines split
+    // across receives
+    private static final String SESSION_CAPTURE = "/captures/session.cap";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void captureReplaysToEvents() throws Exception {
+        ReplayTransport transport = new ReplayTransport(
+                new File(getClass().getResource(SESSION_CAPTURE).toURI()),
+                ReplayTransport.AS_FAST_AS_POSSIBLE
+        );
+        MelodyAudioUartInterface uartInterface = new MelodyAudioUartInterface(transport, DIRECT);
+
+        final List<MelodyAudioEvent> events = new ArrayList<>();
+        uartInterface.subscribe(MelodyAudioEvent.class, new MelodyAudioUartInterface.EventListener<MelodyAudioEvent>() {
+            @Override
+            public void onEvent(MelodyAudioEvent event) {
+                events.add(event.detach());
+            }
+        });
+
+        transport.open();
+        assertTrue(transport.awaitFinished(5, TimeUnit.SECONDS));
+        assertNull(transport.getError());
+        assertEquals(5, transport.getChunksReplayed());
+
+        assertEquals(8, events.size());
+
+        MelodyAudioEvent.StatusEvent status = (MelodyAudioEvent.StatusEvent) events.get(0);
+        assertEquals(1, status.getNumConnected());
+        assertTrue(status.isConnectable());
+
+        MelodyAudioEvent.LinkStatusEvent a2dpLink = (MelodyAudioEvent.LinkStatusEvent) events.get(1);
+        assertEquals(10, a2dpLink.getLinkId());
+        assertEquals("A2DP", a2dpLink.getLinkType());
+        assertEquals("20FABB000001", a2dpLink.getAddress());
+
+        MelodyAudioEvent.LinkStatusEvent avrcpLink = (MelodyAudioEvent.LinkStatusEvent) events.get(2);
+        assertEquals(11, avrcpLink.getLinkId());
+        assertEquals("AVRCP", avrcpLink.getLinkType());
+
+        MelodyAudioEvent.AvrcpEvent play = (MelodyAudioEvent.AvrcpEvent) events.get(3);
+        assertEquals(MelodyAudioUartInterface.ResponseKeys.AVRCP_PLAY, play.getAvrcpType());
+        assertEquals(11, play.getLinkId());
+
+        MelodyAudioEvent.AvrcpEvent title = (MelodyAudioEvent.AvrcpEvent) events.get(4);
+        assertEquals(MelodyAudioUartInterface.ResponseKeys.AVRCP_MEDIA, title.getAvrcpType());
+        assertEquals(-1, title.getLinkId());
+        assertArrayEquals(new String[] {"TITLE:", "Song"}, title.getExtras());
+
+        MelodyAudioEvent.AvrcpEvent artist = (MelodyAudioEvent.AvrcpEvent) events.get(5);
+        assertArrayEquals(new String[] {"ARTIST:", "Band"}, artist.getExtras());
+
+        MelodyAudioEvent.AbsVolEvent absVol = (MelodyAudioEvent.AbsVolEvent) events.get(6);
+        assertEquals(11, absVol.getLinkId());
+        assertEquals(64, absVol.getVolume());
+
+        MelodyAudioEvent.A2dpStreamEvent stream = (MelodyAudioEvent.A2dpStreamEvent) events.get(7);
+        assertEquals(10, stream.getLinkId());
+        assertEquals(MelodyAudioUartInterface.ResponseKeys.A2DP_STREAM_START, stream.getStreamStatus());
+    }
+
+    @Test
+    public void recordedChunksAreReadBack() throws Exception {
+        File file = folder.newFile();
+        TrafficRecorder recorder = new TrafficRecorder(file);
+        recorder.recordOut(bytes("STATUS\r"));
+        recorder.recordIn(bytes("OK\r\n"));
+        recorder.close();
+
+        TrafficRecorder.Reader reader = new TrafficRecorder.Reader(file);
+        try {
+            TrafficRecorder.Chunk out = reader.read();
+            assertEquals(TrafficRecorder.DIRECTION_OUT, out.getDirection());
+            assertArrayEquals(bytes("STATUS\r"), out.getData());
+
+            TrafficRecorder.Chunk in = reader.read();
+            assertEquals(TrafficRecorder.DIRECTION_IN, in.getDirection());
+            assertArrayEquals(bytes("OK\r\n"), in.getData());
+            assertTrue(in.getTimeNanos() >= out.getTimeNanos());
+
+            assertNull(reader.read());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void chunkCutShortIsTheEnd() throws Exception {
+        File file = folder.newFile();
+        TrafficRecorder recorder = new TrafficRecorder(file);
+        recorder.recordIn(bytes("AVRCP_PLAY 11\r\n"));
+        recorder.recordIn(bytes("AVRCP_PAUSE 11\r\n"));
+        recorder.close();
+
+        // The header, then the first chunk's header and data
+        long firstChunkEnd = 16 + 13 + "AVRCP_PLAY 11\r\n".length();
+
+        // Killed while writing the second chunk's data
+        truncate(file, firstChunkEnd + 13 + 5);
+        assertEquals(1, countChunks(file));
+
+        // Killed while writing the second chunk's header
+        truncate(file, firstChunkEnd + 8);
+        assertEquals(1, countChunks(file));
+    }
+
+    @Test
+    public void quietCaptureIsFlushed() throws Exception {
+        File file = folder.newFile();
+        TrafficRecorder recorder = new TrafficRecorder(file);
+        try {
+            byte[] data = bytes("AVRCP_PLAY 11\r\n");
+            recorder.recordIn(data);
+
+            // Nothing else is recorded, so only the flush thread can write it
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TrafficRecorder.FLUSH_INTERVAL_MS * 3);
+            while (countChunks(file) == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, countChunks(file));
+            assertNull(recorder.getError());
+        } finally {
+            recorder.close();
+        }
+    }
+
+    private static int countChunks(File file) throws Exception {
+        if (file.length() == 0) {
+            return 0;
+        }
+
+        TrafficRecorder.Reader reader = new TrafficRecorder.Reader(file);
+        try {
+            int chunks = 0;
+            while (reader.read() != null) {
+                chunks++;
+            }
+            return chunks;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(UTF_8);
+    }
+}
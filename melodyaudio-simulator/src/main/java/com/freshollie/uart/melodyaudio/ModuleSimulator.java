@@ -0,0 +1,421 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a Melody Audio module on the module's end of a {@link Transport}.
+ *
+ * Answers LIST, STATUS, NAME, GET, SET and PB_PULL from the configured paired devices,
+ * preferences and phonebook size, and acknowledges every other command. Unsolicited
+ * traffic, such as AVRCP_MEDIA and ABS_VOL storms, calls and link losses, is generated
+ * at configurable rates.
+ */
+public class ModuleSimulator {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte COMMAND_TERMINATOR = '\r';
+    private static final String RESPONSE_TERMINATOR = "\r\n";
+
+    // Not a documented code, used for every command or key the simulator doesn't know
+    private static final String ERROR_UNKNOWN = "ERROR 0x0012";
+    private static final String ERROR_NAME_NOT_FOUND =
+            String.format(Locale.US, "ERROR 0x%04X", MelodyAudioUartInterface.Errors.NAME_NOT_FOUND);
+
+    public static final String EVENT_AVRCP_MEDIA = "avrcp_media";
+    public static final String EVENT_ABS_VOL = "abs_vol";
+    public static final String EVENT_CALL = "call";
+    public static final String EVENT_LINK_LOSS = "link_loss";
+
+    private static final String[][] TRACKS = {
+            {"Bohemian Rhapsody", "Queen", "A Night at the Opera", "Rock", "354320"},
+            {"Paranoid Android", "Radiohead", "OK Computer", "Alternative", "386000"},
+            {"E=MC2", "Big Audio Dynamite", "This Is Big Audio Dynamite", "Dance", "356000"}
+    };
+
+    private static final String[] SURNAMES = {"Smith", "Davies", "Williams", "Jones", "Brown", "Taylor"};
+    private static final String[] FIRST_NAMES = {"Alice", "Bob", "Charlie", "Dana", "Evan", "Zoe"};
+
+    public static class Device {
+        private final String address;
+        private final String name;
+        private final String[] profiles;
+
+        public Device(String address, String name, String... profiles) {
+            this.address = address;
+            this.name = name;
+            this.profiles = profiles;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+    }
+
+    private final Transport transport;
+    private final LineFramer commandFramer = new LineFramer(COMMAND_TERMINATOR);
+    private final Random random;
+
+    private final ArrayList<Device> devices = new ArrayList<>();
+    private final LinkedHashMap<String, String> preferences = new LinkedHashMap<>();
+    private int phonebookSize;
+
+    private final LinkedHashMap<String, Double> eventRates = new LinkedHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    private long commandsReceived;
+    private long linesSent;
+    private int trackIndex;
+
+    public ModuleSimulator(Transport transport) {
+        this(transport, new Random());
+    }
+
+    /**
+     * @param random the source of generated values, can be seeded for repeatable runs
+     */
+    public ModuleSimulator(Transport transport, Random random) {
+        this.transport = transport;
+        this.random = random;
+
+        preferences.put(MelodyAudioUartInterface.ConfigKeys.NAME, "Melody Audio");
+        preferences.put(MelodyAudioUartInterface.ConfigKeys.NAME_SHORT, "Melody");
+
+        transport.setReceiver(new Transport.Receiver() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                onCommandData(data);
+            }
+        });
+    }
+
+    /**
+     * Adds a paired, connected device. Its links are numbered like the module's, the
+     * device index then the {@link MelodyAudioUartInterface.BluetoothProfiles} value,
+     * so the first device's A2DP link is 10 and its HFP link is 13.
+     */
+    public synchronized void addDevice(Device device) {
+        devices.add(device);
+    }
+
+    public synchronized void setPreference(String key, String value) {
+        preferences.put(key, value);
+    }
+
+    /**
+     * @param contacts the number of vCards sent for every PB_PULL
+     */
+    public synchronized void setPhonebookSize(int contacts) {
+        phonebookSize = contacts;
+    }
+
+    /**
+     * Generates unsolicited traffic while the simulator is running
+     *
+     * @param event one of the EVENT constants
+     * @param perSecond how often the event happens, 0 to stop it
+     */
+    public synchronized void setEventRate(String event, double perSecond) {
+        if (!event.equals(EVENT_AVRCP_MEDIA) && !event.equals(EVENT_ABS_VOL) &&
+                !event.equals(EVENT_CALL) && !event.equals(EVENT_LINK_LOSS)) {
+            throw new IllegalArgumentException("Unknown event " + event);
+        }
+
+        eventRates.put(event, perSecond);
+    }
+
+    public synchronized long getCommandsReceived() {
+        return commandsReceived;
+    }
+
+    public synchronized long getLinesSent() {
+        return linesSent;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, ModuleSimulator.class.getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        for (String event: eventRates.keySet()) {
+            double perSecond = eventRates.get(event);
+            if (perSecond > 0) {
+                scheduleEvent(event, perSecond);
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void scheduleEvent(final String event, final double perSecond) {
+        // Fast events are batched, rather than scheduled more than once a millisecond
+        long periodMicros = Math.max(1000, (long) (1000000 / perSecond));
+        final long startNanos = System.nanoTime();
+
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            private long emitted;
+
+            @Override
+            public void run() {
+                double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+                long due = (long) (elapsedSeconds * perSecond);
+                for (; emitted < due; emitted++) {
+                    emitEvent(event);
+                }
+            }
+        }, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private void emitEvent(String event) {
+        ArrayList<String> lines = new ArrayList<>();
+
+        synchronized (this) {
+            if (devices.isEmpty()) {
+                return;
+            }
+
+            int deviceIndex = random.nextInt(devices.size());
+
+            switch (event) {
+                case EVENT_AVRCP_MEDIA:
+                    String[] track = TRACKS[trackIndex++ % TRACKS.length];
+                    lines.add("AVRCP_MEDIA TITLE: " + track[0]);
+                    lines.add("AVRCP_MEDIA ARTIST: " + track[1]);
+                    lines.add("AVRCP_MEDIA ALBUM: " + track[2]);
+                    lines.add("AVRCP_MEDIA TRACK_NUMBER: " + trackIndex % 12);
+                    lines.add("AVRCP_MEDIA TOTAL_NUMBER: 12");
+                    lines.add("AVRCP_MEDIA GENRE: " + track[3]);
+                    lines.add("AVRCP_MEDIA PLAYING_TIME(MS): " + track[4]);
+                    break;
+                case EVENT_ABS_VOL:
+                    lines.add("ABS_VOL " + linkId(deviceIndex, MelodyAudioUartInterface.BluetoothProfiles.AVRCP) +
+                            " " + random.nextInt(128));
+                    break;
+                case EVENT_CALL:
+                    int hfpLink = linkId(deviceIndex, MelodyAudioUartInterface.BluetoothProfiles.HFP);
+                    lines.add("CALL_INCOMING HFP " + hfpLink);
+                    lines.add("CALLER_NUMBER " + hfpLink + " " + phoneNumber(random.nextInt(Math.max(phonebookSize, 1))));
+                    lines.add("CALL_ACTIVE HFP " + hfpLink);
+                    lines.add("CALL_END HFP " + hfpLink);
+                    break;
+                case EVENT_LINK_LOSS:
+                    int link = linkId(deviceIndex, MelodyAudioUartInterface.BluetoothProfiles.A2DP);
+                    lines.add("LINK_LOSS " + link + " 1");
+                    lines.add("LINK_LOSS " + link + " 0");
+                    break;
+            }
+        }
+
+        send(lines);
+    }
+
+    private void onCommandData(byte[] data) {
+        if (commandFramer.write(data)) {
+            commandFramer.drain(new LineFramer.LineListener() {
+                @Override
+                public void onLine(byte[] buffer, int offset, int length) {
+                    onCommand(new String(buffer, offset, length, ASCII));
+                }
+            });
+        }
+    }
+
+    private void onCommand(String command) {
+        String[] tokens = command.split(" ");
+        ArrayList<String> lines = new ArrayList<>();
+
+        synchronized (this) {
+            commandsReceived++;
+
+            switch (tokens[0]) {
+                case MelodyAudioUartInterface.Commands.LIST:
+                    for (Device device: devices) {
+                        StringBuilder line = new StringBuilder("LIST ").append(device.address);
+                        for (String profile: device.profiles) {
+                            line.append(' ').append(profile);
+                        }
+                        lines.add(line.toString());
+                    }
+                    lines.add(MelodyAudioUartInterface.ResponseKeys.OK);
+                    break;
+
+                case MelodyAudioUartInterface.Commands.STATUS:
+                    lines.add("STATE CONNECTED[" + devices.size() + "] CONNECTABLE[ON] DISCOVERABLE[OFF] BLE[ADVERTISING]");
+                    for (int i = 0; i < devices.size(); i++) {
+                        Device device = devices.get(i);
+                        for (String profile: device.profiles) {
+                            int profileId = profileId(profile);
+                            if (profileId != -1) {
+                                lines.add("LINK " + linkId(i, profileId) + " CONNECTED " + profile + " " +
+                                        device.address);
+                            }
+                        }
+                    }
+                    lines.add(MelodyAudioUartInterface.ResponseKeys.OK);
+                    break;
+
+                case MelodyAudioUartInterface.Commands.NAME:
+                    Device named = tokens.length > 1 ? findDevice(tokens[1]) : null;
+                    if (named != null) {
+                        lines.add("NAME " + named.address + " \"" + named.name + "\"");
+                        lines.add(MelodyAudioUartInterface.ResponseKeys.OK);
+                    } else {
+                        lines.add(ERROR_NAME_NOT_FOUND);
+                    }
+                    break;
+
+                case MelodyAudioUartInterface.Commands.GET:
+                    String value = tokens.length > 1 ? preferences.get(tokens[1]) : null;
+                    if (value != null) {
+                        lines.add(tokens[1] + "=" + value);
+                        lines.add(MelodyAudioUartInterface.ResponseKeys.OK);
+                    } else {
+                        lines.add(ERROR_UNKNOWN);
+                    }
+                    break;
+
+                case MelodyAudioUartInterface.Commands.SET:
+                    int separator = tokens.length > 1 ? command.indexOf('=') : -1;
+                    if (separator != -1) {
+                        preferences.put(
+                                command.substring(tokens[0].length() + 1, separator),
+                                command.substring(separator + 1)
+                        );
+                        lines.add(MelodyAudioUartInterface.ResponseKeys.OK);
+                    } else {
+                        lines.add(ERROR_UNKNOWN);
+                    }
+                    break;
+
+                case MelodyAudioUartInterface.Commands.PB_PULL:
+                    lines.add(MelodyAudioUartInterface.ResponseKeys.OK);
+                    addPhonebookPull(lines, tokens.length > 1 ? tokens[1] : "13");
+                    break;
+
+                case MelodyAudioUartInterface.Commands.RESET:
+                    lines.add(MelodyAudioUartInterface.ResponseKeys.OK);
+                    lines.add(MelodyAudioUartInterface.ResponseKeys.READY);
+                    break;
+
+                case MelodyAudioUartInterface.Commands.CONFIG:
+                case MelodyAudioUartInterface.Commands.WRITE:
+                case MelodyAudioUartInterface.Commands.CALL:
+                case MelodyAudioUartInterface.Commands.ANSWER:
+                case MelodyAudioUartInterface.Commands.END:
+                case MelodyAudioUartInterface.Commands.REJECT:
+                case MelodyAudioUartInterface.Commands.MEDIA:
+                case MelodyAudioUartInterface.Commands.MUSIC:
+                case MelodyAudioUartInterface.Commands.VOLUME:
+                case MelodyAudioUartInterface.Commands.DISCOVERABLE:
+                    lines.add(MelodyAudioUartInterface.ResponseKeys.OK);
+                    break;
+
+                default:
+                    lines.add(ERROR_UNKNOWN);
+            }
+        }
+
+        send(lines);
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void addPhonebookPull(ArrayList<String> lines, String linkId) {
+        lines.add(MelodyAudioUartInterface.ResponseKeys.PB_PULL_START + " " + linkId);
+        for (int i = 0; i < phonebookSize; i++) {
+            String surname = SURNAMES[i % SURNAMES.length];
+            String firstName = FIRST_NAMES[(i / SURNAMES.length) % FIRST_NAMES.length] + (i / 36);
+
+            lines.add("BEGIN:VCARD");
+            lines.add("VERSION:2.1");
+            lines.add("N:" + surname + ";" + firstName + ";;;");
+            lines.add("FN:" + firstName + " " + surname);
+            lines.add("TEL;CELL:" + phoneNumber(i));
+            lines.add("END:VCARD");
+        }
+        lines.add(MelodyAudioUartInterface.ResponseKeys.PB_PULL_END);
+        lines.add(MelodyAudioUartInterface.ResponseKeys.PB_PULL_OK + " " + linkId);
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private Device findDevice(String address) {
+        for (Device device: devices) {
+            if (device.address.equals(address)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    private static int linkId(int deviceIndex, int profileId) {
+        return (deviceIndex + 1) * 10 + profileId;
+    }
+
+    private static int profileId(String profile) {
+        switch (profile) {
+            case "A2DP":
+                return MelodyAudioUartInterface.BluetoothProfiles.A2DP;
+            case "AVRCP":
+                return MelodyAudioUartInterface.BluetoothProfiles.AVRCP;
+            case "HFP":
+                return MelodyAudioUartInterface.BluetoothProfiles.HFP;
+            case "PBAP":
+                return MelodyAudioUartInterface.BluetoothProfiles.PBAP;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return a stable UK mobile number for the phonebook entry
+     */
+    static String phoneNumber(int contact) {
+        return String.format(Locale.US, "+4477%08d", contact);
+    }
+
+    private void send(ArrayList<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        StringBuilder data = new StringBuilder();
+        for (String line: lines) {
+            data.append(line).append(RESPONSE_TERMINATOR);
+        }
+
+        synchronized (transport) {
+            transport.write(data.toString().getBytes(ASCII));
+        }
+
+        synchronized (this) {
+            linesSent += lines.size();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Configures a {@link ModuleSimulator} from a script, one directive per line:
+ *
+ * <pre>
+ * # Comment
+ * device 20FABB000001 "Pixel" A2DP AVRCP HFP PBAP
+ * preference NAME Head Unit
+ * phonebook 500
+ * rate avrcp_media 5
+ * </pre>
+ */
+public class SimulatorScript {
+    private final ArrayList<String[]> directives = new ArrayList<>();
+
+    /**
+     * @throws IllegalArgumentException if a directive is malformed
+     */
+    public static SimulatorScript parse(Reader reader) throws IOException {
+        SimulatorScript script = new SimulatorScript();
+        BufferedReader lines = new BufferedReader(reader);
+
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] directive = split(line);
+            if (!isValid(directive)) {
+                throw new IllegalArgumentException("Bad directive on line " + lineNumber + ": " + line);
+            }
+            script.directives.add(directive);
+        }
+
+        return script;
+    }
+
+    public void applyTo(ModuleSimulator simulator) {
+        for (String[] directive: directives) {
+            switch (directive[0]) {
+                case "device":
+                    String[] profiles = new String[directive.length - 3];
+                    System.arraycopy(directive, 3, profiles, 0, profiles.length);
+                    simulator.addDevice(new ModuleSimulator.Device(directive[1], directive[2], profiles));
+                    break;
+                case "preference":
+                    simulator.setPreference(directive[1], directive[2]);
+                    break;
+                case "phonebook":
+                    simulator.setPhonebookSize(Integer.parseInt(directive[1]));
+                    break;
+                case "rate":
+                    simulator.setEventRate(directive[1], Double.parseDouble(directive[2]));
+                    break;
+            }
+        }
+    }
+
+    private static boolean isValid(String[] directive) {
+        try {
+            switch (directive[0]) {
+                case "device":
+                    return directive.length >= 3;
+                case "preference":
+                    return directive.length == 3;
+                case "phonebook":
+                    return directive.length == 2 && Integer.parseInt(directive[1]) >= 0;
+                case "rate":
+                    return directive.length == 3 && Double.parseDouble(directive[2]) >= 0;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Splits on spaces. A quoted name is kept as one token, and the rest of a
+     * preference line is its value.
+     */
+    private static String[] split(String line) {
+        ArrayList<String> tokens = new ArrayList<>();
+
+        int i = 0;
+        while (i < line.length()) {
+            if (line.charAt(i) == ' ') {
+                i++;
+                continue;
+            }
+
+            if (tokens.size() == 2 && tokens.get(0).equals("preference")) {
+                tokens.add(line.substring(i));
+                break;
+            }
+
+            int end;
+            if (line.charAt(i) == '"') {
+                end = line.indexOf('"', i + 1);
+                if (end == -1) {
+                    end = line.length();
+                }
+                tokens.add(line.substring(i + 1, end));
+                end++;
+            } else {
+                end = line.indexOf(' ', i);
+                if (end == -1) {
+                    end = line.length();
+                }
+                tokens.add(line.substring(i, end));
+            }
+            i = end;
+        }
+
+        return tokens.toArray(new String[tokens.size()]);
+    }
+}
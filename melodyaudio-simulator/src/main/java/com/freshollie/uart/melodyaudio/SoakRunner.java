@@ -0,0 +1,287 @@
+package com.freshollie.uart.melodyaudio;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a {@link MelodyAudioUartInterface} against a {@link ModuleSimulator} for a soak test,
+ * reporting event throughput, command latency and heap use as it goes.
+ *
+ * <pre>
+ * soak [--script FILE] [--duration SECONDS] [--report SECONDS] [--query-rate PER_SECOND]
+ *      [--pty STACK_PATH MODULE_PATH]
+ * </pre>
+ *
+ * By default both ends are linked in memory. With {@code --pty} they talk through a pty
+ * pair, such as one made by
+ * {@code socat pty,raw,echo=0,link=/tmp/stack pty,raw,echo=0,link=/tmp/module}.
+ */
+public class SoakRunner {
+    private static final String DEFAULT_SCRIPT = "/default.script";
+    private static final int PHONEBOOK_PULL_SECONDS = 120;
+    // The first simulated device's PBAP link
+    private static final int PHONEBOOK_LINK_ID = 16;
+
+    private static final String[] PRIORITY_NAMES = {"call control", "media", "volume", "query"};
+
+    // Queries the stack cycles through, so command latency is measured under event load
+    private static final String[][] QUERIES = {
+            {MelodyAudioUartInterface.Commands.STATUS, null},
+            {MelodyAudioUartInterface.Commands.LIST, null},
+            {MelodyAudioUartInterface.Commands.GET, MelodyAudioUartInterface.ConfigKeys.NAME},
+            {MelodyAudioUartInterface.Commands.VOLUME, "10 UP"},
+            {MelodyAudioUartInterface.Commands.MUSIC, "11 PLAY"}
+    };
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong contacts = new AtomicLong();
+    private final AtomicLong phonebookPulls = new AtomicLong();
+    private final AtomicLong commandsFailed = new AtomicLong();
+
+    private long maxHeapUsed;
+
+    public static void main(String[] args) throws Exception {
+        String scriptPath = null;
+        long durationSeconds = 60;
+        long reportSeconds = 10;
+        double queryRate = 20;
+        String stackPath = null;
+        String modulePath = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--script":
+                    scriptPath = args[++i];
+                    break;
+                case "--duration":
+                    durationSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--report":
+                    reportSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--query-rate":
+                    queryRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--pty":
+                    stackPath = args[++i];
+                    modulePath = args[++i];
+                    break;
+                default:
+                    System.err.println("Unknown argument " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        Transport stackTransport;
+        Transport moduleTransport;
+        if (stackPath != null) {
+            stackTransport = new PtyTransport(stackPath);
+            moduleTransport = new PtyTransport(modulePath);
+        } else {
+            LoopbackTransport stackEnd = new LoopbackTransport();
+            LoopbackTransport moduleEnd = new LoopbackTransport();
+            LoopbackTransport.connect(stackEnd, moduleEnd);
+            stackTransport = stackEnd;
+            moduleTransport = moduleEnd;
+        }
+
+        ModuleSimulator simulator = new ModuleSimulator(moduleTransport);
+        InputStream script = scriptPath != null ?
+                new FileInputStream(scriptPath) :
+                SoakRunner.class.getResourceAsStream(DEFAULT_SCRIPT);
+        try {
+            SimulatorScript.parse(new InputStreamReader(script, Charset.forName("UTF-8"))).applyTo(simulator);
+        } finally {
+            script.close();
+        }
+
+        new SoakRunner().run(
+                simulator,
+                moduleTransport,
+                stackTransport,
+                TimeUnit.SECONDS.toNanos(durationSeconds),
+                TimeUnit.SECONDS.toNanos(reportSeconds),
+                queryRate
+        );
+    }
+
+    private void run(ModuleSimulator simulator,
+                     Transport moduleTransport,
+                     Transport stackTransport,
+                     long durationNanos,
+                     long reportNanos,
+                     double queryRate) throws IOException, InterruptedException {
+        final MelodyAudioUartInterface uartInterface = new MelodyAudioUartInterface(stackTransport);
+
+        uartInterface.subscribe(MelodyAudioEvent.class, new MelodyAudioUartInterface.EventListener<MelodyAudioEvent>() {
+            @Override
+            public void onEvent(MelodyAudioEvent event) {
+                events.incrementAndGet();
+            }
+        });
+        final PhonebookPull.PhonebookListener countContacts = new PhonebookPull.PhonebookListener() {
+            @Override
+            public void onContacts(PhonebookPull pull, List<PhonebookContact> batch) {
+                contacts.addAndGet(batch.size());
+            }
+
+            @Override
+            public void onPullFinished(PhonebookPull pull) {
+                if (pull.getState() == PhonebookPull.STATE_COMPLETE) {
+                    phonebookPulls.incrementAndGet();
+                } else {
+                    commandsFailed.incrementAndGet();
+                }
+            }
+        };
+        final ExecutorService contactExecutor = Executors.newSingleThreadExecutor();
+
+        final PendingCommand.CommandCallback countFailures = new PendingCommand.CommandCallback() {
+            @Override
+            public void onCommandResult(CommandResult result) {
+                if (!result.isOk()) {
+                    commandsFailed.incrementAndGet();
+                }
+            }
+        };
+
+        moduleTransport.open();
+        stackTransport.open();
+        simulator.start();
+
+        ScheduledExecutorService queries = Executors.newSingleThreadScheduledExecutor();
+        if (queryRate > 0) {
+            long periodMicros = (long) (1000000 / queryRate);
+            // Pull the phonebook every couple of minutes, while the other queries are sent
+            final long phonebookPullEvery = Math.max(1, (long) (queryRate * PHONEBOOK_PULL_SECONDS));
+
+            queries.scheduleAtFixedRate(new Runnable() {
+                private long sent;
+
+                @Override
+                public void run() {
+                    String[] query = QUERIES[(int) (sent++ % QUERIES.length)];
+                    if (query[1] == null) {
+                        uartInterface.sendCommand(query[0], countFailures);
+                    } else {
+                        uartInterface.sendCommand(query[0], query[1], countFailures);
+                    }
+
+                    if (sent % phonebookPullEvery == 0) {
+                        try {
+                            uartInterface.pullPhonebook(PHONEBOOK_LINK_ID, countContacts, contactExecutor);
+                        } catch (IllegalStateException e) {
+                            // The last pull is still being received
+                        }
+                    }
+                }
+            }, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+        }
+
+        long startNanos = System.nanoTime();
+        long lastReportNanos = startNanos;
+        long lastEvents = 0;
+
+        while (true) {
+            long now = System.nanoTime();
+            long remaining = startNanos + durationNanos - now;
+            if (remaining <= 0) {
+                break;
+            }
+
+            TimeUnit.NANOSECONDS.sleep(Math.min(remaining, lastReportNanos + reportNanos - now));
+            now = System.nanoTime();
+
+            if (now - lastReportNanos >= reportNanos) {
+                long eventCount = events.get();
+                report(uartInterface, simulator, now - startNanos, eventCount - lastEvents, now - lastReportNanos);
+                lastEvents = eventCount;
+                lastReportNanos = now;
+            }
+        }
+
+        queries.shutdownNow();
+        // Lets a pull being received finish, its thread would otherwise keep the JVM running
+        contactExecutor.shutdown();
+        simulator.stop();
+        stackTransport.close();
+        moduleTransport.close();
+
+        long now = System.nanoTime();
+        System.out.println("Finished");
+        report(uartInterface, simulator, now - startNanos, events.get(), now - startNanos);
+    }
+
+    private void report(MelodyAudioUartInterface uartInterface,
+                        ModuleSimulator simulator,
+                        long elapsedNanos,
+                        long intervalEvents,
+                        long intervalNanos) {
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        maxHeapUsed = Math.max(maxHeapUsed, heapUsed);
+
+        System.out.println(String.format(Locale.US,
+                "%6ds  %10.0f events/s  %d events  %d lines sent  %d commands  %d failed  " +
+                        "%d phonebook pulls  %d contacts  heap %.1f MB (max %.1f MB)",
+                TimeUnit.NANOSECONDS.toSeconds(elapsedNanos),
+                intervalEvents * 1e9 / intervalNanos,
+                events.get(),
+                simulator.getLinesSent(),
+                simulator.getCommandsReceived(),
+                commandsFailed.get(),
+                phonebookPulls.get(),
+                contacts.get(),
+                heapUsed / 1048576.0,
+                maxHeapUsed / 1048576.0
+        ));
+
+        UartMetrics.Snapshot metrics = uartInterface.getMetrics().snapshot();
+        UartMetrics.HistogramSnapshot routing = metrics.getHistogram(UartMetrics.HISTOGRAM_LINE_ROUTING);
+        System.out.println(String.format(Locale.US,
+                "        %d bytes in  %d bytes out  %d lines  %d unmatched  %d failed  %d too long  " +
+                        "%d undispatched  " +
+                        "routing p50 %.1f us p99 %.1f us max %.1f us  max dispatch queue %d",
+                metrics.getCounter(UartMetrics.COUNTER_BYTES_IN),
+                metrics.getCounter(UartMetrics.COUNTER_BYTES_OUT),
+                metrics.getCounter(UartMetrics.COUNTER_LINES_IN),
+                metrics.getCounter(UartMetrics.COUNTER_LINES_UNMATCHED),
+                metrics.getCounter(UartMetrics.COUNTER_LINES_FAILED),
+                metrics.getCounter(UartMetrics.COUNTER_LINES_TOO_LONG),
+                metrics.getCounter(UartMetrics.COUNTER_LINES_UNDISPATCHED),
+                routing.getPercentileNanos(50) / 1e3,
+                routing.getPercentileNanos(99) / 1e3,
+                routing.getMaxNanos() / 1e3,
+                metrics.getGauge(UartMetrics.GAUGE_MAX_DISPATCH_QUEUE_DEPTH)
+        ));
+
+        CommandPipeline pipeline = uartInterface.getCommandPipeline();
+        for (int priority = 0; priority < PRIORITY_NAMES.length; priority++) {
+            CommandScheduler.LatencyStats stats = pipeline.getLatencyStats(priority);
+            if (stats.getCount() == 0) {
+                continue;
+            }
+
+            System.out.println(String.format(Locale.US,
+                    "        %-12s %8d answered  queue mean %.2f ms max %.2f ms  " +
+                            "round trip mean %.2f ms max %.2f ms",
+                    PRIORITY_NAMES[priority],
+                    stats.getCount(),
+                    stats.getMeanQueueNanos() / 1e6,
+                    stats.getMaxQueueNanos() / 1e6,
+                    stats.getMeanRoundTripNanos() / 1e6,
+                    stats.getMaxRoundTripNanos() / 1e6
+            ));
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.freshollie.uart.melodyaudio;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the main thread, for callbacks which need to touch the UI.
+ */
+public class MainThreadExecutor implements Executor {
+    private final Handler mainThread;
+
+    public MainThreadExecutor() {
+        mainThread = new Handler(Looper.getMainLooper());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        mainThread.post(command);
+    }
+}
@@ -12,7 +12,6 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.os.Build;
-import android.os.Handler;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
@@ -22,25 +21,30 @@ import com.freshollie.bluetooth.melodyaudio.BuildConfig;
 import com.freshollie.bluetooth.melodyaudio.R;
 
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * Created by freshollie on 08.12.17.
+ *
+ * USB serial transport for the Melody Audio protocol, handles finding, opening
+ * and reconnecting to the usbDevice.
  */
 
-public class MelodyAudioUartConnection {
+public class MelodyAudioUartConnection implements Transport {
     public static final String TAG = MelodyAudioUartConnection.class.getSimpleName();
 
     private static final int WAIT_FOR_ATTACH_TIMEOUT = 5000;
+    private static final int WAIT_FOR_PERMISSION_TIMEOUT = 30000;
 
     // These depends on your FTDI chip
     public static final int PRODUCT_ID = 24577;
     public static final int VENDOR_ID = 1027;
 
-    public static final int STATE_CONNECTED = 3;
-    public static final int STATE_RECONNECTING = 2;
-    public static final int STATE_CONNECTING = 1;
-    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_BACKOFF = ConnectionStateMachine.STATE_BACKOFF;
+    public static final int STATE_CONNECTED = ConnectionStateMachine.STATE_CONNECTED;
+    public static final int STATE_RECONNECTING = ConnectionStateMachine.STATE_RECONNECTING;
+    public static final int STATE_CONNECTING = ConnectionStateMachine.STATE_CONNECTING;
+    public static final int STATE_DISCONNECTED = ConnectionStateMachine.STATE_DISCONNECTED;
 
     private static final int NOTIFICATION_ID = 1;
     private static final String NOTIFICATION_CHANNEL_ID = "USB_CONNECTION";
@@ -58,7 +62,8 @@ public class MelodyAudioUartConnection {
     private final UsbManager usbManager;
     private final NotificationManager notificationManager;
 
-    private Handler mainThread;
+    private final Executor callbackExecutor;
+    private final MainThreadExecutor mainThreadExecutor;
 
     private boolean running = false;
     private boolean showNotification = false;
@@ -66,17 +71,63 @@ public class MelodyAudioUartConnection {
 
     private int baudRate;
 
+    private int maxWriteBatchSize = CoalescingWriter.DEFAULT_MAX_BATCH_SIZE;
+    private long maxWriteLatencyMs = CoalescingWriter.DEFAULT_MAX_LATENCY_MS;
+    private int writeQueueCapacity = CoalescingWriter.DEFAULT_QUEUE_CAPACITY;
+
     private MelodyAudioUartInterface melodyAudioUartInterface;
+    private Transport.Receiver receiver;
+
+    private volatile SerialConnection serialConnection;
+    // Records the serial traffic while set
+    private volatile TrafficRecorder trafficRecorder;
+    private final ConnectionStateMachine stateMachine;
+
+    private AttachWaiter.DeviceProvider<UsbDevice> deviceProvider;
+    private AttachWaiter<UsbDevice> attachWaiter;
 
-    private SerialConnection serialConnection;
-    private OpenConnectionThread openConnectionThread;
+    // The last device opened, which can be resumed without asking for permission again
+    private UsbDevice lastDevice;
 
-    private final ArrayList<ConnectionStateChangeListener> connectionStateChangeListeners = new ArrayList<>();
+    private final Object permissionLock = new Object();
+    private Boolean permissionGranted;
+
+    private final ListenerRegistry<ConnectionStateChangeListener> connectionStateChangeListeners =
+            new ListenerRegistry<>(new ConnectionStateChangeListener[0]);
 
     public interface ConnectionStateChangeListener {
         void onConnectionStateChange(int newState);
     }
 
+    /**
+     * Forwards state changes to a listener on another executor
+     */
+    private static class ExecutorConnectionStateChangeListener
+            implements ConnectionStateChangeListener, ListenerRegistry.Wrapper {
+        private final ConnectionStateChangeListener delegate;
+        private final Executor executor;
+
+        ExecutorConnectionStateChangeListener(ConnectionStateChangeListener delegate, Executor executor) {
+            this.delegate = delegate;
+            this.executor = executor;
+        }
+
+        @Override
+        public Object getDelegate() {
+            return delegate;
+        }
+
+        @Override
+        public void onConnectionStateChange(final int newState) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.onConnectionStateChange(newState);
+                }
+            });
+        }
+    }
+
     /**
      * This receiver is called when a usb usbDevice is detached and when a usb
      * permission is granted or denied.
@@ -87,26 +138,33 @@ public class MelodyAudioUartConnection {
             log("Intent Received: " + intent.getAction());
 
             if (ACTION_USB_PERMISSION.equals(intent.getAction())) {
-                synchronized (this) {
-                    UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-                    if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                        if (device != null) {
-                            log("Permission for usbDevice granted");
-                            attemptConnection();
-                        }
-                    } else {
-                        if (device != null) {
-                            log("Permission for usbDevice denied");
-                            close();
-                        }
+                UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+                    if (device != null) {
+                        log("Permission for usbDevice granted");
+                        onPermissionResult(true);
+                    }
+                } else {
+                    if (device != null) {
+                        log("Permission for usbDevice denied");
+                        onPermissionResult(false);
+                        close();
                     }
                 }
+            } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
+                UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (device != null &&
+                        device.getVendorId() == VENDOR_ID &&
+                        device.getProductId() == PRODUCT_ID) {
+                    attachWaiter.onDeviceAttached();
+                }
             } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
                 UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
                 if (device != null && isRunning()) {
                     if (device.getVendorId() == VENDOR_ID &&
                             device.getProductId() == PRODUCT_ID) {
-                        attemptReopenConnection();
+                        log("Attempting to reconnect");
+                        stateMachine.onConnectionLost();
                     }
                 }
             }
@@ -114,7 +172,18 @@ public class MelodyAudioUartConnection {
     };
 
 
+    /**
+     * Responses are parsed and callbacks are called on a dedicated dispatch thread
+     */
     public MelodyAudioUartConnection(Context appContext, int baud) {
+        this(appContext, baud, MelodyAudioUartInterface.newDispatchExecutor());
+    }
+
+    /**
+     * @param callbackExecutor the executor responses are parsed on, and interface callbacks
+     *                         and connection state changes are called on
+     */
+    public MelodyAudioUartConnection(Context appContext, int baud, Executor callbackExecutor) {
         Log.v(TAG, "Created");
         context = appContext;
 
@@ -126,8 +195,9 @@ public class MelodyAudioUartConnection {
 
         connectionState = STATE_DISCONNECTED;
 
-        mainThread = new Handler(context.getMainLooper());
-        melodyAudioUartInterface = new MelodyAudioUartInterface(this, mainThread);
+        this.callbackExecutor = callbackExecutor;
+        mainThreadExecutor = new MainThreadExecutor();
+        melodyAudioUartInterface = new MelodyAudioUartInterface(this, callbackExecutor);
 
         // Notification channel for android devices larger than Oreo
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && notificationManager != null) {
@@ -158,7 +228,39 @@ public class MelodyAudioUartConnection {
 
         intentFilter = new IntentFilter(ACTION_USB_PERMISSION);
         intentFilter.addAction(ACTION_USB_PERMISSION);
+        intentFilter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
         intentFilter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+
+        setDeviceProvider(new AttachWaiter.DeviceProvider<UsbDevice>() {
+            @Override
+            public UsbDevice findDevice() {
+                return getUsbSerialDevice();
+            }
+        });
+
+        stateMachine = new ConnectionStateMachine(new UsbConnector());
+        stateMachine.setMetrics(melodyAudioUartInterface.getMetrics());
+        stateMachine.registerStateListener(new ConnectionStateMachine.StateListener() {
+            @Override
+            public void onStateChange(final int newState) {
+                // Called holding the state machine's lock, which close() needs
+                mainThreadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onConnectionStateMachineChange(newState);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Replaces where the connection looks for the usbDevice, such as with a fake
+     * device list. Must be called before the connection is opened.
+     */
+    public void setDeviceProvider(AttachWaiter.DeviceProvider<UsbDevice> deviceProvider) {
+        this.deviceProvider = deviceProvider;
+        attachWaiter = new AttachWaiter<>(deviceProvider);
     }
 
     private UsbDevice getUsbSerialDevice() {
@@ -172,46 +274,57 @@ public class MelodyAudioUartConnection {
         return null;
     }
 
-    private void attemptConnection() {
-        if (openConnectionThread == null || !openConnectionThread.isAlive()) {
-            openConnectionThread = new OpenConnectionThread();
-            openConnectionThread.start();
-        }
+    public void setBaudRate(int baud) {
+        baudRate = baud;
     }
 
-    private void attemptReopenConnection() {
-        setConnectionState(STATE_RECONNECTING);
-
-        showReconnectingNotification();
-        closeConnection();
-
-        log("Attempting to reconnect");
-        attemptConnection();
+    /**
+     * Configures how queued commands are coalesced into USB transfers, takes
+     * effect on the next connection.
+     *
+     * @param maxBatchSize the most bytes written in one transfer
+     * @param maxLatencyMs how long to wait for more commands after the first
+     *                     command of a transfer
+     * @param queueCapacity how many commands can be queued before writes block
+     */
+    public void setWriteCoalescing(int maxBatchSize, long maxLatencyMs, int queueCapacity) {
+        maxWriteBatchSize = maxBatchSize;
+        maxWriteLatencyMs = maxLatencyMs;
+        writeQueueCapacity = queueCapacity;
     }
 
-    private void closeConnection() {
-        log("Closing connection to usbDevice");
-
-        if (openConnectionThread != null && openConnectionThread.isAlive()) {
-            openConnectionThread.interrupt();
-        }
-        openConnectionThread = null;
-
-        if (serialConnection != null && serialConnection.isOpen()) {
-            serialConnection.close();
-        }
+    /**
+     * Records every byte read from and written to the serial device, until set to null.
+     * The recorder is not closed by the connection.
+     */
+    public void setTrafficRecorder(TrafficRecorder recorder) {
+        trafficRecorder = recorder;
+    }
 
-        serialConnection = null;
+    /**
+     * Configures how long to wait between failed attempts at connecting, see
+     * {@link ConnectionStateMachine#setBackoff(long, long, double, double)}
+     */
+    public void setReconnectBackoff(long initialBackoffMs, long maxBackoffMs, double multiplier, double jitter) {
+        stateMachine.setBackoff(initialBackoffMs, maxBackoffMs, multiplier, jitter);
     }
 
-    private boolean isDeviceAttached() {
-        return getUsbSerialDevice() != null;
+    /**
+     * @param maxAttempts how many failed attempts at connecting are made before the
+     *                    connection is closed, 0 to keep trying until closed
+     */
+    public void setMaxConnectAttempts(int maxAttempts) {
+        stateMachine.setMaxAttempts(maxAttempts);
     }
 
-    public void setBaudRate(int baud) {
-        baudRate = baud;
+    /**
+     * @return how long it has taken to reconnect after the usbDevice was lost
+     */
+    public ConnectionStateMachine.ReconnectStats getReconnectStats() {
+        return stateMachine.getReconnectStats();
     }
 
+    @Override
     public void open() {
         // Start usbDevice service if the usbDevice service is currently not running
         if (!running) {
@@ -219,16 +332,14 @@ public class MelodyAudioUartConnection {
             context.registerReceiver(usbBroadcastReceiver, intentFilter);
             running = true;
 
-            setConnectionState(STATE_CONNECTING);
-            showConnectingNotification();
-
-            attemptConnection();
+            stateMachine.start();
         }
     }
 
     /**
      * Closes the connection  and closes usbDevice connection
      */
+    @Override
     public void close() {
         if (running) {
             running = false;
@@ -236,11 +347,7 @@ public class MelodyAudioUartConnection {
 
             context.unregisterReceiver(usbBroadcastReceiver);
 
-            if (connectionState != STATE_DISCONNECTED) {
-                setConnectionState(STATE_DISCONNECTED);
-                closeConnection();
-                showDisconnectedNotification();
-            }
+            stateMachine.stop();
 
             cancelNotification();
         }
@@ -259,27 +366,78 @@ public class MelodyAudioUartConnection {
         notifyConnectionStateChange(connectionState);
     }
 
+    /**
+     * Called on the main thread
+     */
+    private void onConnectionStateMachineChange(int newState) {
+        setConnectionState(newState);
+
+        switch (newState) {
+            case STATE_CONNECTING:
+                showConnectingNotification();
+                break;
+            case STATE_RECONNECTING:
+                showReconnectingNotification();
+                break;
+            case STATE_CONNECTED:
+                showConnectedNotification();
+                break;
+            case STATE_DISCONNECTED:
+                showDisconnectedNotification();
+                // The connection may have been reopened since the machine gave up
+                if (running && stateMachine.getState() == STATE_DISCONNECTED) {
+                    log("Gave up connecting");
+                    close();
+                }
+                break;
+        }
+    }
+
+    private void onPermissionResult(boolean granted) {
+        synchronized (permissionLock) {
+            permissionGranted = granted;
+            permissionLock.notifyAll();
+        }
+    }
+
     private void notifyConnectionStateChange(final int state) {
-        synchronized (connectionStateChangeListeners) {
-            for (final ConnectionStateChangeListener changeListener: connectionStateChangeListeners) {
-                mainThread.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        changeListener.onConnectionStateChange(state);
-                    }
-                });
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ConnectionStateChangeListener changeListener: connectionStateChangeListeners.getListeners()) {
+                    changeListener.onConnectionStateChange(state);
+                }
             }
-        }
+        });
     }
 
     public MelodyAudioUartInterface getInterface() {
         return melodyAudioUartInterface;
     }
 
+    /**
+     * For callbacks which need to be on the main thread, see
+     * {@link #registerConnectionChangeListener(ConnectionStateChangeListener, Executor)} and
+     * {@link MelodyAudioUartInterface#registerMelodyAudioCallback(MelodyAudioUartInterface.MelodyAudioUartInterfaceCallback, Executor)}
+     */
+    public Executor getMainThreadExecutor() {
+        return mainThreadExecutor;
+    }
+
+    /**
+     * The listener is called on the callback executor
+     */
     public void registerConnectionChangeListener(ConnectionStateChangeListener listener) {
         connectionStateChangeListeners.add(listener);
     }
 
+    /**
+     * The listener is called on the given executor instead of the callback executor
+     */
+    public void registerConnectionChangeListener(ConnectionStateChangeListener listener, Executor executor) {
+        connectionStateChangeListeners.add(new ExecutorConnectionStateChangeListener(listener, executor));
+    }
+
     public void unregisterConnectionChangeListener(ConnectionStateChangeListener listener) {
         connectionStateChangeListeners.remove(listener);
     }
@@ -324,82 +482,99 @@ public class MelodyAudioUartConnection {
         }
     }
 
-    void sendData(byte[] data) {
-        if (serialConnection != null) {
-            serialConnection.write(data);
-        }
+    @Override
+    public void setReceiver(Transport.Receiver receiver) {
+        this.receiver = receiver;
     }
 
-    private class OpenConnectionThread extends Thread {
-        private final String TAG = OpenConnectionThread.class.getSimpleName();
-        @Override
-        public void run() {
-            log("Started");
-
-            long startTime = System.currentTimeMillis();
-
-            while ((System.currentTimeMillis() - startTime) < WAIT_FOR_ATTACH_TIMEOUT && !interrupted()) {
-                if (isDeviceAttached()) {
-                    // The usbDevice is already marked as connected, so this is probably a reconnect
-                    if (connectionState == STATE_RECONNECTING) {
-                        // Wait 500ms as this will help with reconnection
-                        try {
-                            Thread.sleep(500);
-                        } catch (InterruptedException e) {
-                            return;
-                        }
-                    }
+    @Override
+    public boolean write(byte[] data) {
+        SerialConnection connection = serialConnection;
+        return connection != null && connection.write(data);
+    }
 
-                    requestConnection();
-                    return;
-                }
+    /**
+     * Makes the connection attempts for the state machine, on its worker thread
+     */
+    private class UsbConnector implements ConnectionStateMachine.Connector {
+        private final String TAG = UsbConnector.class.getSimpleName();
+
+        @Override
+        public boolean connect(boolean resume) throws InterruptedException {
+            UsbDevice device = lastDevice;
+
+            // The same usbDevice is still attached, so it can be opened again straight away
+            if (resume && device != null && device.equals(deviceProvider.findDevice()) &&
+                    usbManager.hasPermission(device)) {
+                log("Resuming connection to usbDevice");
+                return openConnection(device);
             }
 
-            if ((System.currentTimeMillis() - startTime) >= WAIT_FOR_ATTACH_TIMEOUT) {
+            device = attachWaiter.await(WAIT_FOR_ATTACH_TIMEOUT);
+            if (device == null) {
                 log("Waited too long for usbDevice to attach");
-                close();
+                return false;
             }
+
+            if (!usbManager.hasPermission(device) && !awaitPermission(device)) {
+                return false;
+            }
+
+            return openConnection(device);
         }
 
-        private void requestConnection() {
-            openConnectionThread = null;
+        @Override
+        public void disconnect() {
+            log("Closing connection to usbDevice");
 
-            log("Requesting connection to usbDevice");
+            SerialConnection connection = serialConnection;
+            serialConnection = null;
+            if (connection != null && connection.isOpen()) {
+                connection.close();
+            }
+        }
 
-            UsbDevice device = getUsbSerialDevice();
-            if (device != null) {
-                if (usbManager.hasPermission(device)) {
-                    openConnection(device);
-                } else {
-                    log("Requesting permission for usbDevice");
-                    usbManager.requestPermission(device, usbPermissionIntent);
+        private boolean awaitPermission(UsbDevice device) throws InterruptedException {
+            log("Requesting permission for usbDevice");
+
+            synchronized (permissionLock) {
+                permissionGranted = null;
+                usbManager.requestPermission(device, usbPermissionIntent);
+
+                long deadline = System.currentTimeMillis() + WAIT_FOR_PERMISSION_TIMEOUT;
+                while (permissionGranted == null) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        log("Waited too long for permission");
+                        return false;
+                    }
+                    permissionLock.wait(remaining);
                 }
-                return;
-            }
 
-            log("No devices found");
-            close();
+                return permissionGranted;
+            }
         }
 
-        private void openConnection(UsbDevice usbDevice) {
+        private boolean openConnection(UsbDevice usbDevice) {
             if (!running) {
-                // Don't open the connection if the usb
-                return;
+                // Don't open the connection if the connection has been closed
+                return false;
             }
 
             log("Opening connection to usbDevice");
-            if (usbDevice != null) {
-                UsbDeviceConnection connection = usbManager.openDevice(usbDevice);
-                serialConnection = new SerialConnection(connection, usbDevice);
-                serialConnection.open();
-
-                setConnectionState(STATE_CONNECTED);
-                showConnectedNotification();
-                return;
+            UsbDeviceConnection connection = usbManager.openDevice(usbDevice);
+            if (connection != null) {
+                SerialConnection newConnection = new SerialConnection(connection, usbDevice);
+                if (newConnection.open()) {
+                    lastDevice = usbDevice;
+                    serialConnection = newConnection;
+                    return true;
+                }
+                connection.close();
             }
 
             log("Error opening connection");
-            close();
+            return false;
         }
 
         private void log(String message) {
@@ -411,43 +586,97 @@ public class MelodyAudioUartConnection {
         private final String TAG = SerialConnection.class.getSimpleName();
 
         private UsbSerialDevice serialDevice;
+        private final CoalescingWriter writer;
         private boolean open = false;
 
         SerialConnection(UsbDeviceConnection connection, UsbDevice device) {
             serialDevice = UsbSerialDevice.createUsbSerialDevice(device, connection);
+            writer = new CoalescingWriter(
+                    new CoalescingWriter.Sink() {
+                        @Override
+                        public void write(byte[] data) {
+                            writeTransfer(data);
+                        }
+                    },
+                    maxWriteBatchSize,
+                    maxWriteLatencyMs,
+                    writeQueueCapacity,
+                    CoalescingWriter.DEFAULT_OFFER_TIMEOUT_MS
+            );
+        }
+
+        /**
+         * @return false if the connection is closed, or the write queue stayed full
+         */
+        boolean write(byte[] bytes) {
+            if (!open) {
+                return false;
+            }
+
+            if (!writer.write(bytes)) {
+                melodyAudioUartInterface.getMetrics().increment(UartMetrics.COUNTER_WRITES_DROPPED);
+                Log.w(TAG, "Write queue full, dropped " + bytes.length + " bytes");
+                return false;
+            }
+            return true;
         }
 
-        void write(byte[] bytes) {
-            if (open) {
-                try {
-                    log("Writing: " + new String(bytes, "ASCII"));
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
+        /**
+         * Called on the writer thread
+         */
+        private void writeTransfer(byte[] bytes) {
+            UsbSerialDevice device = serialDevice;
+            if (device != null) {
+                if (BuildConfig.DEBUG) {
+                    try {
+                        log("Writing: " + new String(bytes, "ASCII"));
+                    } catch (UnsupportedEncodingException e) {
+                        e.printStackTrace();
+                    }
                 }
-                serialDevice.write(bytes);
+                TrafficRecorder recorder = trafficRecorder;
+                if (recorder != null) {
+                    recorder.recordOut(bytes);
+                }
+                device.write(bytes);
             }
         }
 
         @Override
         public void onReceivedData(byte[] bytes) {
-            if (open) {
-                melodyAudioUartInterface.onNewData(bytes);
+            if (open && receiver != null) {
+                TrafficRecorder recorder = trafficRecorder;
+                if (recorder != null) {
+                    recorder.recordIn(bytes);
+                }
+                receiver.onDataReceived(bytes);
             }
         }
 
-        void open() {
-            if (serialDevice != null) {
-                open = true;
-                // Connection is starting so we don't need the data from before
-                melodyAudioUartInterface.reset();
+        /**
+         * @return false if the serial device could not be opened
+         */
+        boolean open() {
+            if (serialDevice == null) {
+                return false;
+            }
 
-                serialDevice.open();
-                serialDevice.setBaudRate(baudRate);
-                serialDevice.read(this);
+            // Connection is starting so we don't need the data from before
+            melodyAudioUartInterface.reset();
+
+            if (!serialDevice.open()) {
+                return false;
             }
+
+            open = true;
+            serialDevice.setBaudRate(baudRate);
+            serialDevice.read(this);
+            writer.start();
+            return true;
         }
 
         void close() {
+            writer.stop();
             if (serialDevice != null) {
                 serialDevice.close();
                 open = false;